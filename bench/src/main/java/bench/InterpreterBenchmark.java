@@ -0,0 +1,73 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * One run of a program on its input, per engine: the public test programs on their largest input,
+ * and the synthetic workload, which executes millions of instructions. The program is parsed and
+ * compiled once and every invocation runs a fork of it, like the batch runner does.
+ *
+ * IRInterpreter is in the default package, which named packages cannot import, so it is driven
+ * through method handles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterpreterBenchmark {
+
+    private static final PrintStream NULL_OUT = new PrintStream(OutputStream.nullOutputStream());
+
+    @Param({"quicksort", "sqrt", Programs.SYNTHETIC})
+    public String program;
+
+    @Param({"tree", "bytecode", "jit"})
+    public String engine;
+
+    private Object interpreter;
+    private byte[] input;
+    private MethodHandle fork;
+    private MethodHandle setStandardStreams;
+    private MethodHandle run;
+
+    @Setup
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void setup() throws Throwable {
+        Class<?> interpreterClass = Class.forName("IRInterpreter");
+        Class engineClass = Class.forName("IRInterpreter$Engine");
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+
+        interpreter = lookup.findConstructor(interpreterClass, methodType(void.class, String.class))
+                .invoke(Programs.getProgram(program).toString());
+        lookup.findVirtual(interpreterClass, "setEngine", methodType(void.class, engineClass))
+                .invoke(interpreter, Enum.valueOf(engineClass, engine.toUpperCase()));
+        lookup.findVirtual(interpreterClass, "prepare", methodType(void.class)).invoke(interpreter);
+
+        fork = lookup.findVirtual(interpreterClass, "fork", methodType(interpreterClass));
+        setStandardStreams = lookup.findVirtual(interpreterClass, "setStandardStreams",
+                methodType(void.class, InputStream.class, PrintStream.class, PrintStream.class));
+        run = lookup.findVirtual(interpreterClass, "run", methodType(void.class));
+        input = Programs.getInput(program);
+    }
+
+    @Benchmark
+    public Object run() throws Throwable {
+        Object instance = fork.invoke(interpreter);
+        setStandardStreams.invoke(instance, new ByteArrayInputStream(input), NULL_OUT, NULL_OUT);
+        run.invoke(instance);
+        return instance;
+    }
+
+}
@@ -0,0 +1,55 @@
+package bench;
+
+import ir.IRPrinter;
+import ir.IRProgram;
+import ir.IRReader;
+import ir.IRTextWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrinterBenchmark {
+
+    @Param({"quicksort", "sqrt", Programs.SYNTHETIC})
+    public String program;
+
+    // IRPrinter, IRTextWriter, or IRTextWriter rendering on the common fork-join pool
+    @Param({"printer", "writer", "parallel"})
+    public String mode;
+
+    private IRProgram parsed;
+    private ByteArrayOutputStream buffer;
+    private PrintStream out;
+
+    @Setup
+    public void setup() throws Exception {
+        parsed = new IRReader().parseIRFile(Programs.getProgram(program).toString());
+        buffer = new ByteArrayOutputStream();
+        out = new PrintStream(buffer);
+    }
+
+    @Benchmark
+    public int printProgram() throws IOException {
+        buffer.reset();
+        if (mode.equals("writer")) {
+            new IRTextWriter(buffer).writeProgram(parsed);
+        } else if (mode.equals("parallel")) {
+            new IRTextWriter(buffer).writeProgram(parsed, ForkJoinPool.commonPool());
+        } else {
+            new IRPrinter(out).printProgram(parsed);
+            out.flush();
+        }
+        return buffer.size();
+    }
+
+}
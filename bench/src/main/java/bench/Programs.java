@@ -0,0 +1,92 @@
+package bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Locates the benchmark programs: the public test programs by name, and "synthetic", a program of
+ * about 10^5 instructions written by IRWorkloadGenerator with SYNTHETIC_ARGS, which executes about
+ * 1.7 million instructions on its input.
+ */
+public final class Programs {
+
+    public static final String SYNTHETIC = "synthetic";
+    private static final String[] SYNTHETIC_ARGS = {"--functions=100", "--instructions=1000", "--loop-trips=8",
+            "--inputs=1", "--seed=1", "--name=" + SYNTHETIC};
+
+    private static Path synthetic;
+
+    private Programs() {
+    }
+
+    /**
+     * The public_test_cases directory, looked up from the working directory upwards so that the
+     * benchmarks run from the repository root or from bench/
+     */
+    public static Path getTestCases() {
+        for (Path dir = Paths.get("").toAbsolutePath(); dir != null; dir = dir.getParent()) {
+            Path testCases = dir.resolve("public_test_cases");
+            if (Files.isDirectory(testCases))
+                return testCases;
+        }
+        throw new IllegalStateException("public_test_cases not found above " + Paths.get("").toAbsolutePath());
+    }
+
+    public static Path getProgram(String name) {
+        return getDirectory(name).resolve(name + ".ir");
+    }
+
+    /**
+     * Standard input for a run of a program: the last and largest test case of a public test
+     * program, or the single input of the synthetic one
+     */
+    public static byte[] getInput(String name) {
+        try {
+            return Files.readAllBytes(getDirectory(name).resolve(name.equals(SYNTHETIC) ? "0.in" : "9.in"));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static synchronized Path getDirectory(String name) {
+        if (!name.equals(SYNTHETIC))
+            return getTestCases().resolve(name);
+        if (synthetic == null)
+            synthetic = writeSynthetic();
+        return synthetic;
+    }
+
+    /**
+     * Runs IRWorkloadGenerator into a temporary directory. The generator is in the default package,
+     * which named packages cannot import, so its main is called through a method handle.
+     */
+    private static Path writeSynthetic() {
+        try {
+            Path dir = Files.createTempDirectory(SYNTHETIC);
+            // Deleted in reverse order of registration, so the files go before the directory
+            dir.toFile().deleteOnExit();
+            dir.resolve(SYNTHETIC + ".ir").toFile().deleteOnExit();
+            dir.resolve("0.in").toFile().deleteOnExit();
+
+            String[] args = new String[SYNTHETIC_ARGS.length + 1];
+            System.arraycopy(SYNTHETIC_ARGS, 0, args, 0, SYNTHETIC_ARGS.length);
+            args[SYNTHETIC_ARGS.length] = dir.toString();
+            MethodHandle main = MethodHandles.publicLookup().findStatic(Class.forName("IRWorkloadGenerator"), "main",
+                    methodType(void.class, String[].class));
+            main.invoke(args);
+            return dir;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (Throwable e) {
+            throw new IllegalStateException("Cannot generate the synthetic program", e);
+        }
+    }
+
+}
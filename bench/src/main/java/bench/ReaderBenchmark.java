@@ -0,0 +1,53 @@
+package bench;
+
+import ir.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReaderBenchmark {
+
+    @Param({"quicksort", "sqrt", Programs.SYNTHETIC})
+    public String program;
+
+    // serial, functions parsed on the common fork-join pool, or loading the binary format
+    @Param({"serial", "parallel", "binary"})
+    public String mode;
+
+    private String filename;
+
+    @Setup
+    public void setup() throws IOException, IRException {
+        filename = Programs.getProgram(program).toString();
+        if (mode.equals("binary")) {
+            IRProgram parsed = new IRReader().parseIRFile(filename);
+            File binary = File.createTempFile(program, ".irb");
+            binary.deleteOnExit();
+            try (OutputStream out = new FileOutputStream(binary)) {
+                new IRBinaryWriter(out).writeProgram(parsed);
+            }
+            filename = binary.toString();
+        }
+    }
+
+    @Benchmark
+    public IRProgram parseIRFile() throws IOException, IRException {
+        if (mode.equals("binary"))
+            return new IRBinaryReader().readIRFile(filename);
+        if (mode.equals("parallel"))
+            return new IRReader().parseIRFile(filename, ForkJoinPool.commonPool());
+        return new IRReader().parseIRFile(filename);
+    }
+
+}
@@ -0,0 +1,99 @@
+package optimization;
+
+import bench.Programs;
+import ir.IRFunction;
+import ir.IRInstruction;
+import ir.IRProgram;
+import ir.IRReader;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Optimizer phases. The benchmark lives in the optimization package to reach the phases directly.
+ * The program is parsed and its graphs are built once per trial, since building graphs and the
+ * analyses leave them as they are. optimize only replaces the instruction list of each function, so
+ * each invocation optimizes new function headers that share the parsed instructions, which costs
+ * one object per function instead of a parse.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OptimizerBenchmark {
+
+    private static final ForkJoinPool SERIAL = new ForkJoinPool(1);
+
+    @Param({"quicksort", "sqrt", Programs.SYNTHETIC})
+    public String program;
+
+    private IRProgram parsed;
+    private List<ControlFlowGraph> graphs;
+
+    /**
+     * Pool for optimize, apart from the program so that only optimize runs once per mode
+     */
+    @State(Scope.Benchmark)
+    public static class OptimizeState {
+        // serial on one thread, or one task per function on the common fork-join pool
+        @Param({"serial", "parallel"})
+        public String mode;
+
+        ForkJoinPool getPool() {
+            return mode.equals("parallel") ? ForkJoinPool.commonPool() : SERIAL;
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        parsed = new IRReader().readIRFile(Programs.getProgram(program).toString());
+        graphs = buildFunctionGraphs();
+    }
+
+    @Benchmark
+    public List<ControlFlowGraph> buildFunctionGraphs() {
+        List<ControlFlowGraph> graphs = new ArrayList<>();
+        for (IRFunction function : parsed.functions) {
+            Map<IRInstruction, BasicBlock> blockMap = new HashMap<>();
+            graphs.add(Optimizer.buildFunctionGraph(function, blockMap));
+        }
+        return graphs;
+    }
+
+    @Benchmark
+    public int generateReachDefinitions() {
+        int definitions = 0;
+        for (ControlFlowGraph graph : graphs) {
+            if (graph.entry != null)
+                definitions += Optimizer.generateReachDefinitions(graph).size();
+        }
+        return definitions;
+    }
+
+    @Benchmark
+    public int generateLiveVariables() {
+        int variables = 0;
+        for (ControlFlowGraph graph : graphs)
+            variables += Optimizer.generateLiveVariables(graph).getVariables().size();
+        return variables;
+    }
+
+    @Benchmark
+    public Optimizer optimize(OptimizeState state) {
+        List<IRFunction> functions = new ArrayList<>();
+        for (IRFunction function : parsed.functions)
+            functions.add(new IRFunction(function.name, function.returnType, function.parameters,
+                    function.variables, function.instructions));
+        Optimizer optimizer = new Optimizer(new IRProgram(functions));
+        optimizer.optimize(state.getPool());
+        return optimizer;
+    }
+
+}
@@ -0,0 +1,140 @@
+import ir.IRException;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs one IR program over every *.in file of a directory in parallel. The program is parsed and
+ * compiled once; each run gets a forked interpreter with in-memory standard streams, and its output
+ * is compared with the *.out file of the same name when there is one.
+ */
+public class IRBatchRunner {
+
+    public static class Result {
+        public String name;
+        // Non-label instructions executed, -1 if the engine did not count them
+        public long instructionCount = -1;
+        // Whether the output matched the expected output, null if there is none
+        public Boolean matched;
+        // Error reported by the run, null if it completed
+        public String error;
+    }
+
+    // Numbered cases in numeric order, then everything else by name
+    private static final Comparator<String> CASE_ORDER = (a, b) -> {
+        boolean aNumeric = a.matches("\\d+"), bNumeric = b.matches("\\d+");
+        if (aNumeric && bNumeric)
+            return new BigInteger(a).compareTo(new BigInteger(b));
+        if (aNumeric != bNumeric)
+            return aNumeric ? -1 : 1;
+        return a.compareTo(b);
+    };
+
+    private final IRInterpreter template;
+    private final int jobs;
+
+    public IRBatchRunner(IRInterpreter template, int jobs) {
+        this.template = template;
+        this.jobs = jobs;
+    }
+
+    public List<Result> run(Path directory) throws IOException, IRException, InterruptedException {
+        List<Path> inputs;
+        try (Stream<Path> files = Files.list(directory)) {
+            inputs = files.filter(path -> path.getFileName().toString().endsWith(".in"))
+                    .sorted(Comparator.comparing(path -> getCaseName(path), CASE_ORDER))
+                    .collect(Collectors.toList());
+        }
+
+        // Compile once before forking so that all runs share the result
+        template.prepare();
+
+        ExecutorService pool = Executors.newFixedThreadPool(jobs);
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (Path input : inputs)
+                futures.add(pool.submit(() -> runCase(input)));
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static String getCaseName(Path input) {
+        String fileName = input.getFileName().toString();
+        return fileName.substring(0, fileName.length() - ".in".length());
+    }
+
+    private Result runCase(Path input) throws IOException {
+        Result result = new Result();
+        result.name = getCaseName(input);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        IRInterpreter interpreter = template.fork();
+        interpreter.setStandardStreams(new ByteArrayInputStream(Files.readAllBytes(input)),
+                new PrintStream(out), new PrintStream(err));
+        try {
+            interpreter.run();
+        } catch (IRException e) {
+            result.error = err.toString().trim();
+        } catch (RuntimeException | StackOverflowError e) {
+            result.error = e.toString();
+        }
+
+        IRInterpreter.Stats stats = interpreter.getStats();
+        if (stats != null)
+            result.instructionCount = stats.getNonLabelInstructionCount();
+
+        Path expected = input.resolveSibling(result.name + ".out");
+        if (Files.exists(expected))
+            result.matched = Arrays.equals(out.toByteArray(), Files.readAllBytes(expected));
+        return result;
+    }
+
+    /**
+     * Writes the instruction counts in the format of dyn_inst_cnt.csv, with a single count column
+     */
+    public static void writeReport(List<Result> results, String column, PrintWriter out) {
+        out.println("case," + column);
+        for (Result result : results)
+            out.println(result.name + "," + (result.instructionCount < 0 ? "" : result.instructionCount));
+        out.flush();
+    }
+
+    /**
+     * Reports failed cases and a summary line, and returns whether every case passed
+     */
+    public static boolean printSummary(List<Result> results, PrintStream out) {
+        int passed = 0, checked = 0;
+        for (Result result : results) {
+            if (result.error != null)
+                out.println("ERROR " + result.name + ": " + result.error.split("\\R", 2)[0]);
+            else if (Boolean.FALSE.equals(result.matched))
+                out.println("FAIL " + result.name + ": output differs from " + result.name + ".out");
+            if (result.matched == null)
+                continue;
+            checked++;
+            if (result.matched && result.error == null)
+                passed++;
+        }
+        out.println(String.format("%d of %d cases passed (%d without expected output)",
+                passed, checked, results.size() - checked));
+        return passed == checked && results.stream().allMatch(result -> result.error == null);
+    }
+
+}
@@ -0,0 +1,80 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Command line client of IRDaemon. "IRClient run <arguments>" behaves like "IRInterpreter
+ * <arguments>" and "IRClient optimize <arguments>" like "optimization.Optimizer <arguments>": their
+ * output and exit status are reproduced. For single runs, standard input is read up to its end
+ * and sent along; batch runs read their inputs from files. "IRClient shutdown" stops the daemon.
+ */
+public class IRClient {
+
+    public static void main(String[] args) throws IOException {
+        Path portFile = IRDaemon.getDefaultPortFile();
+        int first = 0;
+        if (args.length > 0 && args[0].startsWith("--port-file=")) {
+            portFile = Paths.get(args[0].substring("--port-file=".length()));
+            first = 1;
+        }
+        if (first == args.length) {
+            System.err.println("Usage: IRClient [--port-file=<file>] run <IRInterpreter arguments> | optimize <Optimizer arguments> | shutdown");
+            System.exit(1);
+        }
+        String command = args[first];
+        String[] commandArgs = Arrays.copyOfRange(args, first + 1, args.length);
+
+        String[] address;
+        try {
+            address = new String(Files.readAllBytes(portFile), StandardCharsets.US_ASCII).trim().split(" ");
+        } catch (NoSuchFileException e) {
+            System.err.println("No IR daemon is running (" + portFile + " not found); start one with: java IRDaemon");
+            System.exit(2);
+            return;
+        }
+        byte[] stdin = command.equals(IRDaemon.RUN) && readsStandardInput(commandArgs) ? System.in.readAllBytes() : new byte[0];
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(address[0]));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            out.writeUTF(address[1]);
+            out.writeUTF(command);
+            out.writeUTF(Paths.get("").toAbsolutePath().toString());
+            out.writeInt(commandArgs.length);
+            for (String arg : commandArgs)
+                out.writeUTF(arg);
+            out.writeInt(stdin.length);
+            out.write(stdin);
+            out.flush();
+
+            byte[] stdout = new byte[in.readInt()];
+            in.readFully(stdout);
+            System.out.write(stdout);
+            System.out.flush();
+            byte[] stderr = new byte[in.readInt()];
+            in.readFully(stderr);
+            System.err.write(stderr);
+            System.err.flush();
+            System.exit(in.readInt());
+        }
+    }
+
+    /**
+     * Whether a run with these arguments reads standard input; batch runs read their inputs from files
+     */
+    private static boolean readsStandardInput(String[] args) {
+        try {
+            return IRInterpreter.Options.parse(args).batchDir == null;
+        } catch (IllegalArgumentException e) {
+            // The daemon reports the bad option without running anything
+            return false;
+        }
+    }
+
+}
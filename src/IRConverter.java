@@ -0,0 +1,31 @@
+import ir.*;
+
+import java.io.*;
+
+/**
+ * Converts a text IR file to the binary format of IRBinaryWriter, or a binary one back to text.
+ * The direction follows from the input file, and the binary file keeps the line numbers of the
+ * text it was written from.
+ */
+public class IRConverter {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2 || args[0].startsWith("--") || args[1].startsWith("--")) {
+            System.err.println("Usage: IRConverter <input.ir> <output>");
+            System.exit(1);
+        }
+
+        if (IRBinaryReader.isBinaryIRFile(args[0])) {
+            IRProgram program = new IRBinaryReader().readIRFile(args[0]);
+            try (FileOutputStream out = new FileOutputStream(args[1])) {
+                new IRTextWriter(out.getChannel()).writeProgram(program);
+            }
+        } else {
+            IRProgram program = new IRReader().parseIRFile(args[0]);
+            try (OutputStream out = new FileOutputStream(args[1])) {
+                new IRBinaryWriter(out).writeProgram(program);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,221 @@
+import ir.IRException;
+import optimization.Optimizer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Resident server that handles IRInterpreter and Optimizer requests in one long-running JVM, so
+ * that scripts processing many files pay for JVM startup and cold compilation only once. Programs
+ * parsed and compiled for a run are cached per file and settings until the file changes.
+ *
+ * The server listens on a loopback port and writes "port token" to its port file, which only its
+ * owner can read. Each connection carries one request:
+ *   token, command (run, optimize or shutdown), working directory, argument count, arguments
+ *   and the length and bytes of standard input
+ * and gets one reply:
+ *   the length and bytes of standard output, the same for standard error, and the exit status.
+ * Strings are written with DataOutput.writeUTF and numbers as ints.
+ */
+public class IRDaemon {
+
+    public static final String RUN = "run";
+    public static final String OPTIMIZE = "optimize";
+    public static final String SHUTDOWN = "shutdown";
+
+    private static class CachedProgram {
+        public long modified;
+        public long size;
+        public IRInterpreter template;
+    }
+
+    private final ServerSocket server;
+    private final Path portFile;
+    private final String token;
+    private final ExecutorService workers = Executors.newCachedThreadPool();
+
+    // Absolute file name and settings -> prepared interpreter
+    private final Map<String, CachedProgram> programs = new ConcurrentHashMap<>();
+
+    public static Path getDefaultPortFile() {
+        return Paths.get(System.getProperty("java.io.tmpdir"), "ir-daemon-" + System.getProperty("user.name") + ".port");
+    }
+
+    public IRDaemon(Path portFile) throws IOException {
+        this.portFile = portFile;
+        byte[] secret = new byte[16];
+        new SecureRandom().nextBytes(secret);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : secret)
+            sb.append(String.format("%02x", b));
+        token = sb.toString();
+
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Files.deleteIfExists(portFile);
+        try {
+            Files.createFile(portFile, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(portFile);
+        }
+        Files.write(portFile, (server.getLocalPort() + " " + token + "\n").getBytes(StandardCharsets.US_ASCII));
+        portFile.toFile().deleteOnExit();
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path portFile = getDefaultPortFile();
+        for (String arg : args) {
+            if (arg.startsWith("--port-file=")) {
+                portFile = Paths.get(arg.substring("--port-file=".length()));
+            } else {
+                System.err.println("Usage: IRDaemon [--port-file=<file>]");
+                System.exit(1);
+            }
+        }
+
+        IRDaemon daemon = new IRDaemon(portFile);
+        System.err.println("IR daemon listening on port " + daemon.server.getLocalPort() + ", port file " + portFile);
+        daemon.serve();
+    }
+
+    /**
+     * Accepts connections until a shutdown request arrives
+     */
+    public void serve() throws IOException {
+        try {
+            while (true) {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (SocketException e) {
+                    // Closed by a shutdown request
+                    break;
+                }
+                workers.execute(() -> handle(socket));
+            }
+        } finally {
+            workers.shutdown();
+            Files.deleteIfExists(portFile);
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            if (!in.readUTF().equals(token))
+                return;
+            String command = in.readUTF();
+            Path directory = Paths.get(in.readUTF());
+            String[] args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++)
+                args[i] = in.readUTF();
+            byte[] stdin = new byte[in.readInt()];
+            in.readFully(stdin);
+
+            ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+            ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+            int status;
+            try (PrintStream outStream = new PrintStream(stdout); PrintStream errStream = new PrintStream(stderr)) {
+                status = execute(command, directory, args, stdin, outStream, errStream);
+            }
+
+            out.writeInt(stdout.size());
+            stdout.writeTo(out);
+            out.writeInt(stderr.size());
+            stderr.writeTo(out);
+            out.writeInt(status);
+            out.flush();
+
+            if (command.equals(SHUTDOWN))
+                server.close();
+        } catch (IOException e) {
+            // The client went away
+        }
+    }
+
+    private int execute(String command, Path directory, String[] args, byte[] stdin, PrintStream out, PrintStream err) {
+        try {
+            switch (command) {
+                case RUN:
+                    return run(directory, args, stdin, out, err);
+                case OPTIMIZE:
+                    return optimize(directory, args, out, err);
+                case SHUTDOWN:
+                    return 0;
+                default:
+                    err.println("Unknown command '" + command + "'");
+                    return 1;
+            }
+        } catch (Exception | StackOverflowError e) {
+            // Reported like an uncaught exception of the command line tools
+            err.println("Exception in thread \"main\" " + e);
+            return 1;
+        }
+    }
+
+    private int run(Path directory, String[] args, byte[] stdin, PrintStream out, PrintStream err) throws Exception {
+        IRInterpreter.Options options = IRInterpreter.Options.parse(args);
+        String problem = options.validate();
+        if (problem != null) {
+            err.println(problem);
+            return 1;
+        }
+        options.resolve(directory);
+
+        IRInterpreter interpreter = getTemplate(options).fork();
+        interpreter.setStandardStreams(new ByteArrayInputStream(stdin), out, err);
+        return IRInterpreter.execute(options, interpreter, out, err);
+    }
+
+    /**
+     * Returns a prepared interpreter for the file and settings, parsing and compiling it unless the
+     * cached one is still up to date
+     */
+    private IRInterpreter getTemplate(IRInterpreter.Options options) throws IOException, IRException {
+        Path file = Paths.get(options.filename);
+        if (!Files.isRegularFile(file))
+            throw new FileNotFoundException(options.filename);
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        long size = Files.size(file);
+        String key = file.toAbsolutePath().normalize() + "\n" + options.getSettingsKey();
+
+        CachedProgram cached = programs.get(key);
+        if (cached != null && cached.modified == modified && cached.size == size)
+            return cached.template;
+
+        cached = new CachedProgram();
+        cached.modified = modified;
+        cached.size = size;
+        cached.template = new IRInterpreter(options.filename);
+        options.configure(cached.template);
+        cached.template.prepare();
+        programs.put(key, cached);
+        return cached.template;
+    }
+
+    private int optimize(Path directory, String[] args, PrintStream out, PrintStream err) throws Exception {
+        Optimizer.Options options = Optimizer.Options.parse(args);
+        String problem = options.validate();
+        if (problem != null) {
+            err.println(problem);
+            return 1;
+        }
+        options.resolve(directory);
+        Optimizer.execute(options, out);
+        return 0;
+    }
+
+}
@@ -1,46 +1,397 @@
 import ir.*;
 import ir.datatype.IRArrayType;
+import ir.datatype.IRFloatType;
 import ir.datatype.IRIntType;
 import ir.datatype.IRType;
 import ir.operand.*;
+import jit.JitCompiler;
+import jit.JitExecutor;
+import jit.JitProgram;
+import runtime.BufferedIO;
+import runtime.IntrinsicIO;
+import runtime.ScannerIO;
+import vm.BytecodeCompiler;
+import vm.CompiledProgram;
+import vm.FusionTable;
+import vm.VirtualMachine;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 
 public class IRInterpreter {
 
+    public enum Engine {
+        TREE, BYTECODE, JIT
+    }
+
+    /**
+     * Backend for the intrinsic I/O functions
+     */
+    public enum IOMode {
+        SCANNER, BUFFERED, MAPPED
+    }
+
+    /**
+     * Command line options of main, parsed once so that the daemon can serve run requests the same way
+     */
+    public static class Options {
+        public Engine engine = Engine.TREE;
+        public boolean countInstructions = true;
+        public FusionTable fusionTable = FusionTable.DEFAULT;
+        public String fusion = "all";
+        public boolean profileFusion = false;
+        public IOMode ioMode = IOMode.SCANNER;
+        public String profilePrefix;
+        public String batchDir;
+        public int jobs = Runtime.getRuntime().availableProcessors();
+        public String reportFile;
+        public String reportColumn = "O";
+        public String filename;
+        // First option that is not recognized
+        public String unknownOption;
+
+        public static final String USAGE = "Usage: IRInterpreter [--engine=tree|bytecode|jit] [--no-counters] [--fusion=all|none|<pairs>] [--fusion-profile] [--io=scanner|buffered|mapped] [--profile=<prefix>]"
+                + " [--batch=<dir> [--jobs=<n>] [--report=<file.csv>] [--column=<name>]] <file.ir>";
+
+        /**
+         * Parses the arguments. As in the original main, the first file name is run and any further
+         * ones are ignored.
+         */
+        public static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                if (arg.startsWith("--engine="))
+                    options.engine = Engine.valueOf(arg.substring("--engine=".length()).toUpperCase());
+                else if (arg.equals("--no-counters"))
+                    options.countInstructions = false;
+                else if (arg.startsWith("--fusion=")) {
+                    options.fusion = arg.substring("--fusion=".length());
+                    options.fusionTable = FusionTable.parse(options.fusion);
+                } else if (arg.equals("--fusion-profile"))
+                    options.profileFusion = true;
+                else if (arg.startsWith("--io="))
+                    options.ioMode = IOMode.valueOf(arg.substring("--io=".length()).toUpperCase());
+                else if (arg.startsWith("--profile="))
+                    options.profilePrefix = arg.substring("--profile=".length());
+                else if (arg.startsWith("--batch="))
+                    options.batchDir = arg.substring("--batch=".length());
+                else if (arg.startsWith("--jobs="))
+                    options.jobs = Integer.parseInt(arg.substring("--jobs=".length()));
+                else if (arg.startsWith("--report="))
+                    options.reportFile = arg.substring("--report=".length());
+                else if (arg.startsWith("--column="))
+                    options.reportColumn = arg.substring("--column=".length());
+                else if (arg.startsWith("--")) {
+                    if (options.unknownOption == null)
+                        options.unknownOption = arg;
+                } else if (options.filename == null)
+                    options.filename = arg;
+            }
+            return options;
+        }
+
+        /**
+         * Returns why the options cannot be run, or null if they can
+         */
+        public String validate() {
+            if (unknownOption != null)
+                return String.format("Unknown option '%s'%n%s", unknownOption, USAGE);
+            if (filename == null)
+                return USAGE;
+            if (profilePrefix != null && (engine != Engine.TREE || batchDir != null))
+                return "--profile is only supported for single runs of the tree engine";
+            return null;
+        }
+
+        /**
+         * Resolves the file names against a working directory
+         */
+        public void resolve(Path directory) {
+            filename = filename == null ? null : directory.resolve(filename).toString();
+            profilePrefix = profilePrefix == null ? null : directory.resolve(profilePrefix).toString();
+            batchDir = batchDir == null ? null : directory.resolve(batchDir).toString();
+            reportFile = reportFile == null ? null : directory.resolve(reportFile).toString();
+        }
+
+        /**
+         * Identifies the settings applied by configure
+         */
+        public String getSettingsKey() {
+            return engine + " " + countInstructions + " " + fusion + " " + profileFusion + " " + ioMode + " " + (profilePrefix != null);
+        }
+
+        public void configure(IRInterpreter interpreter) {
+            interpreter.setEngine(engine);
+            interpreter.setCountInstructions(countInstructions);
+            interpreter.setFusionTable(fusionTable);
+            interpreter.setProfileFusion(profileFusion);
+            interpreter.setIOMode(ioMode);
+            interpreter.setProfiling(profilePrefix != null);
+        }
+    }
+
     public static void main(String[] args) throws Exception {
-        IRInterpreter irInterpreter = new IRInterpreter(args[0]);
+        Options options = Options.parse(args);
+        String problem = options.validate();
+        if (problem != null) {
+            System.err.println(problem);
+            System.exit(1);
+        }
+
+        IRInterpreter irInterpreter = new IRInterpreter(options.filename);
+        options.configure(irInterpreter);
+        int status = execute(options, irInterpreter, System.out, System.err);
+        if (status != 0)
+            System.exit(status);
+    }
 
-        irInterpreter.run();
+    /**
+     * Runs a configured interpreter as main does and returns the exit status. Single runs read the
+     * interpreter's standard streams; out and err receive the reports.
+     */
+    static int execute(Options options, IRInterpreter irInterpreter, PrintStream out, PrintStream err) throws Exception {
+        if (options.batchDir != null) {
+            IRBatchRunner batchRunner = new IRBatchRunner(irInterpreter, options.jobs);
+            List<IRBatchRunner.Result> results = batchRunner.run(Paths.get(options.batchDir));
+            PrintWriter report = options.reportFile == null ? new PrintWriter(out) : new PrintWriter(options.reportFile);
+            try {
+                IRBatchRunner.writeReport(results, options.reportColumn, report);
+            } finally {
+                if (options.reportFile != null)
+                    report.close();
+            }
+            return IRBatchRunner.printSummary(results, err) ? 0 : 1;
+        }
+
+        try {
+            irInterpreter.run();
+        } finally {
+            IRProfile profile = irInterpreter.getProfile();
+            if (profile != null) {
+                try (PrintWriter csv = new PrintWriter(options.profilePrefix + ".csv");
+                     PrintWriter stacks = new PrintWriter(options.profilePrefix + ".folded")) {
+                    profile.writeCsv(csv);
+                    profile.writeCollapsedStacks(stacks);
+                }
+            }
+        }
 
         Stats stats = irInterpreter.getStats();
-        System.err.println("Number of non-label instructions executed: " + stats.getNonLabelInstructionCount());
+        if (stats != null)
+            err.println("Number of non-label instructions executed: " + stats.getNonLabelInstructionCount());
+        List<String> fusionProfile = irInterpreter.getFusionProfile();
+        if (fusionProfile != null) {
+            err.println("Adjacent bytecode pairs by executions:");
+            for (String line : fusionProfile)
+                err.println(line);
+        }
+        return 0;
     }
 
     private class StackFrame {
         public IRFunction caller;
         public IRInstruction callInst;
         public int returnInstIdx;
+        public int retSlot;
         public IRFunction function;
-        public Map<String, Object> varMap;
+        public FunctionInfo info;
+        // Profile of the function and node of the current call stack, when profiling
+        public IRProfile.FunctionProfile functionProfile;
+        public IRProfile.StackNode profileNode;
+        public int[] ints;
+        public float[] floats;
+        // int[], float[] or PagedArray; null for a local array that has not been written yet
+        public Object[] arrays;
+        // Local arrays owned by the frame and the function they were allocated for, reused when
+        // the next call at the same depth is to the same function
+        public Object[] localArrays;
+        public FunctionInfo localArraysInfo;
+    }
+
+    /**
+     * Local array of at least PAGED_ARRAY_SIZE elements, stored in pages that are allocated on their
+     * first non-zero write. Pages that were never written read as zero.
+     */
+    private static class PagedArray {
+        private static final int PAGE_BITS = 10;
+        private static final int PAGE_SIZE = 1 << PAGE_BITS;
+        private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+        public final int length;
+        private final int[][] intPages;
+        private final float[][] floatPages;
+
+        public PagedArray(int length, boolean isFloat) {
+            this.length = length;
+            int pageCount = (length + PAGE_MASK) >>> PAGE_BITS;
+            intPages = isFloat ? null : new int[pageCount][];
+            floatPages = isFloat ? new float[pageCount][] : null;
+        }
+
+        public int getInt(int i) {
+            int[] page = intPages[i >>> PAGE_BITS];
+            return page == null ? 0 : page[i & PAGE_MASK];
+        }
 
-        public Object getVal(IRVariableOperand variable) {
-            return varMap.get(variable.getName());
+        public float getFloat(int i) {
+            float[] page = floatPages[i >>> PAGE_BITS];
+            return page == null ? 0 : page[i & PAGE_MASK];
         }
 
-        public void setVal(IRVariableOperand variable, Object val) {
-            varMap.put(variable.getName(), val);
+        public void setInt(int i, int value) {
+            int[] page = intPages[i >>> PAGE_BITS];
+            if (page == null) {
+                if (value == 0)
+                    return;
+                page = intPages[i >>> PAGE_BITS] = new int[PAGE_SIZE];
+            }
+            page[i & PAGE_MASK] = value;
+        }
+
+        public void setFloat(int i, float value) {
+            float[] page = floatPages[i >>> PAGE_BITS];
+            if (page == null) {
+                // -0.0 has to be stored
+                if (Float.floatToRawIntBits(value) == 0)
+                    return;
+                page = floatPages[i >>> PAGE_BITS] = new float[PAGE_SIZE];
+            }
+            page[i & PAGE_MASK] = value;
+        }
+
+        /**
+         * Sets the first n elements
+         */
+        public void fillInt(int n, int value) {
+            for (int p = 0; p << PAGE_BITS < n; p++) {
+                int end = Math.min(PAGE_SIZE, n - (p << PAGE_BITS));
+                if (value == 0 && end == PAGE_SIZE)
+                    intPages[p] = null;
+                else if (intPages[p] != null || value != 0)
+                    Arrays.fill(intPages[p] == null ? intPages[p] = new int[PAGE_SIZE] : intPages[p], 0, end, value);
+            }
+        }
+
+        public void fillFloat(int n, float value) {
+            boolean zero = Float.floatToRawIntBits(value) == 0;
+            for (int p = 0; p << PAGE_BITS < n; p++) {
+                int end = Math.min(PAGE_SIZE, n - (p << PAGE_BITS));
+                if (zero && end == PAGE_SIZE)
+                    floatPages[p] = null;
+                else if (floatPages[p] != null || !zero)
+                    Arrays.fill(floatPages[p] == null ? floatPages[p] = new float[PAGE_SIZE] : floatPages[p], 0, end, value);
+            }
+        }
+
+        public void clear() {
+            if (intPages != null)
+                Arrays.fill(intPages, null);
+            else
+                Arrays.fill(floatPages, null);
+        }
+    }
+
+    private enum Intrinsic {
+        GETI, GETF, GETC, PUTI, PUTF, PUTC
+    }
+
+    /**
+     * An instruction after linking: variables are resolved to frame slots, constants are decoded,
+     * branch targets are instruction indices and callees are bound. LABEL instructions are not part
+     * of the linked code; instead every instruction records how many labels execution passes when
+     * it falls through or jumps, so they are still counted.
+     */
+    private static class LinkedInstruction {
+        public IRInstruction source;
+        public IRInstruction.OpCode opCode;
+        public IROperand[] operands;
+        // Whether the instruction computes on float values
+        public boolean isFloat;
+        // Slot of each operand, -1 for non-variable operands
+        public int[] slots;
+        // Decoded value of each constant operand
+        public int[] intConstants;
+        public float[] floatConstants;
+        // Index of the branch target in the linked code
+        public int target;
+        // Callee of a call, or the intrinsic if it does not name a program function
+        public FunctionInfo callee;
+        public Intrinsic intrinsic;
+        // Labels passed when falling through to the next instruction or jumping to the target
+        public int fallThroughLabels;
+        public int targetLabels;
+    }
+
+    /**
+     * Load-time layout of a function: every parameter/local gets a fixed slot in the frame
+     * and every variable operand is resolved to its slot, so execution needs no name lookups.
+     * Int scalars, float scalars and arrays live in separate primitive-typed slot spaces.
+     */
+    private class FunctionInfo {
+        public IRFunction function;
+        public Map<String, Integer> slotMap;
+        public int intCount;
+        public int floatCount;
+        public IRArrayType[] arrayTypes;
+        public int[] paramSlots;
+        // INT_SLOT, FLOAT_SLOT or ARRAY_SLOT for each parameter
+        public int[] paramKinds;
+        // Array slots that are not parameters
+        public int[] localArraySlots;
+        public LinkedInstruction[] code;
+        // Labels at the start of the function, passed on entry
+        public int entryLabels;
+
+        public FunctionInfo(IRFunction function) {
+            this.function = function;
+
+            slotMap = new HashMap<>();
+            List<IRArrayType> arrayTypeList = new ArrayList<>();
+            for (IRVariableOperand variable : function.variables) {
+                if (variable.type instanceof IRArrayType) {
+                    slotMap.put(variable.getName(), arrayTypeList.size());
+                    arrayTypeList.add((IRArrayType) variable.type);
+                } else if (variable.type == IRIntType.get())
+                    slotMap.put(variable.getName(), intCount++);
+                else
+                    slotMap.put(variable.getName(), floatCount++);
+            }
+            arrayTypes = arrayTypeList.toArray(new IRArrayType[0]);
+
+            paramSlots = new int[function.parameters.size()];
+            paramKinds = new int[paramSlots.length];
+            boolean[] isParamArray = new boolean[arrayTypes.length];
+            for (int i = 0; i < paramSlots.length; i++) {
+                IRType type = function.parameters.get(i).type;
+                paramSlots[i] = slotMap.get(function.parameters.get(i).getName());
+                if (type instanceof IRArrayType) {
+                    paramKinds[i] = ARRAY_SLOT;
+                    isParamArray[paramSlots[i]] = true;
+                } else {
+                    paramKinds[i] = type == IRIntType.get() ? INT_SLOT : FLOAT_SLOT;
+                }
+            }
+            localArraySlots = new int[arrayTypes.length];
+            int localArrayCount = 0;
+            for (int slot = 0; slot < arrayTypes.length; slot++) {
+                if (!isParamArray[slot])
+                    localArraySlots[localArrayCount++] = slot;
+            }
+            localArraySlots = Arrays.copyOf(localArraySlots, localArrayCount);
         }
     }
 
     private class ProgramCounter {
-        private ArrayList<IRInstruction> currentInstList;
+        private LinkedInstruction[] currentCode;
         private int nextIdx;
 
-        public void set(ArrayList<IRInstruction> instList, int nextIdx) {
-            this.currentInstList = instList;
+        public void set(LinkedInstruction[] code, int nextIdx) {
+            this.currentCode = code;
             this.nextIdx = nextIdx;
         }
 
@@ -52,62 +403,157 @@ public class IRInterpreter {
             return nextIdx;
         }
 
-        private IRInstruction next() {
-            IRInstruction inst = currentInstList.get(nextIdx);
+        private LinkedInstruction next() {
+            LinkedInstruction inst = currentCode[nextIdx];
             nextIdx++;
             return inst;
         }
 
         private boolean hasNext() {
-            return nextIdx < currentInstList.size();
+            return nextIdx < currentCode.length;
         }
     }
 
     public class Stats {
-        public int totalInstructionCount;
-        public Map<IRInstruction.OpCode, Integer> instructionCounts;
+        // Executed instructions per opcode, indexed by OpCode ordinal
+        public long[] instructionCounts;
 
         public Stats() {
-            totalInstructionCount = 0;
-            instructionCounts = new HashMap<>();
-            for (IRInstruction.OpCode opCode : IRInstruction.OpCode.values())
-                instructionCounts.put(opCode, 0);
+            instructionCounts = new long[IRInstruction.OpCode.values().length];
+        }
+
+        public Stats(long[] counts) {
+            instructionCounts = counts.clone();
+        }
+
+        public void update(IRInstruction.OpCode opCode) {
+            instructionCounts[opCode.ordinal()]++;
+        }
+
+        /**
+         * Counts labels passed by control flow, which are not executed as instructions
+         */
+        public void updateLabels(int count) {
+            instructionCounts[LABEL_ORDINAL] += count;
         }
 
-        public void update(IRInstruction instruction) {
-            totalInstructionCount += 1;
-            int current = instructionCounts.get(instruction.opCode);
-            instructionCounts.put(instruction.opCode, current + 1);
+        public long getInstructionCount(IRInstruction.OpCode opCode) {
+            return instructionCounts[opCode.ordinal()];
         }
 
-        public int getNonLabelInstructionCount() {
-            return totalInstructionCount - instructionCounts.get(IRInstruction.OpCode.LABEL);
+        public long getTotalInstructionCount() {
+            long total = 0;
+            for (long count : instructionCounts)
+                total += count;
+            return total;
+        }
+
+        public long getNonLabelInstructionCount() {
+            return getTotalInstructionCount() - instructionCounts[LABEL_ORDINAL];
         }
     }
 
+    private static final int LABEL_ORDINAL = IRInstruction.OpCode.LABEL.ordinal();
+
+    private static final int INT_SLOT = 0;
+    private static final int FLOAT_SLOT = 1;
+    private static final int ARRAY_SLOT = 2;
+
+    // Local arrays with at least this many elements are paged
+    private static final int PAGED_ARRAY_SIZE = 1 << 16;
+
     // Program information
     private IRProgram program;
+    private Engine engine = Engine.TREE;
+    private boolean countInstructions = true;
+    private FusionTable fusionTable = FusionTable.DEFAULT;
+    private boolean profileFusion = false;
+    private List<String> fusionProfile;
     private Map<String, IRFunction> functionMap;
-    private Map<IRFunction, Map<String, Integer>> functionLabelMap;
+    private Map<IRFunction, FunctionInfo> functionInfoMap;
+
+    // Program compiled for the bytecode or JIT engine, shared with forked interpreters
+    private CompiledProgram compiledProgram;
+    private JitProgram jitProgram;
+    // Whether the JIT compiler turned the program down
+    private boolean jitTooLarge;
 
     // Execution state
-    private Stack<StackFrame> stack;
+    private ArrayDeque<StackFrame> stack;
+    // Frame for each call depth, reused by every call at that depth
+    private ArrayList<StackFrame> framePool;
     private ProgramCounter pc;
-    private Map<String, Integer> currentLabelMap;
 
-    private Scanner stdinScanner;
+    private IOMode ioMode = IOMode.SCANNER;
+    private InputStream stdin = System.in;
+    private PrintStream stdout = System.out;
+    private PrintStream stderr = System.err;
+    private IntrinsicIO io;
 
     private Stats stats;
 
-    public IRInterpreter(String filename) throws FileNotFoundException, IRException {
+    private boolean profiling = false;
+    private IRProfile profile;
+    private Map<FunctionInfo, IRProfile.FunctionProfile> functionProfiles;
+    // Instruction counts and call stack node of the current function, when profiling
+    private long[] currentProfileCounts;
+    private IRProfile.StackNode currentProfileNode;
+
+    public IRInterpreter(String filename) throws IOException, IRException {
         IRReader irReader = new IRReader();
-        program = irReader.parseIRFile(filename);
+        program = irReader.readIRFile(filename);
         initProgram();
     }
 
+    private IRInterpreter(IRInterpreter other) {
+        program = other.program;
+        functionMap = other.functionMap;
+        functionInfoMap = other.functionInfoMap;
+        compiledProgram = other.compiledProgram;
+        jitProgram = other.jitProgram;
+        jitTooLarge = other.jitTooLarge;
+        engine = other.engine;
+        countInstructions = other.countInstructions;
+        fusionTable = other.fusionTable;
+        profileFusion = other.profileFusion;
+        ioMode = other.ioMode;
+        profiling = other.profiling;
+    }
+
+    /**
+     * Creates an interpreter with the same settings for another run of the program. The parsed,
+     * linked and compiled program is shared, so forks can run concurrently; execution state and
+     * standard streams are not.
+     */
+    public IRInterpreter fork() {
+        return new IRInterpreter(this);
+    }
+
+    /**
+     * Compiles the program for the selected engine unless that has been done already. A program
+     * with a function too large for a JVM method runs on the bytecode engine under --engine=jit.
+     */
+    public void prepare() throws IRException {
+        if (engine == Engine.JIT && jitProgram == null && !jitTooLarge) {
+            jitProgram = new JitCompiler(countInstructions).compile(program);
+            jitTooLarge = jitProgram == null;
+        }
+        if ((engine == Engine.BYTECODE || engine == Engine.JIT && jitTooLarge) && compiledProgram == null)
+            compiledProgram = new BytecodeCompiler(profileFusion ? FusionTable.NONE : fusionTable).compile(program);
+    }
+
+    /**
+     * Streams used instead of System.in, System.out and System.err by the next run
+     */
+    public void setStandardStreams(InputStream in, PrintStream out, PrintStream err) {
+        this.stdin = in;
+        this.stdout = out;
+        this.stderr = err;
+    }
+
     private void initProgram() {
         functionMap = new HashMap<>();
-        functionLabelMap = new HashMap<>();
+        functionInfoMap = new HashMap<>();
         for (IRFunction function : program.functions) {
             functionMap.put(function.name, function);
 
@@ -115,45 +561,354 @@ public class IRInterpreter {
             if (!(function.instructions instanceof ArrayList))
                 function.instructions = new ArrayList<>(function.instructions);
 
-            Map<String, Integer> labelMap = new HashMap<>();
-            for (int i = 0; i < function.instructions.size(); i++) {
-                IRInstruction instruction = function.instructions.get(i);
-                if (instruction.opCode == IRInstruction.OpCode.LABEL)
-                    labelMap.put(((IRLabelOperand) instruction.operands[0]).getName(), i);
+            functionInfoMap.put(function, new FunctionInfo(function));
+        }
+        for (FunctionInfo info : functionInfoMap.values())
+            link(info);
+    }
+
+    /**
+     * Builds the linked code of a function. Labels are dropped from the code and branches target
+     * the instruction following the label instead.
+     */
+    private void link(FunctionInfo info) {
+        List<IRInstruction> instructions = info.function.instructions;
+
+        // Index in the linked code of each label and the number of labels from it up to that index
+        Map<String, Integer> labelIndices = new HashMap<>();
+        Map<String, Integer> labelRuns = new HashMap<>();
+        List<String> pendingLabels = new ArrayList<>();
+        List<Integer> labelsBefore = new ArrayList<>();
+        int size = 0;
+        for (int i = 0; i <= instructions.size(); i++) {
+            if (i < instructions.size() && instructions.get(i).opCode == IRInstruction.OpCode.LABEL) {
+                pendingLabels.add(((IRLabelOperand) instructions.get(i).operands[0]).getName());
+                continue;
+            }
+            for (int j = 0; j < pendingLabels.size(); j++) {
+                labelIndices.put(pendingLabels.get(j), size);
+                labelRuns.put(pendingLabels.get(j), pendingLabels.size() - j);
             }
-            functionLabelMap.put(function, labelMap);
+            labelsBefore.add(pendingLabels.size());
+            pendingLabels.clear();
+            size++;
+        }
+        size--;
+
+        info.entryLabels = labelsBefore.get(0);
+        info.code = new LinkedInstruction[size];
+        int idx = 0;
+        for (IRInstruction instruction : instructions) {
+            if (instruction.opCode == IRInstruction.OpCode.LABEL)
+                continue;
+            LinkedInstruction inst = linkInstruction(instruction, info.slotMap);
+            inst.fallThroughLabels = labelsBefore.get(idx + 1);
+            if (instruction.operands.length > 0 && instruction.operands[0] instanceof IRLabelOperand) {
+                String label = ((IRLabelOperand) instruction.operands[0]).getName();
+                inst.target = labelIndices.get(label);
+                inst.targetLabels = labelRuns.get(label);
+            }
+            info.code[idx++] = inst;
+        }
+    }
+
+    private LinkedInstruction linkInstruction(IRInstruction instruction, Map<String, Integer> slotMap) {
+        LinkedInstruction inst = new LinkedInstruction();
+        inst.source = instruction;
+        inst.opCode = instruction.opCode;
+        inst.operands = instruction.operands;
+        inst.isFloat = isFloatInstruction(instruction);
+        inst.slots = resolveSlots(instruction, slotMap);
+
+        inst.intConstants = new int[instruction.operands.length];
+        inst.floatConstants = new float[instruction.operands.length];
+        for (int i = 0; i < instruction.operands.length; i++) {
+            IROperand operand = instruction.operands[i];
+            if (!(operand instanceof IRConstantOperand))
+                continue;
+            String value = ((IRConstantOperand) operand).getValueString();
+            if (((IRConstantOperand) operand).type == IRIntType.get())
+                inst.intConstants[i] = Integer.parseInt(value);
+            inst.floatConstants[i] = Float.parseFloat(value);
+        }
+
+        int calleeOperand = instruction.opCode == IRInstruction.OpCode.CALL ? 0
+                : instruction.opCode == IRInstruction.OpCode.CALLR ? 1 : -1;
+        if (calleeOperand >= 0) {
+            String calleeName = ((IRFunctionOperand) instruction.operands[calleeOperand]).getName();
+            IRFunction callee = functionMap.get(calleeName);
+            if (callee != null)
+                inst.callee = functionInfoMap.get(callee);
+            else
+                inst.intrinsic = getIntrinsic(calleeName);
+        }
+        return inst;
+    }
+
+    private static Intrinsic getIntrinsic(String name) {
+        switch (name) {
+            case "geti":
+                return Intrinsic.GETI;
+            case "getf":
+                return Intrinsic.GETF;
+            case "getc":
+                return Intrinsic.GETC;
+            case "puti":
+                return Intrinsic.PUTI;
+            case "putf":
+                return Intrinsic.PUTF;
+            case "putc":
+                return Intrinsic.PUTC;
+            default:
+                // Reported as an undefined reference if the call is executed
+                return null;
+        }
+    }
+
+    private static int[] resolveSlots(IRInstruction instruction, Map<String, Integer> slotMap) {
+        int[] slots = new int[instruction.operands.length];
+        for (int i = 0; i < slots.length; i++) {
+            IROperand operand = instruction.operands[i];
+            if (operand instanceof IRVariableOperand)
+                slots[i] = slotMap.get(((IRVariableOperand) operand).getName());
+            else
+                slots[i] = -1;
+        }
+        return slots;
+    }
+
+    private static IRType getDataType(IROperand operand) {
+        if (operand instanceof IRVariableOperand)
+            return ((IRVariableOperand) operand).type;
+        if (operand instanceof IRConstantOperand)
+            return ((IRConstantOperand) operand).type;
+        return null;
+    }
+
+    private static boolean isFloatType(IRType type) {
+        if (type instanceof IRArrayType)
+            type = ((IRArrayType) type).getElementType();
+        return type == IRFloatType.get();
+    }
+
+    private static boolean isFloatInstruction(IRInstruction instruction) {
+        switch (instruction.opCode) {
+            case ASSIGN:
+            case ADD:
+            case SUB:
+            case MULT:
+            case DIV:
+            case AND:
+            case OR:
+            case RETURN:
+                return isFloatType(getDataType(instruction.operands[0]));
+            case BREQ:
+            case BRNEQ:
+            case BRLT:
+            case BRGT:
+            case BRLEQ:
+            case BRGEQ:
+            case ARRAY_STORE:
+            case ARRAY_LOAD:
+                return isFloatType(getDataType(instruction.operands[1]));
+            default:
+                return false;
+        }
+    }
+
+    private void enterFunction(StackFrame sf, int nextIdx) {
+        pc.set(sf.info.code, nextIdx);
+        if (profiling) {
+            currentProfileCounts = sf.functionProfile.counts;
+            currentProfileNode = sf.profileNode;
+        }
+    }
+
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Whether the JIT engine maintains instruction counters; the other engines always count
+     */
+    public void setCountInstructions(boolean countInstructions) {
+        this.countInstructions = countInstructions;
+        jitProgram = null;
+    }
+
+    /**
+     * Superinstructions formed by the bytecode engine
+     */
+    public void setFusionTable(FusionTable fusionTable) {
+        this.fusionTable = fusionTable;
+        compiledProgram = null;
+    }
+
+    /**
+     * Makes the bytecode engine run unfused with offset profiling and ranks adjacent instruction pairs,
+     * to find candidates for new superinstructions
+     */
+    public void setProfileFusion(boolean profileFusion) {
+        this.profileFusion = profileFusion;
+        compiledProgram = null;
+    }
+
+    public List<String> getFusionProfile() {
+        return fusionProfile;
+    }
+
+    /**
+     * Makes the tree engine record an IRProfile of the next run
+     */
+    public void setProfiling(boolean profiling) {
+        this.profiling = profiling;
+    }
+
+    public IRProfile getProfile() {
+        return profile;
+    }
+
+    private void startProfile(StackFrame entrySF) {
+        profile = new IRProfile();
+        functionProfiles = new HashMap<>();
+        for (IRFunction function : program.functions) {
+            FunctionInfo info = functionInfoMap.get(function);
+            int[] lineNumbers = new int[info.code.length];
+            for (int i = 0; i < lineNumbers.length; i++)
+                lineNumbers[i] = info.code[i].source.irLineNumber;
+            functionProfiles.put(info, profile.addFunction(function.name, lineNumbers, getBlockStarts(info)));
+        }
+        entrySF.profileNode = profile.getRoot();
+        currentProfileNode = profile.getRoot();
+    }
+
+    /**
+     * Leaders of the basic blocks of the linked code: the first instruction, branch targets and
+     * instructions following a branch or return
+     */
+    private static int[] getBlockStarts(FunctionInfo info) {
+        boolean[] leaders = new boolean[info.code.length + 1];
+        leaders[0] = true;
+        for (int i = 0; i < info.code.length; i++) {
+            LinkedInstruction inst = info.code[i];
+            switch (inst.opCode) {
+                case GOTO:
+                case BREQ:
+                case BRNEQ:
+                case BRLT:
+                case BRGT:
+                case BRLEQ:
+                case BRGEQ:
+                    leaders[inst.target] = true;
+                    leaders[i + 1] = true;
+                    break;
+                case RETURN:
+                    leaders[i + 1] = true;
+                    break;
+            }
+        }
+        int count = 0;
+        for (int i = 0; i < info.code.length; i++)
+            count += leaders[i] ? 1 : 0;
+        int[] starts = new int[count];
+        count = 0;
+        for (int i = 0; i < info.code.length; i++) {
+            if (leaders[i])
+                starts[count++] = i;
+        }
+        return starts;
+    }
+
+    public void setIOMode(IOMode ioMode) {
+        this.ioMode = ioMode;
+    }
+
+    private IntrinsicIO createIO() {
+        switch (ioMode) {
+            case MAPPED:
+                if (stdin == System.in)
+                    return BufferedIO.mapStandardInput(stdout);
+                return new BufferedIO(stdin, stdout);
+            case BUFFERED:
+                return new BufferedIO(stdin, stdout);
+            default:
+                return new ScannerIO(stdin, stdout);
         }
     }
 
     public void run() throws IRException {
+        prepare();
+        if (engine == Engine.JIT && !jitTooLarge) {
+            JitExecutor executor = new JitExecutor(jitProgram);
+            executor.setErrorStream(stderr);
+            try {
+                executor.run(createIO());
+            } finally {
+                long[] counts = executor.getInstructionCounts();
+                stats = counts == null ? null : new Stats(counts);
+            }
+            return;
+        }
+        if (engine == Engine.BYTECODE || engine == Engine.JIT) {
+            VirtualMachine vm = new VirtualMachine(compiledProgram);
+            vm.setProfileOffsets(profileFusion);
+            vm.setErrorStream(stderr);
+            try {
+                vm.run(createIO());
+            } finally {
+                stats = new Stats(vm.getInstructionCounts());
+                if (profileFusion && vm.getOffsetCounts() != null)
+                    fusionProfile = FusionTable.rankPairs(compiledProgram, vm.getOffsetCounts());
+            }
+            return;
+        }
+
         // Add an entry call to main
         IRFunctionOperand mainFunctionOperand = new IRFunctionOperand("main", null);
         IRInstruction entryCall = new IRInstruction(IRInstruction.OpCode.CALL, new IROperand[]{mainFunctionOperand}, -1);
-        ArrayList<IRInstruction> entryInstList = new ArrayList<>();
-        entryInstList.add(entryCall);
+        LinkedInstruction linkedEntryCall = linkInstruction(entryCall, Collections.emptyMap());
         pc = new ProgramCounter();
-        pc.set(entryInstList, 0);
+        pc.set(new LinkedInstruction[]{linkedEntryCall}, 0);
 
-        stack = new Stack<>();
+        stack = new ArrayDeque<>();
+        framePool = new ArrayList<>();
         StackFrame entrySF = new StackFrame();
+        framePool.add(entrySF);
         stack.push(entrySF);
 
         // Do not count the entry call
         stats = new Stats();
-        stats.totalInstructionCount = -1;
-        stats.instructionCounts.put(IRInstruction.OpCode.CALL, -1);
+        stats.instructionCounts[IRInstruction.OpCode.CALL.ordinal()] = -1;
 
-        stdinScanner = new Scanner(System.in);
+        profile = null;
+        currentProfileCounts = null;
+        if (profiling)
+            startProfile(entrySF);
+
+        io = createIO();
+        try {
+            execute(entrySF);
+        } finally {
+            io.close();
+        }
+    }
 
-        while (true) {
-            IRInstruction instruction = pc.next();
-            executeInstruction(instruction);
+    private void execute(StackFrame entrySF) throws IRException {
+        boolean running = true;
+        while (running) {
+            if (currentProfileCounts != null) {
+                currentProfileCounts[pc.getNextIdx()]++;
+                currentProfileNode.instructions++;
+            }
+            executeInstruction(pc.next());
 
-            if (!pc.hasNext()) {
-                // Return from a procedure
+            // Return from procedures, possibly several when a call is the last instruction of its caller
+            while (!pc.hasNext()) {
                 StackFrame sf = stack.pop();
-                if (stack.peek() == entrySF) // Exit main
+                if (stack.peek() == entrySF) { // Exit main
+                    running = false;
                     break;
+                }
                 IRFunction caller = sf.caller;
 
                 if (caller.returnType != null)
@@ -161,115 +916,142 @@ public class IRInterpreter {
                             caller.instructions.get(caller.instructions.size() - 1),
                             "Missing return for a function with return value");
 
-                pc.set((ArrayList<IRInstruction>) caller.instructions, sf.returnInstIdx);
-                currentLabelMap = functionLabelMap.get(caller);
+                enterFunction(stack.peek(), sf.returnInstIdx);
             }
         }
-
-        stdinScanner.close();
     }
 
     public Stats getStats() {
         return stats;
     }
 
-    private Object getConstVal(IRConstantOperand constOperand) {
-        if (constOperand.type == IRIntType.get())
-            return Integer.parseInt(constOperand.getValueString());
-        return Float.parseFloat(constOperand.getValueString());
+    private static int getIntVal(LinkedInstruction inst, int i, StackFrame sf) {
+        int slot = inst.slots[i];
+        if (slot >= 0)
+            return sf.ints[slot];
+        return inst.intConstants[i];
     }
 
-    private Object getValFromVarOrConst(IROperand operand, StackFrame sf) {
-        if (operand instanceof IRVariableOperand)
-            return sf.getVal((IRVariableOperand) operand);
-        return getConstVal((IRConstantOperand) operand);
-    }
-
-    private Object binaryOperation(IRInstruction.OpCode opCode, IRType type, Object y, Object z) {
-        if (type == IRIntType.get()) {
-            int iy = (Integer) y;
-            int iz = (Integer) z;
-            switch (opCode) {
-                case ADD:
-                    return iy + iz;
-                case SUB:
-                    return iy - iz;
-                case MULT:
-                    return iy * iz;
-                case DIV:
-                    return iy / iz;
-                case AND:
-                    return iy & iz;
-                case OR:
-                    return iy | iz;
+    private static float getFloatVal(LinkedInstruction inst, int i, StackFrame sf) {
+        int slot = inst.slots[i];
+        if (slot >= 0)
+            return sf.floats[slot];
+        return inst.floatConstants[i];
+    }
 
-                case BREQ:
-                    return iy == iz;
-                case BRNEQ:
-                    return iy != iz;
-                case BRLT:
-                    return iy < iz;
-                case BRGT:
-                    return iy > iz;
-                case BRLEQ:
-                    return iy <= iz;
-                case BRGEQ:
-                    return iy >= iz;
+    private int intOperation(IRInstruction.OpCode opCode, int y, int z) {
+        switch (opCode) {
+            case ADD:
+                return y + z;
+            case SUB:
+                return y - z;
+            case MULT:
+                return y * z;
+            case DIV:
+                return y / z;
+            case AND:
+                return y & z;
+            case OR:
+                return y | z;
+            default:
+                assert false;
+        }
+        return 0;
+    }
 
-                default:
-                    assert false;
-            }
-        } else {
-            float fy = (Float) y;
-            float fz = (Float) z;
-            switch (opCode) {
-                case ADD:
-                    return fy + fz;
-                case SUB:
-                    return fy - fz;
-                case MULT:
-                    return fy * fz;
-                case DIV:
-                    return fy / fz;
+    private float floatOperation(IRInstruction.OpCode opCode, float y, float z) {
+        switch (opCode) {
+            case ADD:
+                return y + z;
+            case SUB:
+                return y - z;
+            case MULT:
+                return y * z;
+            case DIV:
+                return y / z;
+            default:
+                assert false;
+        }
+        return 0;
+    }
 
-                case BREQ:
-                    return fy == fz;
-                case BRNEQ:
-                    return fy != fz;
-                case BRLT:
-                    return fy < fz;
-                case BRGT:
-                    return fy > fz;
-                case BRLEQ:
-                    return fy <= fz;
-                case BRGEQ:
-                    return fy >= fz;
+    private boolean intComparison(IRInstruction.OpCode opCode, int a, int b) {
+        switch (opCode) {
+            case BREQ:
+                return a == b;
+            case BRNEQ:
+                return a != b;
+            case BRLT:
+                return a < b;
+            case BRGT:
+                return a > b;
+            case BRLEQ:
+                return a <= b;
+            case BRGEQ:
+                return a >= b;
+            default:
+                assert false;
+        }
+        return false;
+    }
 
-                default:
-                    assert false;
-            }
+    private boolean floatComparison(IRInstruction.OpCode opCode, float a, float b) {
+        switch (opCode) {
+            case BREQ:
+                return a == b;
+            case BRNEQ:
+                return a != b;
+            case BRLT:
+                return a < b;
+            case BRGT:
+                return a > b;
+            case BRLEQ:
+                return a <= b;
+            case BRGEQ:
+                return a >= b;
+            default:
+                assert false;
         }
-        return null;
+        return false;
     }
 
-    private void executeInstruction(IRInstruction instruction) throws IRException {
-        stats.update(instruction);
+    private void executeInstruction(LinkedInstruction inst) throws IRException {
+        stats.update(inst.opCode);
+
+        boolean isFloat = inst.isFloat;
+        int[] slots = inst.slots;
 
         StackFrame sf = stack.peek();
-        switch (instruction.opCode) {
+        switch (inst.opCode) {
             case ASSIGN: {
-                if (instruction.operands.length > 2) { // Array assignment
-                    Object[] arr = (Object[]) getValFromVarOrConst(instruction.operands[0], sf);
-                    int assignSize = (Integer) getValFromVarOrConst(instruction.operands[1], sf);
-                    Object src = getValFromVarOrConst(instruction.operands[2], sf);
-                    if (assignSize < 0 || assignSize > arr.length)
-                        throwRuntimeException(instruction, "Out-of-bounds array access");
-                    for (int i = 0; i < assignSize; i++)
-                        arr[i] = src;
+                if (inst.operands.length > 2) { // Array assignment
+                    int assignSize = getIntVal(inst, 1, sf);
+                    if (assignSize < 0 || assignSize > getArrayLength(sf, slots[0]))
+                        throwRuntimeException(inst.source, "Out-of-bounds array access");
+                    if (isFloat) {
+                        float value = getFloatVal(inst, 2, sf);
+                        // An array that was never written is all zeros already
+                        if (sf.arrays[slots[0]] == null && Float.floatToRawIntBits(value) == 0)
+                            break;
+                        Object arr = materializeArray(sf, slots[0]);
+                        if (arr instanceof float[])
+                            Arrays.fill((float[]) arr, 0, assignSize, value);
+                        else
+                            ((PagedArray) arr).fillFloat(assignSize, value);
+                    } else {
+                        int value = getIntVal(inst, 2, sf);
+                        if (sf.arrays[slots[0]] == null && value == 0)
+                            break;
+                        Object arr = materializeArray(sf, slots[0]);
+                        if (arr instanceof int[])
+                            Arrays.fill((int[]) arr, 0, assignSize, value);
+                        else
+                            ((PagedArray) arr).fillInt(assignSize, value);
+                    }
+                } else if (isFloat) {
+                    sf.floats[slots[0]] = getFloatVal(inst, 1, sf);
                 } else {
-                    IRVariableOperand dest = (IRVariableOperand) instruction.operands[0];
-                    Object src = getValFromVarOrConst(instruction.operands[1], sf);
-                    sf.setVal(dest, src);
+                    sf.ints[slots[0]] = getIntVal(inst, 1, sf);
                 }
                 break;
             }
@@ -279,17 +1061,21 @@ public class IRInterpreter {
             case DIV:
             case AND:
             case OR: {
-                IRVariableOperand dest = (IRVariableOperand) instruction.operands[0];
-                Object y = getValFromVarOrConst(instruction.operands[1], sf);
-                Object z = getValFromVarOrConst(instruction.operands[2], sf);
-                Object x = binaryOperation(instruction.opCode, dest.type, y, z);
-                sf.setVal(dest, x);
+                if (isFloat) {
+                    float y = getFloatVal(inst, 1, sf);
+                    float z = getFloatVal(inst, 2, sf);
+                    sf.floats[slots[0]] = floatOperation(inst.opCode, y, z);
+                } else {
+                    int y = getIntVal(inst, 1, sf);
+                    int z = getIntVal(inst, 2, sf);
+                    sf.ints[slots[0]] = intOperation(inst.opCode, y, z);
+                }
                 break;
             }
             case GOTO: {
-                int targetIdx = currentLabelMap.get(((IRLabelOperand) instruction.operands[0]).getName());
-                pc.setNextIdx(targetIdx);
-                break;
+                pc.setNextIdx(inst.target);
+                stats.updateLabels(inst.targetLabels);
+                return;
             }
             case BREQ:
             case BRNEQ:
@@ -297,187 +1083,251 @@ public class IRInterpreter {
             case BRGT:
             case BRLEQ:
             case BRGEQ: {
-                int targetIdx = currentLabelMap.get(((IRLabelOperand) instruction.operands[0]).getName());
-                Object a = getValFromVarOrConst(instruction.operands[1], sf);
-                Object b = getValFromVarOrConst(instruction.operands[2], sf);
-                IRType type = ((IRVariableOperand) instruction.operands[1]).type;
-                boolean result = (Boolean) binaryOperation(instruction.opCode, type, a, b);
-                if (result)
-                    pc.setNextIdx(targetIdx);
+                boolean result;
+                if (isFloat)
+                    result = floatComparison(inst.opCode,
+                            getFloatVal(inst, 1, sf),
+                            getFloatVal(inst, 2, sf));
+                else
+                    result = intComparison(inst.opCode,
+                            getIntVal(inst, 1, sf),
+                            getIntVal(inst, 2, sf));
+                if (result) {
+                    pc.setNextIdx(inst.target);
+                    stats.updateLabels(inst.targetLabels);
+                    return;
+                }
                 break;
             }
             case RETURN: {
-                Object retVal = getValFromVarOrConst(instruction.operands[0], sf);
-                IRFunction caller = sf.caller;
                 IRInstruction callInst = sf.callInst;
                 assert callInst.opCode == IRInstruction.OpCode.CALLR;
                 stack.pop();
                 StackFrame callerSF = stack.peek();
-                IRVariableOperand retVar = (IRVariableOperand) callInst.operands[0];
-                callerSF.setVal(retVar, retVal);
-                pc.set((ArrayList<IRInstruction>) caller.instructions, sf.returnInstIdx);
-                currentLabelMap = functionLabelMap.get(caller);
-                break;
-            }
-            case CALL: {
-                ArrayList<Object> arguments = new ArrayList<>();
-                for (int i = 1; i < instruction.operands.length; i++)
-                    arguments.add(getValFromVarOrConst(instruction.operands[i], sf));
-                String calleeName = ((IRFunctionOperand) instruction.operands[0]).getName();
-                if (functionMap.containsKey(calleeName))
-                    executeCall(instruction, functionMap.get(calleeName), arguments);
+                if (isFloat)
+                    callerSF.floats[sf.retSlot] = getFloatVal(inst, 0, sf);
                 else
-                    handleIntrinsicFunction(instruction, calleeName, arguments);
-                break;
+                    callerSF.ints[sf.retSlot] = getIntVal(inst, 0, sf);
+                enterFunction(callerSF, sf.returnInstIdx);
+                return;
             }
+            case CALL:
             case CALLR: {
-                ArrayList<Object> arguments = new ArrayList<>();
-                for (int i = 2; i < instruction.operands.length; i++)
-                    arguments.add(getValFromVarOrConst(instruction.operands[i], sf));
-                String calleeName = ((IRFunctionOperand) instruction.operands[1]).getName();
-                if (functionMap.containsKey(calleeName))
-                    executeCall(instruction, functionMap.get(calleeName), arguments);
+                int firstArg = inst.opCode == IRInstruction.OpCode.CALL ? 1 : 2;
+                // Labels after the call are passed when the callee returns
+                stats.updateLabels(inst.fallThroughLabels);
+                if (profiling)
+                    recordCall(inst);
+                if (inst.callee != null)
+                    executeCall(inst, firstArg, sf);
                 else
-                    handleIntrinsicFunction(instruction, calleeName, arguments);
-                break;
+                    handleIntrinsicFunction(inst, firstArg, sf);
+                return;
             }
             case ARRAY_STORE: {
-                Object val = getValFromVarOrConst(instruction.operands[0], sf);
-                Object[] arr = (Object[]) getValFromVarOrConst(instruction.operands[1], sf);
-                int offset = (Integer) getValFromVarOrConst(instruction.operands[2], sf);
-                if (offset < 0 || offset >= arr.length)
-                    throwRuntimeException(instruction, "Out-of-bounds array access");
-                arr[offset] = val;
+                int offset = getIntVal(inst, 2, sf);
+                if (offset < 0 || offset >= getArrayLength(sf, slots[1]))
+                    throwRuntimeException(inst.source, "Out-of-bounds array access");
+                Object arr = materializeArray(sf, slots[1]);
+                if (isFloat) {
+                    float value = getFloatVal(inst, 0, sf);
+                    if (arr instanceof float[])
+                        ((float[]) arr)[offset] = value;
+                    else
+                        ((PagedArray) arr).setFloat(offset, value);
+                } else {
+                    int value = getIntVal(inst, 0, sf);
+                    if (arr instanceof int[])
+                        ((int[]) arr)[offset] = value;
+                    else
+                        ((PagedArray) arr).setInt(offset, value);
+                }
                 break;
             }
             case ARRAY_LOAD: {
-                IRVariableOperand dest = (IRVariableOperand) instruction.operands[0];
-                Object[] arr = (Object[]) getValFromVarOrConst(instruction.operands[1], sf);
-                int offset = (Integer) getValFromVarOrConst(instruction.operands[2], sf);
-                if (offset < 0 || offset >= arr.length)
-                    throwRuntimeException(instruction, "Out-of-bounds array access");
-                sf.setVal(dest, arr[offset]);
+                int offset = getIntVal(inst, 2, sf);
+                if (offset < 0 || offset >= getArrayLength(sf, slots[1]))
+                    throwRuntimeException(inst.source, "Out-of-bounds array access");
+                // Reading does not allocate: an array that was never written reads as zero
+                Object arr = sf.arrays[slots[1]];
+                if (isFloat) {
+                    if (arr instanceof float[])
+                        sf.floats[slots[0]] = ((float[]) arr)[offset];
+                    else
+                        sf.floats[slots[0]] = arr == null ? 0 : ((PagedArray) arr).getFloat(offset);
+                } else {
+                    if (arr instanceof int[])
+                        sf.ints[slots[0]] = ((int[]) arr)[offset];
+                    else
+                        sf.ints[slots[0]] = arr == null ? 0 : ((PagedArray) arr).getInt(offset);
+                }
                 break;
             }
-            case LABEL:
-                break;
             default:
                 assert false;
         }
+        stats.updateLabels(inst.fallThroughLabels);
     }
 
-    private void executeCall(IRInstruction callInst, IRFunction function, ArrayList<Object> arguments) {
+    private void recordCall(LinkedInstruction callInst) {
+        // The entry call to main has no calling function
         StackFrame sf = stack.peek();
-        StackFrame calleeSF = new StackFrame();
+        int calleeOperand = callInst.opCode == IRInstruction.OpCode.CALL ? 0 : 1;
+        String callee = ((IRFunctionOperand) callInst.operands[calleeOperand]).getName();
+        if (sf.functionProfile != null)
+            sf.functionProfile.recordCall(callInst.source.irLineNumber, callee);
+        if (callInst.callee != null)
+            functionProfiles.get(callInst.callee).calls++;
+    }
+
+    private void executeCall(LinkedInstruction callInst, int firstArg, StackFrame sf) {
+        FunctionInfo info = callInst.callee;
+        int depth = stack.size();
+        if (depth == framePool.size())
+            framePool.add(new StackFrame());
+        StackFrame calleeSF = framePool.get(depth);
         calleeSF.caller = sf.function;
-        calleeSF.callInst = callInst;
+        calleeSF.callInst = callInst.source;
         calleeSF.returnInstIdx = pc.getNextIdx();
-        calleeSF.function = function;
-        calleeSF.varMap = buildVarMap(function, arguments);
+        calleeSF.retSlot = callInst.slots[0];
+        calleeSF.function = info.function;
+        calleeSF.info = info;
+        if (profiling) {
+            calleeSF.functionProfile = functionProfiles.get(info);
+            calleeSF.profileNode = sf.profileNode.child(info.function.name);
+        }
+        buildFrame(calleeSF, info);
+
+        // Copy the arguments straight from the caller's frame
+        for (int i = 0; i < info.paramSlots.length; i++) {
+            int slot = info.paramSlots[i];
+            switch (info.paramKinds[i]) {
+                case INT_SLOT:
+                    calleeSF.ints[slot] = getIntVal(callInst, firstArg + i, sf);
+                    break;
+                case FLOAT_SLOT:
+                    calleeSF.floats[slot] = getFloatVal(callInst, firstArg + i, sf);
+                    break;
+                default:
+                    // The callee may write to the array, so it has to exist
+                    calleeSF.arrays[slot] = materializeArray(sf, callInst.slots[firstArg + i]);
+            }
+        }
+
         stack.push(calleeSF);
-        pc.set((ArrayList<IRInstruction>) function.instructions, 0);
-        currentLabelMap = functionLabelMap.get(function);
+        enterFunction(calleeSF, 0);
+        stats.updateLabels(info.entryLabels);
     }
 
-    private Map<String, Object> buildVarMap(IRFunction function, ArrayList<Object> arguments) {
-        Map<String, Object> varMap = new HashMap<>();
+    /**
+     * Sets up a pooled frame for a call: scalar slots are cleared, reusing the frame's storage when
+     * it is large enough, and local arrays are left unallocated until they are first written
+     */
+    private void buildFrame(StackFrame sf, FunctionInfo info) {
+        if (sf.ints == null || sf.ints.length < info.intCount)
+            sf.ints = new int[info.intCount];
+        else
+            Arrays.fill(sf.ints, 0, info.intCount, 0);
+        if (sf.floats == null || sf.floats.length < info.floatCount)
+            sf.floats = new float[info.floatCount];
+        else
+            Arrays.fill(sf.floats, 0, info.floatCount, 0);
+        if (sf.arrays == null || sf.arrays.length < info.arrayTypes.length)
+            sf.arrays = new Object[info.arrayTypes.length];
 
-        for (IRVariableOperand variable: function.variables) {
-            if (variable.type instanceof IRArrayType) {
-                IRArrayType arrayType = (IRArrayType) variable.type;
-                Object[] arr = new Object[arrayType.getSize()];
-                varMap.put(variable.getName(), arr);
-                if (arrayType.getElementType() == IRIntType.get())
-                    for (int i = 0; i < arr.length; i++)
-                        arr[i] = new Integer(0);
-                else
-                    for (int i = 0; i < arr.length; i++)
-                        arr[i] = new Float(0);
-            } else {
-                if (variable.type == IRIntType.get())
-                    varMap.put(variable.getName(), new Integer(0));
-                else
-                    varMap.put(variable.getName(), new Float(0));
-            }
+        if (sf.localArraysInfo != info) {
+            sf.localArrays = new Object[info.arrayTypes.length];
+            sf.localArraysInfo = info;
         }
+        for (int slot : info.localArraySlots)
+            sf.arrays[slot] = null;
+    }
 
-        Iterator<IRVariableOperand> pit = function.parameters.iterator();
-        Iterator<Object> ait = arguments.iterator();
-        while (pit.hasNext()) {
-            IRVariableOperand param = pit.next();
-            Object arg = ait.next();
-            varMap.put(param.getName(), arg);
-        }
+    private static int getArrayLength(StackFrame sf, int slot) {
+        Object arr = sf.arrays[slot];
+        if (arr instanceof int[])
+            return ((int[]) arr).length;
+        if (arr instanceof float[])
+            return ((float[]) arr).length;
+        if (arr instanceof PagedArray)
+            return ((PagedArray) arr).length;
+        return sf.info.arrayTypes[slot].getSize();
+    }
 
-        return varMap;
+    /**
+     * Returns the array in a slot, first allocating it if it is a local array that has not been
+     * written yet. Local arrays never outlive the call, so one left by the previous call to the same
+     * function at this depth is cleared and reused.
+     */
+    private static Object materializeArray(StackFrame sf, int slot) {
+        Object arr = sf.arrays[slot];
+        if (arr != null)
+            return arr;
+
+        arr = sf.localArrays[slot];
+        if (arr instanceof int[]) {
+            Arrays.fill((int[]) arr, 0);
+        } else if (arr instanceof float[]) {
+            Arrays.fill((float[]) arr, 0);
+        } else if (arr instanceof PagedArray) {
+            ((PagedArray) arr).clear();
+        } else {
+            IRArrayType arrayType = sf.info.arrayTypes[slot];
+            boolean isFloat = arrayType.getElementType() != IRIntType.get();
+            if (arrayType.getSize() >= PAGED_ARRAY_SIZE)
+                arr = new PagedArray(arrayType.getSize(), isFloat);
+            else if (isFloat)
+                arr = new float[arrayType.getSize()];
+            else
+                arr = new int[arrayType.getSize()];
+            sf.localArrays[slot] = arr;
+        }
+        sf.arrays[slot] = arr;
+        return arr;
     }
 
-    private void handleIntrinsicFunction(IRInstruction callInst, String functionName, ArrayList<Object> arguments)
+    private void handleIntrinsicFunction(LinkedInstruction callInst, int firstArg, StackFrame sf)
             throws IRException {
-        switch (functionName) {
-            case "geti": {
-                int i;
-                try {
-                    i = stdinScanner.nextInt();
-                } catch (InputMismatchException e) {
-                    i = 0;
-                }
-                stdinScanner.nextLine();
-                IRVariableOperand retVar = (IRVariableOperand) callInst.operands[0];
-                stack.peek().setVal(retVar, i);
+        int retSlot = callInst.slots[0];
+        if (callInst.intrinsic == null) {
+            int calleeOperand = callInst.opCode == IRInstruction.OpCode.CALL ? 0 : 1;
+            String functionName = ((IRFunctionOperand) callInst.operands[calleeOperand]).getName();
+            throwRuntimeException(callInst.source, String.format("Undefined reference to function '%s'", functionName));
+        }
+        switch (callInst.intrinsic) {
+            case GETI:
+                sf.ints[retSlot] = io.readInt();
                 break;
-            }
-            case "getf": {
-                float f;
-                try {
-                    f = stdinScanner.nextFloat();
-                } catch (InputMismatchException e) {
-                    f = 0;
-                }
-                stdinScanner.nextLine();
-                IRVariableOperand retVar = (IRVariableOperand) callInst.operands[0];
-                stack.peek().setVal(retVar, f);
+            case GETF:
+                sf.floats[retSlot] = io.readFloat();
                 break;
-            }
-            case "getc": {
-                int c;
-                try {
-                    c = (int) System.in.read();
-                } catch (IOException e) {
-                    c = 0;
-                }
-                IRVariableOperand retVar = (IRVariableOperand) callInst.operands[0];
-                stack.peek().setVal(retVar, c);
+            case GETC:
+                sf.ints[retSlot] = io.readChar();
                 break;
-            }
-            case "puti": {
-                System.out.print((Integer) arguments.get(0));
+            case PUTI:
+                io.writeInt(getIntVal(callInst, firstArg, sf));
                 break;
-            }
-            case "putf": {
-                System.out.print((Float) arguments.get(0));
+            case PUTF:
+                io.writeFloat(getFloatVal(callInst, firstArg, sf));
                 break;
-            }
-            case "putc": {
-                int c = (Integer) arguments.get(0);
-                System.out.print((char) c);
+            case PUTC:
+                io.writeChar((char) getIntVal(callInst, firstArg, sf));
                 break;
-            }
             default:
-                throwRuntimeException(callInst, String.format("Undefined reference to function '%s'", functionName));
+                assert false;
         }
     }
 
     private void throwRuntimeException(IRInstruction instruction, String message) throws IRException {
-        System.err.println("IR interpreter runtime exception: " + message);
-        System.err.println("Stack trace:");
-        ListIterator<StackFrame> sit = stack.listIterator(stack.size());
-        System.err.println("\t" + stack.peek().function.name + ":" + instruction.irLineNumber);
-        while (sit.hasPrevious()) {
-            StackFrame sf = sit.previous();
+        // Keep program output ahead of the error
+        io.flush();
+        stderr.println("IR interpreter runtime exception: " + message);
+        stderr.println("Stack trace:");
+        stderr.println("\t" + stack.peek().function.name + ":" + instruction.irLineNumber);
+        for (StackFrame sf : stack) {
             if (sf.caller == null)
                 break;
-            System.err.println("\t" + sf.caller.name + ":" + sf.caller.instructions.get(sf.returnInstIdx - 1).irLineNumber);
+            stderr.println("\t" + sf.caller.name + ":" + sf.callInst.irLineNumber);
         }
         throw new IRException();
     }
@@ -0,0 +1,114 @@
+import java.io.PrintWriter;
+import java.util.*;
+
+/**
+ * Execution profile of one interpreter run: how often each instruction ran (reported per IR line and
+ * per basic block), how often each function was called and from which call sites, and how many
+ * instructions ran under each call stack.
+ */
+public class IRProfile {
+
+    public static class FunctionProfile {
+        public String name;
+        // IR line number of each instruction of the linked code
+        public int[] lineNumbers;
+        // Index of the first instruction of each basic block, ascending
+        public int[] blockStarts;
+        // Executions of each instruction
+        public long[] counts;
+        public long calls;
+        // Call site line -> callee name -> calls
+        public Map<Integer, Map<String, Long>> callEdges = new TreeMap<>();
+
+        public void recordCall(int line, String callee) {
+            callEdges.computeIfAbsent(line, k -> new TreeMap<>()).merge(callee, 1L, Long::sum);
+        }
+    }
+
+    public static class StackNode {
+        public String name;
+        public StackNode parent;
+        public Map<String, StackNode> children = new LinkedHashMap<>();
+        // Instructions executed with exactly this call stack
+        public long instructions;
+
+        public StackNode(String name, StackNode parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+
+        public StackNode child(String name) {
+            return children.computeIfAbsent(name, n -> new StackNode(n, this));
+        }
+    }
+
+    private final Map<String, FunctionProfile> functions = new LinkedHashMap<>();
+
+    private final StackNode root = new StackNode(null, null);
+
+    public FunctionProfile addFunction(String name, int[] lineNumbers, int[] blockStarts) {
+        FunctionProfile function = new FunctionProfile();
+        function.name = name;
+        function.lineNumbers = lineNumbers;
+        function.blockStarts = blockStarts;
+        function.counts = new long[lineNumbers.length];
+        functions.put(name, function);
+        return function;
+    }
+
+    public StackNode getRoot() {
+        return root;
+    }
+
+    /**
+     * Writes rows of kind,function,location,count:
+     * line rows count executions of the instruction on an IR line, block rows count entries into the
+     * basic block spanning the given lines, function rows count calls and call rows count calls
+     * from a call site line to a callee.
+     */
+    public void writeCsv(PrintWriter out) {
+        out.println("kind,function,location,count");
+        for (FunctionProfile function : functions.values()) {
+            out.println("function," + function.name + ",," + function.calls);
+            for (int i = 0; i < function.counts.length; i++)
+                out.println("line," + function.name + "," + function.lineNumbers[i] + "," + function.counts[i]);
+            for (int b = 0; b < function.blockStarts.length; b++) {
+                int start = function.blockStarts[b];
+                int end = b + 1 < function.blockStarts.length ? function.blockStarts[b + 1] : function.counts.length;
+                out.println("block," + function.name + "," + function.lineNumbers[start] + "-"
+                        + function.lineNumbers[end - 1] + "," + function.counts[start]);
+            }
+            for (Map.Entry<Integer, Map<String, Long>> site : function.callEdges.entrySet()) {
+                for (Map.Entry<String, Long> edge : site.getValue().entrySet())
+                    out.println("call," + function.name + "," + site.getKey() + ":" + edge.getKey() + "," + edge.getValue());
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes one "caller;...;callee instructions" line per call stack, the collapsed-stack input
+     * format of flame graph tools
+     */
+    public void writeCollapsedStacks(PrintWriter out) {
+        // Iterative, since recursive IR programs can build very deep stacks
+        Deque<StackNode> nodes = new ArrayDeque<>();
+        Deque<String> paths = new ArrayDeque<>();
+        for (StackNode node : root.children.values()) {
+            nodes.push(node);
+            paths.push(node.name);
+        }
+        while (!nodes.isEmpty()) {
+            StackNode node = nodes.pop();
+            String path = paths.pop();
+            if (node.instructions > 0)
+                out.println(path + " " + node.instructions);
+            for (StackNode child : node.children.values()) {
+                nodes.push(child);
+                paths.push(path + ";" + child.name);
+            }
+        }
+        out.flush();
+    }
+
+}
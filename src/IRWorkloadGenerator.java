@@ -0,0 +1,453 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates large Tiger-IR programs with matching input files, to benchmark and stress the reader,
+ * optimizer and interpreter far beyond the public test programs.
+ *
+ * A program has a number of functions int f_k(int[size] A, int x) and a main that reads its input
+ * into an array and calls the root function, or every function for the flat call graph. Function bodies are random straight-line code
+ * (int and float arithmetic, int and float array loads and stores, forward branches and output) around nested
+ * counted loops. The call graph has the selected shape and no cycles; callees are defined before
+ * their callers, every function is called once and calls are outside loops, so the dynamic
+ * instruction count stays close to the static count times the loop trips. Array indices are masked
+ * to the power-of-two array size and divisors are non-zero constants, so programs never fail.
+ *
+ * Before the numbers, main reads a line of text with getc; after the ints it reads floats with getf
+ * and it sums the input array with a recursive function rec, which is the only cycle in the call
+ * graph. Optionally main also reads a last line with getc after the numbers, where the I/O modes
+ * of the interpreter differ on purpose.
+ *
+ * The program is written as it is generated, so sizes up to millions of instructions need no more
+ * memory than a single line.
+ */
+public class IRWorkloadGenerator {
+
+    public enum CallShape {
+        // main calls every function, which call nothing
+        FLAT,
+        // f_k calls f_k+1
+        CHAIN,
+        // f_k calls f_2k+1 and f_2k+2
+        TREE,
+        // Every function but f_0 is called by a random function with a lower index
+        RANDOM
+    }
+
+    private static final int INT_TEMPS = 8;
+    private static final int FLOAT_TEMPS = 4;
+    private static final int[] DIVISORS = {2, 3, 5, 7, -3};
+    private static final String[] INT_OPERATIONS = {"add", "sub", "mult", "and", "or"};
+
+    // Settings
+    public int functions = 100;
+    public int instructions = 1000;
+    public int loopDepth = 2;
+    public int loopTrips = 4;
+    public CallShape callShape = CallShape.TREE;
+    public int arraySize = 64;
+    public double ioDensity = 0.01;
+    public int reads = 16;
+    public int floatReads = 4;
+    public boolean getcAfterReads = false;
+    public int inputs = 10;
+    public long seed = 1;
+
+    private Random random;
+    private PrintWriter out;
+    // Instructions emitted and labels created in the current function
+    private int emitted;
+    private int labels;
+
+    public static final String USAGE = "Usage: IRWorkloadGenerator [--functions=<n>] [--instructions=<n per function>]"
+            + " [--loop-depth=<n>] [--loop-trips=<n>] [--calls=flat|chain|tree|random] [--array-size=<power of 2>]"
+            + " [--io=<output density>] [--reads=<n>] [--float-reads=<n>] [--getc-after-reads] [--inputs=<n>] [--seed=<n>] [--name=<name>] [--expected] <output directory>";
+
+    public static void main(String[] args) throws Exception {
+        IRWorkloadGenerator generator = new IRWorkloadGenerator();
+        String name = "synthetic";
+        boolean expected = false;
+        String outputDir = null;
+        for (String arg : args) {
+            if (arg.startsWith("--functions="))
+                generator.functions = Integer.parseInt(arg.substring("--functions=".length()));
+            else if (arg.startsWith("--instructions="))
+                generator.instructions = Integer.parseInt(arg.substring("--instructions=".length()));
+            else if (arg.startsWith("--loop-depth="))
+                generator.loopDepth = Integer.parseInt(arg.substring("--loop-depth=".length()));
+            else if (arg.startsWith("--loop-trips="))
+                generator.loopTrips = Integer.parseInt(arg.substring("--loop-trips=".length()));
+            else if (arg.startsWith("--calls="))
+                generator.callShape = CallShape.valueOf(arg.substring("--calls=".length()).toUpperCase());
+            else if (arg.startsWith("--array-size="))
+                generator.arraySize = Integer.parseInt(arg.substring("--array-size=".length()));
+            else if (arg.startsWith("--io="))
+                generator.ioDensity = Double.parseDouble(arg.substring("--io=".length()));
+            else if (arg.startsWith("--reads="))
+                generator.reads = Integer.parseInt(arg.substring("--reads=".length()));
+            else if (arg.startsWith("--float-reads="))
+                generator.floatReads = Integer.parseInt(arg.substring("--float-reads=".length()));
+            else if (arg.equals("--getc-after-reads"))
+                generator.getcAfterReads = true;
+            else if (arg.startsWith("--inputs="))
+                generator.inputs = Integer.parseInt(arg.substring("--inputs=".length()));
+            else if (arg.startsWith("--seed="))
+                generator.seed = Long.parseLong(arg.substring("--seed=".length()));
+            else if (arg.startsWith("--name="))
+                name = arg.substring("--name=".length());
+            else if (arg.equals("--expected"))
+                expected = true;
+            else if (!arg.startsWith("--"))
+                outputDir = arg;
+            else {
+                System.err.println("Unknown option '" + arg + "'");
+                System.err.println(USAGE);
+                System.exit(1);
+            }
+        }
+        String problem = outputDir == null ? USAGE : generator.validate();
+        if (problem != null) {
+            System.err.println(problem);
+            System.exit(1);
+        }
+
+        Path dir = Paths.get(outputDir);
+        Files.createDirectories(dir);
+        Path program = dir.resolve(name + ".ir");
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(program.toFile()), 1 << 16))) {
+            generator.writeProgram(writer);
+        }
+        for (int i = 0; i < generator.inputs; i++) {
+            try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(dir.resolve(i + ".in").toFile())))) {
+                generator.writeInput(writer, i);
+            }
+        }
+        if (expected)
+            writeExpected(program, dir, generator.inputs);
+    }
+
+    /**
+     * Returns why the settings cannot generate a program, or null if they can
+     */
+    public String validate() {
+        if (functions < 1 || instructions < 1 || loopDepth < 0 || loopTrips < 0 || reads < 1 || floatReads < 0 || inputs < 0)
+            return "Counts must be positive";
+        if (arraySize < 1 || Integer.bitCount(arraySize) != 1)
+            return "The array size must be a power of two";
+        if (ioDensity < 0 || ioDensity > 1)
+            return "The I/O density must be between 0 and 1";
+        return null;
+    }
+
+    /**
+     * Callees of function k, all with higher indices
+     */
+    private List<Integer> getCallees(int k, int[] randomParents) {
+        List<Integer> callees = new ArrayList<>();
+        switch (callShape) {
+            case CHAIN:
+                if (k + 1 < functions)
+                    callees.add(k + 1);
+                break;
+            case TREE:
+                for (int child = 2 * k + 1; child <= 2 * k + 2 && child < functions; child++)
+                    callees.add(child);
+                break;
+            case RANDOM:
+                for (int child = k + 1; child < functions; child++) {
+                    if (randomParents[child] == k)
+                        callees.add(child);
+                }
+                break;
+            default:
+                break;
+        }
+        return callees;
+    }
+
+    public void writeProgram(PrintWriter out) {
+        this.out = out;
+        random = new Random(seed);
+
+        int[] randomParents = new int[functions];
+        for (int k = 1; k < functions; k++)
+            randomParents[k] = random.nextInt(k);
+
+        writeRecursion();
+        out.println();
+        // Highest index first, so that callees are defined before their callers
+        for (int k = functions - 1; k >= 0; k--) {
+            writeFunction(k, getCallees(k, randomParents));
+            out.println();
+        }
+        writeMain();
+        out.flush();
+    }
+
+    public void writeInput(PrintWriter out, int index) {
+        Random inputRandom = new Random(seed * 31 + index);
+        out.println(randomText(inputRandom));
+        for (int i = 0; i < reads; i++)
+            out.println(inputRandom.nextInt(2001) - 1000);
+        for (int i = 0; i < floatReads; i++)
+            out.println(randomFloat(inputRandom));
+        if (getcAfterReads)
+            out.println(randomText(inputRandom));
+        out.flush();
+    }
+
+    private static String randomText(Random random) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 1 + random.nextInt(20); i > 0; i--)
+            text.append((char) ('a' + random.nextInt(26)));
+        return text.toString();
+    }
+
+    /**
+     * A float written as an integer, a decimal or with an exponent
+     */
+    private static String randomFloat(Random random) {
+        String whole = String.valueOf(random.nextInt(2001) - 1000);
+        StringBuilder fraction = new StringBuilder();
+        for (int i = 1 + random.nextInt(3); i > 0; i--)
+            fraction.append(random.nextInt(10));
+        switch (random.nextInt(3)) {
+            case 0:
+                return whole;
+            case 1:
+                return whole + "." + fraction;
+            default:
+                return (random.nextBoolean() ? "-" : "") + (1 + random.nextInt(9)) + "." + fraction + "e" + (random.nextInt(6) - 2);
+        }
+    }
+
+    /**
+     * int rec(int[size] A, int n): the sum of A[n], A[n-1], ..., A[1] with the indices masked, one
+     * call per element
+     */
+    private void writeRecursion() {
+        out.println("#start_function");
+        out.println("int rec(int[" + arraySize + "] A, int n):");
+        out.println("int-list: r, m, idx, t");
+        out.println("float-list:");
+        out.println("    brleq, base, n, 0");
+        out.println("    sub, m, n, 1");
+        out.println("    and, idx, n, " + (arraySize - 1));
+        out.println("    array_load, t, A, idx");
+        out.println("    callr, r, rec, A, m");
+        out.println("    add, r, r, t");
+        out.println("    return, r");
+        out.println("base:");
+        out.println("    return, 0");
+        out.println("#end_function");
+    }
+
+    private void writeFunction(int k, List<Integer> callees) {
+        emitted = 0;
+        labels = 0;
+        out.println("#start_function");
+        out.println("int f_" + k + "(int[" + arraySize + "] A, int x):");
+        StringBuilder intList = new StringBuilder("int-list: r, idx, L[" + arraySize + "]");
+        for (int i = 0; i < INT_TEMPS; i++)
+            intList.append(", t").append(i);
+        for (int d = 1; d <= loopDepth; d++)
+            intList.append(", i").append(d);
+        out.println(intList);
+        StringBuilder floatList = new StringBuilder("float-list: G[" + arraySize + "]");
+        for (int i = 0; i < FLOAT_TEMPS; i++)
+            floatList.append(", g").append(i);
+        out.println(floatList);
+
+        emit("assign, r, 0");
+        emit("assign, t0, x");
+        for (int i = 1; i < INT_TEMPS; i++)
+            emit("assign, t" + i + ", " + (random.nextInt(201) - 100));
+        for (int i = 0; i < FLOAT_TEMPS; i++)
+            emit("assign, g" + i + ", " + (random.nextInt(200) + 1) / 10.0);
+
+        // Calls come first, outside any loop, each followed by an instruction using its result
+        for (int callee : callees) {
+            emit("callr, t1, f_" + callee + ", A, " + intTemp());
+            emit("add, r, r, t1");
+        }
+
+        writeBlock(0, Math.max(instructions - emitted - 2, 0));
+        emit("add, r, r, " + intTemp());
+        emit("return, r");
+        out.println("#end_function");
+    }
+
+    /**
+     * Emits about budget instructions: straight-line code around a nested loop, if the depth allows
+     */
+    private void writeBlock(int depth, int budget) {
+        if (depth == loopDepth || budget < 8) {
+            int end = emitted + budget;
+            while (emitted < end)
+                writeStatement(end - emitted);
+            return;
+        }
+
+        int inner = budget / 2;
+        int outer = budget - inner - 5;
+        writeBlock(loopDepth, outer / 2);
+
+        String counter = "i" + (depth + 1);
+        String loop = newLabel("loop");
+        String done = newLabel("done");
+        emit("assign, " + counter + ", 0");
+        out.println(loop + ":");
+        emit("brgeq, " + done + ", " + counter + ", " + loopTrips);
+        writeBlock(depth + 1, inner);
+        emit("add, " + counter + ", " + counter + ", 1");
+        emit("goto, " + loop);
+        out.println(done + ":");
+
+        writeBlock(loopDepth, outer - outer / 2);
+    }
+
+    private void writeStatement(int budget) {
+        if (random.nextDouble() < ioDensity && budget >= 2) {
+            if (random.nextInt(4) == 0)
+                emit("call, putf, " + floatTemp());
+            else
+                emit("call, puti, " + intTemp());
+            emit("call, putc, 10");
+            return;
+        }
+
+        int kind = random.nextInt(20);
+        if (kind < 8) {
+            String op = INT_OPERATIONS[random.nextInt(INT_OPERATIONS.length)];
+            String z = random.nextBoolean() ? intTemp() : String.valueOf(random.nextInt(64) - 16);
+            emit(op + ", " + intTemp() + ", " + intTemp() + ", " + z);
+        } else if (kind < 9) {
+            emit("div, " + intTemp() + ", " + intTemp() + ", " + DIVISORS[random.nextInt(DIVISORS.length)]);
+        } else if (kind < 11) {
+            if (random.nextBoolean())
+                emit("mult, " + floatTemp() + ", " + floatTemp() + ", 0.5");
+            else
+                emit((random.nextBoolean() ? "add, " : "sub, ") + floatTemp() + ", " + floatTemp() + ", " + floatTemp());
+        } else if (kind < 15 && budget >= 2) {
+            emit("and, idx, " + intTemp() + ", " + (arraySize - 1));
+            int array = random.nextInt(3);
+            String name = array == 0 ? "A" : array == 1 ? "L" : "G";
+            String value = array == 2 ? floatTemp() : intTemp();
+            if (kind < 13)
+                emit("array_store, " + value + ", " + name + ", idx");
+            else
+                emit("array_load, " + value + ", " + name + ", idx");
+        } else if (kind < 17 && budget >= 3) {
+            String skip = newLabel("skip");
+            String[] branches = {"breq", "brneq", "brlt", "brgt", "brleq", "brgeq"};
+            emit(branches[random.nextInt(branches.length)] + ", " + skip + ", " + intTemp() + ", " + intTemp());
+            int body = 1 + random.nextInt(Math.min(budget - 2, 3));
+            for (int i = 0; i < body; i++)
+                emit("add, " + intTemp() + ", " + intTemp() + ", " + (random.nextInt(9) + 1));
+            out.println(skip + ":");
+        } else {
+            emit("assign, " + intTemp() + ", " + (random.nextBoolean() ? intTemp() : String.valueOf(random.nextInt(1000))));
+        }
+    }
+
+    private void writeMain() {
+        out.println("#start_function");
+        out.println("void main():");
+        out.println("int-list: A[" + arraySize + "], x, r, v, c");
+        out.println("float-list: B[" + arraySize + "], y, w");
+
+        // Sum of the characters of the first line
+        out.println("    assign, v, 0");
+        out.println("text:");
+        out.println("    callr, c, getc");
+        out.println("    breq, text_end, c, 10");
+        out.println("    brlt, text_end, c, 0");
+        out.println("    add, v, v, c");
+        out.println("    goto, text");
+        out.println("text_end:");
+        out.println("    call, puti, v");
+        out.println("    call, putc, 10");
+
+        out.println("    assign, x, 0");
+        for (int i = 0; i < reads; i++) {
+            out.println("    callr, v, geti");
+            out.println("    array_store, v, A, " + (i & (arraySize - 1)));
+            out.println("    add, x, x, v");
+        }
+        out.println("    assign, y, 0.0");
+        for (int i = 0; i < floatReads; i++) {
+            out.println("    callr, w, getf");
+            out.println("    array_store, w, B, " + (i & (arraySize - 1)));
+            out.println("    add, y, y, w");
+        }
+        out.println("    call, putf, y");
+        out.println("    call, putc, 10");
+        out.println("    and, v, x, " + (arraySize - 1));
+        out.println("    callr, r, rec, A, v");
+        out.println("    call, puti, r");
+        out.println("    call, putc, 10");
+        int roots = callShape == CallShape.FLAT ? functions : 1;
+        for (int k = 0; k < roots; k++) {
+            out.println("    callr, r, f_" + k + ", A, x");
+            out.println("    call, puti, r");
+            out.println("    call, putc, 10");
+        }
+        if (getcAfterReads) {
+            // The buffered I/O modes read the last line here, the Scanner mode usually the end of input
+            for (int i = 0; i < 3; i++) {
+                out.println("    callr, c, getc");
+                out.println("    call, puti, c");
+                out.println("    call, putc, 10");
+            }
+        }
+        out.println("#end_function");
+    }
+
+    private void emit(String instruction) {
+        out.print("    ");
+        out.println(instruction);
+        emitted++;
+    }
+
+    private String newLabel(String prefix) {
+        return prefix + labels++;
+    }
+
+    private String intTemp() {
+        return "t" + random.nextInt(INT_TEMPS);
+    }
+
+    private String floatTemp() {
+        return "g" + random.nextInt(FLOAT_TEMPS);
+    }
+
+    /**
+     * Runs the program on every input with the tree engine and writes the outputs as <case>.out
+     * and the instruction counts as column O of dyn_inst_cnt.csv, making the directory a test case
+     * like those in public_test_cases. The tree engine is the original interpreter, so the expected
+     * output does not come from the bytecode or JIT engine it is meant to check.
+     */
+    private static void writeExpected(Path program, Path dir, int inputs) throws Exception {
+        IRInterpreter interpreter = new IRInterpreter(program.toString());
+        interpreter.setEngine(IRInterpreter.Engine.TREE);
+        interpreter.prepare();
+        try (PrintWriter counts = new PrintWriter(dir.resolve("dyn_inst_cnt.csv").toFile())) {
+            counts.println("case,O");
+            for (int i = 0; i < inputs; i++) {
+                IRInterpreter run = interpreter.fork();
+                try (InputStream in = Files.newInputStream(dir.resolve(i + ".in"));
+                     PrintStream output = new PrintStream(Files.newOutputStream(dir.resolve(i + ".out")))) {
+                    run.setStandardStreams(in, output, System.err);
+                    run.run();
+                }
+                counts.println(i + "," + run.getStats().getNonLabelInstructionCount());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,208 @@
+import optimization.Optimizer;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Checks the optimizer against the public test cases. Every directory with a dyn_inst_cnt.csv and
+ * an IR program is optimized; the original and the optimized program are run on each *.in file and
+ * their outputs compared with the *.out file. The dynamic instruction counts of the optimized
+ * program are printed next to the O, A, B and C columns of dyn_inst_cnt.csv.
+ *
+ * Fails when an output differs, a run fails, the unoptimized count does not match column O or the
+ * optimized program executes more instructions than the original.
+ */
+public class OptimizerHarness {
+
+    private static final String COUNTS_FILE = "dyn_inst_cnt.csv";
+    private static final String[] REFERENCE_COLUMNS = {"A", "B", "C"};
+
+    private final IRInterpreter.Engine engine;
+    private final int jobs;
+    private final PrintStream out;
+
+    public OptimizerHarness(IRInterpreter.Engine engine, int jobs, PrintStream out) {
+        this.engine = engine;
+        this.jobs = jobs;
+        this.out = out;
+    }
+
+    public static void main(String[] args) throws Exception {
+        IRInterpreter.Engine engine = IRInterpreter.Engine.BYTECODE;
+        int jobs = Runtime.getRuntime().availableProcessors();
+        String testDir = "public_test_cases";
+        for (String arg : args) {
+            if (arg.startsWith("--engine="))
+                engine = IRInterpreter.Engine.valueOf(arg.substring("--engine=".length()).toUpperCase());
+            else if (arg.startsWith("--jobs="))
+                jobs = Integer.parseInt(arg.substring("--jobs=".length()));
+            else if (!arg.startsWith("--"))
+                testDir = arg;
+            else {
+                System.err.println("Usage: OptimizerHarness [--engine=tree|bytecode|jit] [--jobs=<n>] [<test directory>]");
+                System.exit(1);
+            }
+        }
+
+        OptimizerHarness harness = new OptimizerHarness(engine, jobs, System.out);
+        System.exit(harness.checkAll(Paths.get(testDir)) ? 0 : 1);
+    }
+
+    /**
+     * Checks every test program below a directory and returns whether all passed
+     */
+    public boolean checkAll(Path testDir) throws Exception {
+        List<Path> programDirs;
+        try (Stream<Path> dirs = Files.list(testDir)) {
+            programDirs = dirs.filter(dir -> Files.isRegularFile(dir.resolve(COUNTS_FILE)))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        if (programDirs.isEmpty()) {
+            out.println("No test programs with " + COUNTS_FILE + " in " + testDir);
+            return false;
+        }
+
+        boolean passed = true;
+        for (Path programDir : programDirs)
+            passed &= check(programDir);
+        out.println(passed ? "All programs passed" : "FAILED");
+        return passed;
+    }
+
+    /**
+     * Checks one test program and returns whether it passed
+     */
+    public boolean check(Path programDir) throws Exception {
+        Path program;
+        try (Stream<Path> files = Files.list(programDir)) {
+            List<Path> programs = files.filter(file -> file.toString().endsWith(".ir")).sorted().collect(Collectors.toList());
+            if (programs.size() != 1) {
+                out.println(programDir.getFileName() + ": expected one .ir file, found " + programs.size());
+                return false;
+            }
+            program = programs.get(0);
+        }
+        Map<String, Map<String, Long>> reference = readCounts(programDir.resolve(COUNTS_FILE));
+
+        Path optimized = Files.createTempFile(programDir.getFileName().toString(), ".ir");
+        try {
+            try (OutputStream optimizedOut = new FileOutputStream(optimized.toFile())) {
+                Optimizer optimizer = new Optimizer(program.toString());
+                optimizer.optimize();
+                optimizer.writeProgram(optimizedOut);
+            }
+            List<IRBatchRunner.Result> originalResults = runAll(program, programDir);
+            List<IRBatchRunner.Result> optimizedResults = runAll(optimized, programDir);
+            return report(program.getFileName().toString(), reference, originalResults, optimizedResults);
+        } finally {
+            Files.deleteIfExists(optimized);
+        }
+    }
+
+    private List<IRBatchRunner.Result> runAll(Path program, Path inputDir) throws Exception {
+        IRInterpreter interpreter = new IRInterpreter(program.toString());
+        interpreter.setEngine(engine);
+        return new IRBatchRunner(interpreter, jobs).run(inputDir);
+    }
+
+    private boolean report(String name, Map<String, Map<String, Long>> reference,
+                           List<IRBatchRunner.Result> originalResults, List<IRBatchRunner.Result> optimizedResults) {
+        out.println(name);
+        out.println(String.format("%-8s %10s %10s %8s %10s %10s %10s  %s", "case", "O", "optimized", "saved", "A", "B", "C", "status"));
+
+        boolean passed = true;
+        long totalOriginal = 0, totalOptimized = 0;
+        long[] totalReference = new long[REFERENCE_COLUMNS.length];
+        for (int i = 0; i < originalResults.size(); i++) {
+            IRBatchRunner.Result original = originalResults.get(i);
+            IRBatchRunner.Result optimized = optimizedResults.get(i);
+            Map<String, Long> row = reference.getOrDefault(original.name, Collections.emptyMap());
+
+            List<String> problems = new ArrayList<>();
+            if (original.error != null || !Boolean.TRUE.equals(original.matched))
+                problems.add("original " + describeFailure(original));
+            if (optimized.error != null || !Boolean.TRUE.equals(optimized.matched))
+                problems.add("optimized " + describeFailure(optimized));
+            Long expectedOriginal = row.get("O");
+            if (expectedOriginal != null && expectedOriginal != original.instructionCount)
+                problems.add("original count " + original.instructionCount + " is not O");
+            if (optimized.instructionCount > original.instructionCount)
+                problems.add("count regressed");
+            passed &= problems.isEmpty();
+
+            totalOriginal += original.instructionCount;
+            totalOptimized += optimized.instructionCount;
+            StringBuilder line = new StringBuilder(String.format("%-8s %10d %10d %8s",
+                    original.name, original.instructionCount, optimized.instructionCount,
+                    getSavings(original.instructionCount, optimized.instructionCount)));
+            for (int c = 0; c < REFERENCE_COLUMNS.length; c++) {
+                Long count = row.get(REFERENCE_COLUMNS[c]);
+                line.append(String.format(" %10s", count == null ? "-" : count.toString()));
+                totalReference[c] += count == null ? 0 : count;
+            }
+            line.append("  ").append(problems.isEmpty() ? "ok" : String.join("; ", problems));
+            out.println(line);
+        }
+
+        StringBuilder total = new StringBuilder(String.format("%-8s %10d %10d %8s",
+                "total", totalOriginal, totalOptimized, getSavings(totalOriginal, totalOptimized)));
+        for (long count : totalReference)
+            total.append(String.format(" %10d", count));
+        out.println(total);
+        for (int c = 0; c < REFERENCE_COLUMNS.length; c++) {
+            if (totalReference[c] == 0)
+                continue;
+            out.println(String.format("  vs %s: %+.1f%%", REFERENCE_COLUMNS[c],
+                    100.0 * (totalOptimized - totalReference[c]) / totalReference[c]));
+        }
+        out.println();
+        return passed;
+    }
+
+    private static String describeFailure(IRBatchRunner.Result result) {
+        if (result.error != null)
+            return "failed: " + result.error.split("\\R", 2)[0];
+        if (result.matched == null)
+            return "has no .out file";
+        return "output differs";
+    }
+
+    private static String getSavings(long original, long optimized) {
+        if (original <= 0)
+            return "-";
+        return String.format("%.1f%%", 100.0 * (original - optimized) / original);
+    }
+
+    /**
+     * Reads dyn_inst_cnt.csv into case -> column -> count
+     */
+    private static Map<String, Map<String, Long>> readCounts(Path file) throws IOException {
+        List<String> lines = Files.readAllLines(file);
+        Map<String, Map<String, Long>> counts = new HashMap<>();
+        if (lines.isEmpty())
+            return counts;
+        String[] header = lines.get(0).trim().split(",");
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.trim().split(",");
+            if (fields.length < 2)
+                continue;
+            Map<String, Long> row = new HashMap<>();
+            for (int i = 1; i < fields.length && i < header.length; i++) {
+                if (!fields[i].isEmpty())
+                    row.put(header[i], Long.parseLong(fields[i]));
+            }
+            counts.put(fields[0], row);
+        }
+        return counts;
+    }
+
+}
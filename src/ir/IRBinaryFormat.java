@@ -0,0 +1,48 @@
+package ir;
+
+/**
+ * Layout of the binary IR files written by IRBinaryWriter and loaded by IRBinaryReader. Numbers are
+ * big-endian; an index is an int.
+ *
+ *   magic       0x89 'T' 'I' 'R'
+ *   version     int
+ *   strings     count, then per string its UTF-8 length and bytes
+ *   constants   count, then per constant a type tag and the string index of its text
+ *   functions   count, then per function:
+ *     name           string index
+ *     return type    type, VOID for none
+ *     variables      count, then per variable a type and a string index, in IRFunction.variables order
+ *     parameters     count, then the variable index of each parameter
+ *     instructions   count n, then n opcode ordinals as bytes, n IR line numbers, n operand counts as
+ *                    unsigned shorts and the operand words of all n instructions
+ *
+ * A type is a tag byte followed by the size for arrays. An operand word holds its kind in the top
+ * two bits and a variable, constant or string index in the rest.
+ */
+final class IRBinaryFormat {
+
+    static final byte[] MAGIC = {(byte) 0x89, 'T', 'I', 'R'};
+
+    static final int VERSION = 1;
+
+    // Type tags
+    static final byte VOID = 0;
+    static final byte INT = 1;
+    static final byte FLOAT = 2;
+    static final byte INT_ARRAY = 3;
+    static final byte FLOAT_ARRAY = 4;
+
+    // Operand kinds
+    static final int VARIABLE = 0;
+    static final int CONSTANT = 1;
+    static final int LABEL = 2;
+    static final int FUNCTION = 3;
+
+    static final int KIND_SHIFT = 30;
+    static final int INDEX_MASK = (1 << KIND_SHIFT) - 1;
+
+    static final int MAX_OPERANDS = 0xffff;
+
+    private IRBinaryFormat() {}
+
+}
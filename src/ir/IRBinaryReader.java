@@ -0,0 +1,194 @@
+package ir;
+
+import ir.datatype.IRArrayType;
+import ir.datatype.IRFloatType;
+import ir.datatype.IRIntType;
+import ir.datatype.IRType;
+import ir.operand.*;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static ir.IRBinaryFormat.*;
+
+/**
+ * Loads a program written by IRBinaryWriter from a memory mapping of the file. Each name and
+ * constant text is decoded once from the string table and shared by every operand that uses it.
+ */
+public class IRBinaryReader {
+
+    private static final IRInstruction.OpCode[] OPCODES = IRInstruction.OpCode.values();
+
+    private ByteBuffer buffer;
+    private String[] strings;
+    private IRType[] constantTypes;
+    private String[] constantValues;
+
+    /**
+     * Whether the file starts with the magic number of the binary format
+     */
+    public static boolean isBinaryIRFile(String filename) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        try (InputStream in = Files.newInputStream(Paths.get(filename))) {
+            return in.readNBytes(magic, 0, magic.length) == magic.length && Arrays.equals(magic, MAGIC);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(filename);
+        }
+    }
+
+    public IRProgram readIRFile(String filename) throws IOException, IRException {
+        Path path = Paths.get(filename);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IRException(String.format("Binary IR file '%s' is too large", filename));
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(filename);
+        }
+
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            if (buffer.remaining() < magic.length || !Arrays.equals(get(magic), MAGIC))
+                throw new IRException(String.format("'%s' is not a binary IR file", filename));
+            int version = buffer.getInt();
+            if (version != VERSION)
+                throw new IRException(String.format("Unsupported binary IR version %d", version));
+            return readProgram();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IRException(String.format("Corrupt binary IR file '%s'", filename));
+        } finally {
+            buffer = null;
+            strings = null;
+            constantTypes = null;
+            constantValues = null;
+        }
+    }
+
+    private byte[] get(byte[] bytes) {
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private int getCount() {
+        int count = buffer.getInt();
+        // Every element takes at least a byte, which also rejects negative counts
+        if (count < 0 || count > buffer.remaining())
+            throw new IllegalArgumentException();
+        return count;
+    }
+
+    private IRProgram readProgram() throws IRException {
+        strings = new String[getCount()];
+        byte[] bytes = new byte[64];
+        for (int i = 0; i < strings.length; i++) {
+            int length = getCount();
+            if (length > bytes.length)
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            buffer.get(bytes, 0, length);
+            strings[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+
+        int constantCount = getCount();
+        constantTypes = new IRType[constantCount];
+        constantValues = new String[constantCount];
+        for (int i = 0; i < constantCount; i++) {
+            constantTypes[i] = readType();
+            constantValues[i] = strings[buffer.getInt()];
+        }
+
+        int functionCount = getCount();
+        List<IRFunction> functions = new ArrayList<>(functionCount);
+        for (int i = 0; i < functionCount; i++)
+            functions.add(readFunction());
+        if (buffer.hasRemaining())
+            throw new IllegalArgumentException();
+        return new IRProgram(functions);
+    }
+
+    private IRType readType() {
+        byte tag = buffer.get();
+        switch (tag) {
+            case VOID:
+                return null;
+            case INT:
+                return IRIntType.get();
+            case FLOAT:
+                return IRFloatType.get();
+            case INT_ARRAY:
+            case FLOAT_ARRAY: {
+                int size = buffer.getInt();
+                if (size <= 0)
+                    throw new IllegalArgumentException();
+                return IRArrayType.get(tag == INT_ARRAY ? IRIntType.get() : IRFloatType.get(), size);
+            }
+            default:
+                throw new IllegalArgumentException();
+        }
+    }
+
+    private IRFunction readFunction() {
+        String name = strings[buffer.getInt()];
+        IRType returnType = readType();
+
+        int variableCount = getCount();
+        List<IRVariableOperand> variables = new ArrayList<>(variableCount);
+        for (int i = 0; i < variableCount; i++) {
+            IRType type = readType();
+            variables.add(new IRVariableOperand(type, strings[buffer.getInt()], null));
+        }
+        int paramCount = getCount();
+        List<IRVariableOperand> params = new ArrayList<>(paramCount);
+        for (int i = 0; i < paramCount; i++)
+            params.add(variables.get(buffer.getInt()));
+
+        int instructionCount = getCount();
+        IRInstruction[] instructions = new IRInstruction[instructionCount];
+        for (int i = 0; i < instructionCount; i++) {
+            instructions[i] = new IRInstruction();
+            instructions[i].opCode = OPCODES[buffer.get()];
+        }
+        for (IRInstruction instruction : instructions)
+            instruction.irLineNumber = buffer.getInt();
+        for (IRInstruction instruction : instructions)
+            instruction.operands = new IROperand[buffer.getShort() & MAX_OPERANDS];
+        for (IRInstruction instruction : instructions) {
+            IROperand[] operands = instruction.operands;
+            for (int k = 0; k < operands.length; k++) {
+                int word = buffer.getInt();
+                int index = word & INDEX_MASK;
+                switch (word >>> KIND_SHIFT) {
+                    case VARIABLE: {
+                        IRVariableOperand variable = variables.get(index);
+                        operands[k] = new IRVariableOperand(variable.type, variable.getName(), instruction);
+                        break;
+                    }
+                    case CONSTANT:
+                        operands[k] = new IRConstantOperand(constantTypes[index], constantValues[index], instruction);
+                        break;
+                    case LABEL:
+                        operands[k] = new IRLabelOperand(strings[index], instruction);
+                        break;
+                    default:
+                        operands[k] = new IRFunctionOperand(strings[index], instruction);
+                        break;
+                }
+            }
+        }
+
+        return new IRFunction(name, returnType, params, variables, new ArrayList<>(Arrays.asList(instructions)));
+    }
+
+}
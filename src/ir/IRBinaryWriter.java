@@ -0,0 +1,158 @@
+package ir;
+
+import ir.datatype.IRArrayType;
+import ir.datatype.IRFloatType;
+import ir.datatype.IRIntType;
+import ir.datatype.IRType;
+import ir.operand.*;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static ir.IRBinaryFormat.*;
+
+/**
+ * Writes an IRProgram in the binary format described in IRBinaryFormat, which IRBinaryReader loads
+ * back without parsing text. Names, labels and constant texts are stored once in a string table.
+ */
+public class IRBinaryWriter {
+
+    private final DataOutputStream out;
+
+    // String -> index in the string table
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final List<String> stringList = new ArrayList<>();
+
+    // Constant text -> index in the constant pool, per type
+    private final Map<String, Integer> intConstants = new HashMap<>();
+    private final Map<String, Integer> floatConstants = new HashMap<>();
+    private final List<IRConstantOperand> constantList = new ArrayList<>();
+
+    public IRBinaryWriter(OutputStream out) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+    }
+
+    public void writeProgram(IRProgram program) throws IOException {
+        // Collect the tables first, since they precede the functions
+        for (IRFunction function : program.functions) {
+            addString(function.name);
+            for (IRVariableOperand variable : function.variables)
+                addString(variable.getName());
+            for (IRInstruction instruction : function.instructions) {
+                for (IROperand operand : instruction.operands) {
+                    if (operand instanceof IRConstantOperand)
+                        addConstant((IRConstantOperand) operand);
+                    else if (!(operand instanceof IRVariableOperand))
+                        addString(operand.toString());
+                }
+            }
+        }
+
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(stringList.size());
+        for (String s : stringList) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        out.writeInt(constantList.size());
+        for (IRConstantOperand constant : constantList) {
+            writeType(constant.type);
+            out.writeInt(strings.get(constant.getValueString()));
+        }
+        out.writeInt(program.functions.size());
+        for (IRFunction function : program.functions)
+            writeFunction(function);
+        out.flush();
+    }
+
+    private void addString(String s) {
+        if (!strings.containsKey(s)) {
+            strings.put(s, stringList.size());
+            stringList.add(s);
+        }
+    }
+
+    private void addConstant(IRConstantOperand constant) {
+        Map<String, Integer> pool = constant.type == IRFloatType.get() ? floatConstants : intConstants;
+        if (!pool.containsKey(constant.getValueString())) {
+            pool.put(constant.getValueString(), constantList.size());
+            constantList.add(constant);
+            addString(constant.getValueString());
+        }
+    }
+
+    private void writeType(IRType type) throws IOException {
+        if (type == null) {
+            out.writeByte(VOID);
+        } else if (type == IRIntType.get()) {
+            out.writeByte(INT);
+        } else if (type == IRFloatType.get()) {
+            out.writeByte(FLOAT);
+        } else {
+            IRArrayType arrayType = (IRArrayType) type;
+            out.writeByte(arrayType.getElementType() == IRFloatType.get() ? FLOAT_ARRAY : INT_ARRAY);
+            out.writeInt(arrayType.getSize());
+        }
+    }
+
+    private void writeFunction(IRFunction function) throws IOException {
+        out.writeInt(strings.get(function.name));
+        writeType(function.returnType);
+
+        Map<String, Integer> variableIndices = new HashMap<>();
+        out.writeInt(function.variables.size());
+        for (IRVariableOperand variable : function.variables) {
+            variableIndices.put(variable.getName(), variableIndices.size());
+            writeType(variable.type);
+            out.writeInt(strings.get(variable.getName()));
+        }
+        out.writeInt(function.parameters.size());
+        for (IRVariableOperand param : function.parameters)
+            out.writeInt(getVariableIndex(function, variableIndices, param));
+
+        List<IRInstruction> instructions = function.instructions;
+        out.writeInt(instructions.size());
+        for (IRInstruction instruction : instructions)
+            out.writeByte(instruction.opCode.ordinal());
+        for (IRInstruction instruction : instructions)
+            out.writeInt(instruction.irLineNumber);
+        for (IRInstruction instruction : instructions) {
+            if (instruction.operands.length > MAX_OPERANDS)
+                throw new IllegalArgumentException(String.format("Too many operands at line %d", instruction.irLineNumber));
+            out.writeShort(instruction.operands.length);
+        }
+        for (IRInstruction instruction : instructions) {
+            for (IROperand operand : instruction.operands) {
+                int kind;
+                int index;
+                if (operand instanceof IRVariableOperand) {
+                    kind = VARIABLE;
+                    index = getVariableIndex(function, variableIndices, (IRVariableOperand) operand);
+                } else if (operand instanceof IRConstantOperand) {
+                    IRConstantOperand constant = (IRConstantOperand) operand;
+                    kind = CONSTANT;
+                    index = (constant.type == IRFloatType.get() ? floatConstants : intConstants).get(constant.getValueString());
+                } else {
+                    kind = operand instanceof IRLabelOperand ? LABEL : FUNCTION;
+                    index = strings.get(operand.toString());
+                }
+                out.writeInt(kind << KIND_SHIFT | index);
+            }
+        }
+    }
+
+    private static int getVariableIndex(IRFunction function, Map<String, Integer> variableIndices, IRVariableOperand variable) {
+        Integer index = variableIndices.get(variable.getName());
+        if (index == null)
+            throw new IllegalArgumentException(String.format("Variable '%s' is not declared in function '%s'",
+                    variable.getName(), function.name));
+        return index;
+    }
+
+}
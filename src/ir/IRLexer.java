@@ -0,0 +1,434 @@
+package ir;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+
+/**
+ * Single-pass lexer over an IR file, used by IRReader in place of a Scanner and regular expressions.
+ *
+ * Lines are split and trimmed like Scanner.nextLine().trim(), and tokens are split like
+ * String.split on a run of separator characters, including its empty leading token. Both are kept
+ * as offsets into a char buffer, and token text is interned, so each distinct name or constant is
+ * created as a String only once.
+ */
+class IRLexer implements Closeable {
+
+    // Separators of the instruction and variable list tokens: [,\s]+
+    static final int INSTRUCTION = 0;
+    // Separators of the function signature tokens: [\s(),:]+
+    static final int SIGNATURE = 1;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // Input, absent in a fork
+    private final FileChannel channel;
+    private final CharsetDecoder decoder;
+    private final ByteBuffer bytes;
+    private final char[] chunk;
+    private final CharBuffer chunkBuffer;
+    private boolean endOfBytes = false;
+    private int chunkPosition = 0;
+    private int chunkLimit = 0;
+    private boolean endOfInput = false;
+    // Whether the last line ended with '\r', so that a following '\n' belongs to it
+    private boolean skipLineFeed = false;
+
+    // Text of the lines read since the last discardLines
+    private char[] text;
+    private int textSize = 0;
+
+    private int lineNumber = 0;
+    private int lineStart;
+    private int lineEnd;
+
+    // Tokens of the last tokenize call
+    private int tokenCount = 0;
+    private int[] tokenStarts = new int[16];
+    private int[] tokenEnds = new int[16];
+
+    // Interned token strings, open addressing
+    private String[] symbols = new String[1024];
+    private int symbolCount = 0;
+
+    IRLexer(File file) throws FileNotFoundException {
+        channel = new FileInputStream(file).getChannel();
+        decoder = Charset.defaultCharset().newDecoder();
+        bytes = ByteBuffer.allocate(BUFFER_SIZE);
+        bytes.flip();
+        chunk = new char[BUFFER_SIZE];
+        chunkBuffer = CharBuffer.wrap(chunk);
+        text = new char[BUFFER_SIZE];
+    }
+
+    private IRLexer(char[] text, int textSize) {
+        channel = null;
+        decoder = null;
+        bytes = null;
+        chunk = null;
+        chunkBuffer = null;
+        endOfInput = true;
+        this.text = text;
+        this.textSize = textSize;
+    }
+
+    /**
+     * Returns a lexer over the lines read so far, for tokenizing them on another thread. It has its
+     * own tokens and interned strings, and reads no further lines. The text must not be discarded
+     * while it is in use.
+     */
+    IRLexer fork() {
+        return new IRLexer(text, textSize);
+    }
+
+    /**
+     * Decodes the next chars into the chunk. Like Scanner(File), the input ends at a read error or
+     * at bytes that are not valid in the default charset, which are not replaced.
+     */
+    private boolean fill() {
+        chunkBuffer.clear();
+        while (!endOfInput && chunkBuffer.position() == 0) {
+            CoderResult result = decoder.decode(bytes, chunkBuffer, endOfBytes);
+            if (result.isError()) {
+                endOfInput = true;
+            } else if (result.isUnderflow()) {
+                if (endOfBytes) {
+                    decoder.flush(chunkBuffer);
+                    endOfInput = true;
+                } else {
+                    readBytes();
+                }
+            }
+        }
+        chunkPosition = 0;
+        chunkLimit = chunkBuffer.position();
+        return chunkLimit > 0;
+    }
+
+    private void readBytes() {
+        // Keeps the start of a multi-byte sequence split between reads
+        bytes.compact();
+        try {
+            endOfBytes = channel.read(bytes) < 0;
+        } catch (IOException e) {
+            endOfBytes = true;
+        }
+        bytes.flip();
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u2028' || c == '\u2029' || c == '\u0085';
+    }
+
+    /**
+     * Appends the next line to the text, returning false when the input has ended
+     */
+    private boolean readLine() {
+        boolean read = false;
+        while (true) {
+            if (chunkPosition == chunkLimit && !fill())
+                return read;
+            if (skipLineFeed) {
+                skipLineFeed = false;
+                if (chunk[chunkPosition] == '\n') {
+                    chunkPosition++;
+                    continue;
+                }
+            }
+            int end = chunkPosition;
+            while (end < chunkLimit && !isLineTerminator(chunk[end]))
+                end++;
+            if (end > chunkPosition) {
+                append(chunkPosition, end);
+                read = true;
+            }
+            chunkPosition = end;
+            if (end < chunkLimit) {
+                skipLineFeed = chunk[end] == '\r';
+                chunkPosition++;
+                return true;
+            }
+        }
+    }
+
+    private void append(int start, int end) {
+        int length = end - start;
+        if (textSize + length > text.length) {
+            char[] grown = new char[Math.max(text.length * 2, textSize + length)];
+            System.arraycopy(text, 0, grown, 0, textSize);
+            text = grown;
+        }
+        System.arraycopy(chunk, start, text, textSize, length);
+        textSize += length;
+    }
+
+    /**
+     * Advances to the next line that is not empty after trimming, returning false at the end of the
+     * file. Line numbers count every line, including empty ones.
+     */
+    boolean nextLine() {
+        while (true) {
+            int begin = textSize;
+            if (!readLine())
+                return false;
+            lineNumber++;
+            int start = begin;
+            int end = textSize;
+            while (start < end && text[start] <= ' ')
+                start++;
+            while (end > start && text[end - 1] <= ' ')
+                end--;
+            if (start < end) {
+                lineStart = start;
+                lineEnd = end;
+                return true;
+            }
+            textSize = begin;
+        }
+    }
+
+    /**
+     * Drops the text of every line read so far; their offsets must no longer be used
+     */
+    void discardLines() {
+        textSize = 0;
+    }
+
+    int getLineNumber() {
+        return lineNumber;
+    }
+
+    int getLineStart() {
+        return lineStart;
+    }
+
+    int getLineEnd() {
+        return lineEnd;
+    }
+
+    char charAt(int index) {
+        return text[index];
+    }
+
+    boolean startsWith(int start, int end, String prefix) {
+        if (end - start < prefix.length())
+            return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (text[start + i] != prefix.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    boolean equals(int start, int end, String s) {
+        return end - start == s.length() && startsWith(start, end, s);
+    }
+
+    /**
+     * Whether [start, end) is one or more ASCII digits
+     */
+    boolean isDigits(int start, int end) {
+        if (start >= end)
+            return false;
+        for (int i = start; i < end; i++) {
+            if (text[i] < '0' || text[i] > '9')
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the digits in [start, end) like Integer.parseInt, which still reports an overflow
+     */
+    int parseInt(int start, int end) {
+        if (end - start > 9)
+            return Integer.parseInt(new String(text, start, end - start));
+        int value = 0;
+        for (int i = start; i < end; i++)
+            value = value * 10 + (text[i] - '0');
+        return value;
+    }
+
+    /**
+     * Offset of the first c in [start, end), or -1
+     */
+    int indexOf(char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (text[i] == c)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Start of [start, end) after skipping leading characters up to ' ', as String.trim does
+     */
+    int trimStart(int start, int end) {
+        while (start < end && text[start] <= ' ')
+            start++;
+        return start;
+    }
+
+    /**
+     * End of [start, end) after dropping trailing characters up to ' ', as String.trim does
+     */
+    int trimEnd(int start, int end) {
+        while (end > start && text[end - 1] <= ' ')
+            end--;
+        return end;
+    }
+
+    private static boolean isSeparator(char c, int separators) {
+        switch (c) {
+            // \s of java.util.regex
+            case ' ':
+            case '\t':
+            case '\n':
+            case '\u000B':
+            case '\f':
+            case '\r':
+            case ',':
+                return true;
+            case '(':
+            case ')':
+            case ':':
+                return separators == SIGNATURE;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Splits [start, end) into tokens like String.split on a run of separators and returns their
+     * number: text starting with a separator gives an empty first token, and trailing empty tokens
+     * are dropped unless no separator was found at all
+     */
+    int tokenize(int start, int end, int separators) {
+        tokenCount = 0;
+        boolean split = false;
+        int tokenStart = start;
+        int i = start;
+        while (i < end) {
+            if (isSeparator(text[i], separators)) {
+                addToken(tokenStart, i);
+                split = true;
+                do {
+                    i++;
+                } while (i < end && isSeparator(text[i], separators));
+                tokenStart = i;
+            } else {
+                i++;
+            }
+        }
+        addToken(tokenStart, end);
+        if (split) {
+            while (tokenCount > 0 && tokenStarts[tokenCount - 1] == tokenEnds[tokenCount - 1])
+                tokenCount--;
+        }
+        return tokenCount;
+    }
+
+    private void addToken(int start, int end) {
+        if (tokenCount == tokenStarts.length) {
+            int[] starts = new int[tokenCount * 2];
+            int[] ends = new int[tokenCount * 2];
+            System.arraycopy(tokenStarts, 0, starts, 0, tokenCount);
+            System.arraycopy(tokenEnds, 0, ends, 0, tokenCount);
+            tokenStarts = starts;
+            tokenEnds = ends;
+        }
+        tokenStarts[tokenCount] = start;
+        tokenEnds[tokenCount] = end;
+        tokenCount++;
+    }
+
+    private void checkToken(int index) {
+        if (index < 0 || index >= tokenCount)
+            throw new ArrayIndexOutOfBoundsException(String.format("Index %d out of bounds for length %d", index, tokenCount));
+    }
+
+    int tokenStart(int index) {
+        checkToken(index);
+        return tokenStarts[index];
+    }
+
+    int tokenEnd(int index) {
+        checkToken(index);
+        return tokenEnds[index];
+    }
+
+    String token(int index) {
+        checkToken(index);
+        return intern(tokenStarts[index], tokenEnds[index]);
+    }
+
+    /**
+     * Returns the text of [start, end) as a String, the same instance for the same text
+     */
+    String intern(int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++)
+            hash = 31 * hash + text[i];
+        int mask = symbols.length - 1;
+        for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+            String symbol = symbols[slot];
+            if (symbol == null) {
+                symbol = new String(text, start, end - start);
+                symbols[slot] = symbol;
+                if (++symbolCount * 2 > symbols.length)
+                    growSymbols();
+                return symbol;
+            }
+            if (symbol.hashCode() == hash && regionEquals(symbol, start, end))
+                return symbol;
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private boolean regionEquals(String s, int start, int end) {
+        if (s.length() != end - start)
+            return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) != text[start + i])
+                return false;
+        }
+        return true;
+    }
+
+    private void growSymbols() {
+        String[] old = symbols;
+        symbols = new String[old.length * 2];
+        int mask = symbols.length - 1;
+        for (String symbol : old) {
+            if (symbol == null)
+                continue;
+            int slot = spread(symbol.hashCode()) & mask;
+            while (symbols[slot] != null)
+                slot = (slot + 1) & mask;
+            symbols[slot] = symbol;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing left to read
+        }
+    }
+
+}
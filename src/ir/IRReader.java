@@ -8,61 +8,30 @@ import ir.operand.*;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
 
 public class IRReader {
 
-    private class IRLine {
+    /**
+     * A non-empty line with its line number, as offsets into the text of the lexer
+     */
+    private static class IRLine {
         public int lineNumber;
-        public String line;
+        public int start;
+        public int end;
 
-        public IRLine(int lineNumber, String line) {
+        public IRLine(int lineNumber, int start, int end) {
             this.lineNumber = lineNumber;
-            this.line = line;
+            this.start = start;
+            this.end = end;
         }
     }
 
-    /**
-     * A text scanner that returns a non-empty line with its line number in each iteration
-     */
-    private class IRScanner implements Iterator<IRLine> {
-        private Scanner scanner;
-        private IRLine nextLine;
-        private int lineNumber;
-
-        public IRScanner(File file) throws FileNotFoundException {
-            scanner = new Scanner(file);
-            lineNumber = 0;
-        }
-
-        @Override
-        public boolean hasNext() {
-            if (nextLine != null)
-                return true;
-            while (scanner.hasNextLine()) {
-                lineNumber++;
-                String line = scanner.nextLine().trim();
-                // Ignore empty lines
-                if (!line.isEmpty()) {
-                    nextLine = new IRLine(lineNumber, line);
-                    return true;
-                }
-            }
-            return false;
-        }
-
-        @Override
-        public IRLine next() throws NoSuchElementException {
-            if (hasNext()) {
-                IRLine l = nextLine;
-                nextLine = null;
-                return l;
-            }
-            throw new NoSuchElementException();
-        }
-    }
+    private static final IRInstruction.OpCode[] OPCODES = IRInstruction.OpCode.values();
 
     private Map<String, IRFunction> intrinsics;
 
@@ -76,111 +45,277 @@ public class IRReader {
         intrinsics.put("putc", new IRFunction("putc", null, Arrays.asList(new IRVariableOperand(IRIntType.get(), "c", null)), null, null));
     }
 
+
+    /**
+     * Parses a text IR file, or loads one written by IRBinaryWriter
+     */
+    public IRProgram readIRFile(String filename) throws IOException, IRException {
+        if (IRBinaryReader.isBinaryIRFile(filename))
+            return new IRBinaryReader().readIRFile(filename);
+        return parseIRFile(filename);
+    }
+
     public IRProgram parseIRFile(String filename) throws FileNotFoundException, IRException {
-        Set<String> functionNames = new HashSet<>();
         List<IRFunction> functions = new ArrayList<>();
+        parseIRFile(filename, functions::add);
+        return new IRProgram(functions);
+    }
 
-        IRScanner irScanner = new IRScanner(new File(filename));
-        List<IRLine> irLines = new ArrayList<>();
-        while (irScanner.hasNext()) {
-            IRLine irLine = irScanner.next();
-            String line = irLine.line;
-            int lineNumber = irLine.lineNumber;
-
-            if (line.startsWith("#start_function")) {
-                if (!irLines.isEmpty())
-                    throw new IRException("Unexpected #start_function", lineNumber);
-                irLines.add(irLine);
-            } else if (line.startsWith("#end_function")) {
-                if (irLines.isEmpty())
-                    throw new IRException("Unexpected #end_function", lineNumber);
-                irLines.add(irLine);
-
-                IRFunction f = parseFunction(irLines);
-                if (functionNames.contains(f.name))
-                    throw new IRException(
-                            String.format("Redefinition of function '%s'", f.name),
-                            irLines.get(0).lineNumber);
-                if (intrinsics.containsKey(f.name))
-                    throw new IRException(
-                            String.format("Redefinition of intrinsic function '%s'", f.name),
-                            irLines.get(0).lineNumber);
+    /**
+     * Parses like parseIRFile(filename), but hands each function to the consumer as soon as its
+     * #end_function has been read instead of keeping the whole program. Calls may refer to functions
+     * further down, so they are checked at the end of the file, after every function has been
+     * consumed; only the signatures and call instructions are kept until then.
+     */
+    public void parseIRFile(String filename, Consumer<IRFunction> consumer) throws FileNotFoundException, IRException {
+        Set<String> functionNames = new HashSet<>();
+        // function name -> function with only its signature
+        Map<String, IRFunction> signatures = new HashMap<>();
+        // Call instructions of each function
+        List<List<IRInstruction>> calls = new ArrayList<>();
 
-                functions.add(f);
-                functionNames.add(f.name);
-                irLines.clear();
-            } else {
-                irLines.add(irLine);
+        IRLexer lexer = new IRLexer(new File(filename));
+        try {
+            List<IRLine> irLines = new ArrayList<>();
+            while (lexer.nextLine()) {
+                IRLine irLine = new IRLine(lexer.getLineNumber(), lexer.getLineStart(), lexer.getLineEnd());
+                int lineNumber = irLine.lineNumber;
+
+                if (lexer.startsWith(irLine.start, irLine.end, "#start_function")) {
+                    if (!irLines.isEmpty())
+                        throw new IRException("Unexpected #start_function", lineNumber);
+                    irLines.add(irLine);
+                } else if (lexer.startsWith(irLine.start, irLine.end, "#end_function")) {
+                    if (irLines.isEmpty())
+                        throw new IRException("Unexpected #end_function", lineNumber);
+                    irLines.add(irLine);
+
+                    IRFunction f = parseFunction(lexer, irLines);
+                    checkFunctionName(f, functionNames, irLines.get(0).lineNumber);
+                    signatures.put(f.name, new IRFunction(f.name, f.returnType, f.parameters, null, null));
+                    calls.add(getCalls(f));
+                    consumer.accept(f);
+                    irLines.clear();
+                    lexer.discardLines();
+                } else {
+                    irLines.add(irLine);
+                }
             }
+        } finally {
+            lexer.close();
         }
 
         // Check calls
+        signatures.putAll(intrinsics);
+        for (List<IRInstruction> functionCalls : calls)
+            checkCalls(functionCalls, signatures);
+    }
+
+    /**
+     * Result of a task run on the pool: its value, or what it threw
+     */
+    private static class Outcome<T> {
+        private T value;
+        private Throwable error;
+
+        public T get() throws IRException {
+            if (error instanceof IRException)
+                throw (IRException) error;
+            if (error instanceof RuntimeException)
+                throw (RuntimeException) error;
+            if (error instanceof Error)
+                throw (Error) error;
+            return value;
+        }
+    }
+
+    private interface ReaderTask<T> {
+        T run() throws IRException;
+    }
+
+    private static <T> ForkJoinTask<?> submit(ForkJoinPool pool, Outcome<T> outcome, ReaderTask<T> task) {
+        return pool.submit(() -> {
+            try {
+                outcome.value = task.run();
+            } catch (IRException | RuntimeException | Error e) {
+                outcome.error = e;
+            }
+        });
+    }
+
+    /**
+     * Parses like parseIRFile(filename), but parses the functions and checks their calls as tasks on
+     * the given pool. The text is split at #start_function and #end_function first and kept in
+     * memory until the functions are parsed. Functions keep their order in the file, and when the
+     * file has errors, the one thrown is the one the serial parse would have run into first.
+     */
+    public IRProgram parseIRFile(String filename, ForkJoinPool pool) throws FileNotFoundException, IRException {
+        List<List<IRLine>> functionLines = new ArrayList<>();
+        // Thrown once the functions before it have been parsed and checked
+        IRException structureError = null;
+
+        IRLexer lexer = new IRLexer(new File(filename));
+        try {
+            List<IRLine> irLines = new ArrayList<>();
+            while (structureError == null && lexer.nextLine()) {
+                IRLine irLine = new IRLine(lexer.getLineNumber(), lexer.getLineStart(), lexer.getLineEnd());
+                int lineNumber = irLine.lineNumber;
+
+                if (lexer.startsWith(irLine.start, irLine.end, "#start_function")) {
+                    if (!irLines.isEmpty())
+                        structureError = new IRException("Unexpected #start_function", lineNumber);
+                    irLines.add(irLine);
+                } else if (lexer.startsWith(irLine.start, irLine.end, "#end_function")) {
+                    if (irLines.isEmpty()) {
+                        structureError = new IRException("Unexpected #end_function", lineNumber);
+                    } else {
+                        irLines.add(irLine);
+                        functionLines.add(irLines);
+                        irLines = new ArrayList<>();
+                    }
+                } else {
+                    irLines.add(irLine);
+                }
+            }
+        } finally {
+            lexer.close();
+        }
+
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        try {
+            List<Outcome<IRFunction>> parsed = new ArrayList<>();
+            for (List<IRLine> irLines : functionLines) {
+                Outcome<IRFunction> outcome = new Outcome<>();
+                tasks.add(submit(pool, outcome, () -> parseFunction(lexer.fork(), irLines)));
+                parsed.add(outcome);
+            }
+
+            Set<String> functionNames = new HashSet<>();
+            List<IRFunction> functions = new ArrayList<>();
+            for (int i = 0; i < parsed.size(); i++) {
+                tasks.get(i).join();
+                IRFunction f = parsed.get(i).get();
+                checkFunctionName(f, functionNames, functionLines.get(i).get(0).lineNumber);
+                functions.add(f);
+            }
+            if (structureError != null)
+                throw structureError;
+
+            // Check calls
+            tasks.clear();
+            Map<String, IRFunction> functionMap = getFunctionMap(functions);
+            List<Outcome<Void>> checked = new ArrayList<>();
+            for (IRFunction f : functions) {
+                Outcome<Void> outcome = new Outcome<>();
+                tasks.add(submit(pool, outcome, () -> {
+                    checkCalls(f.instructions, functionMap);
+                    return null;
+                }));
+                checked.add(outcome);
+            }
+            for (int i = 0; i < checked.size(); i++) {
+                tasks.get(i).join();
+                checked.get(i).get();
+            }
+
+            return new IRProgram(functions);
+        } finally {
+            // Drop the tasks still queued after an error
+            for (ForkJoinTask<?> task : tasks)
+                task.cancel(false);
+        }
+    }
+
+    private void checkFunctionName(IRFunction f, Set<String> functionNames, int lineNumber) throws IRException {
+        if (functionNames.contains(f.name))
+            throw new IRException(
+                    String.format("Redefinition of function '%s'", f.name),
+                    lineNumber);
+        if (intrinsics.containsKey(f.name))
+            throw new IRException(
+                    String.format("Redefinition of intrinsic function '%s'", f.name),
+                    lineNumber);
+        functionNames.add(f.name);
+    }
+
+    private Map<String, IRFunction> getFunctionMap(List<IRFunction> functions) {
         Map<String, IRFunction> functionMap = new HashMap<>();
         for (IRFunction f : functions)
             functionMap.put(f.name, f);
         for (IRFunction f : intrinsics.values())
             functionMap.put(f.name, f);
-        for (IRFunction f : functions)
-            for (IRInstruction inst : f.instructions) {
-                IRFunction callee;
-                int argIdx;
-                if (inst.opCode == IRInstruction.OpCode.CALL) {
-                    callee = functionMap.get(((IRFunctionOperand) inst.operands[0]).getName());
-                    if (callee == null || callee.parameters.size() != inst.operands.length - 1 || callee.returnType != null)
-                        throw new IRException("Invalid function call", inst.irLineNumber);
-                    argIdx = 1;
-                } else if (inst.opCode == IRInstruction.OpCode.CALLR) {
-                    callee = functionMap.get(((IRFunctionOperand) inst.operands[1]).getName());
-                    IRVariableOperand retVar = (IRVariableOperand) inst.operands[0];
-                    if (callee == null || callee.parameters.size() != inst.operands.length - 2 || retVar.type != callee.returnType)
-                        throw new IRException("Invalid function call", inst.irLineNumber);
-                    argIdx = 2;
-                } else
-                    continue;
-                for (IRVariableOperand param : callee.parameters) {
-                    IROperand arg = inst.operands[argIdx];
-                    IRType argType;
-                    if (arg instanceof IRVariableOperand)
-                        argType = ((IRVariableOperand) arg).type;
-                    else
-                        argType = ((IRConstantOperand) arg).type;
-                    if (param.type != argType)
-                        throw new IRException("Invalid function call", inst.irLineNumber);
-                    argIdx++;
-                }
-            }
+        return functionMap;
+    }
 
-        return new IRProgram(functions);
+    private static List<IRInstruction> getCalls(IRFunction f) {
+        List<IRInstruction> calls = new ArrayList<>();
+        for (IRInstruction inst : f.instructions)
+            if (inst.opCode == IRInstruction.OpCode.CALL || inst.opCode == IRInstruction.OpCode.CALLR)
+                calls.add(inst);
+        return calls;
     }
 
-    private Pattern typePattern = Pattern.compile("^(?:(void)|(?:(int|float)(?:\\[(\\d+)\\])?))$");
+    private void checkCalls(List<IRInstruction> instructions, Map<String, IRFunction> functionMap) throws IRException {
+        for (IRInstruction inst : instructions) {
+            IRFunction callee;
+            int argIdx;
+            if (inst.opCode == IRInstruction.OpCode.CALL) {
+                callee = functionMap.get(((IRFunctionOperand) inst.operands[0]).getName());
+                if (callee == null || callee.parameters.size() != inst.operands.length - 1 || callee.returnType != null)
+                    throw new IRException("Invalid function call", inst.irLineNumber);
+                argIdx = 1;
+            } else if (inst.opCode == IRInstruction.OpCode.CALLR) {
+                callee = functionMap.get(((IRFunctionOperand) inst.operands[1]).getName());
+                IRVariableOperand retVar = (IRVariableOperand) inst.operands[0];
+                if (callee == null || callee.parameters.size() != inst.operands.length - 2 || retVar.type != callee.returnType)
+                    throw new IRException("Invalid function call", inst.irLineNumber);
+                argIdx = 2;
+            } else
+                continue;
+            for (IRVariableOperand param : callee.parameters) {
+                IROperand arg = inst.operands[argIdx];
+                IRType argType;
+                if (arg instanceof IRVariableOperand)
+                    argType = ((IRVariableOperand) arg).type;
+                else
+                    argType = ((IRConstantOperand) arg).type;
+                if (param.type != argType)
+                    throw new IRException("Invalid function call", inst.irLineNumber);
+                argIdx++;
+            }
+        }
+    }
 
-    private IRType parseType(String typeStr, int lineNumber) throws IRException {
-        Matcher m = typePattern.matcher(typeStr);
-        if (!m.matches())
-            throw new IRException(String.format("Invalid type '%s'", typeStr), lineNumber);
-        if (m.group(1) != null)
+    /**
+     * Parses void, int, float, int[size] or float[size] from a token
+     */
+    private IRType parseType(IRLexer lexer, int token, int lineNumber) throws IRException {
+        int start = lexer.tokenStart(token);
+        int end = lexer.tokenEnd(token);
+        if (lexer.equals(start, end, "void"))
             return null;
         IRType elementType;
-        switch (m.group(2)) {
-            case "int":
-                elementType = IRIntType.get();
-                break;
-            case "float":
-                elementType = IRFloatType.get();
-                break;
-            default:
-                throw new IRException(String.format("Invalid type '%s'", typeStr), lineNumber);
+        int sizeStart;
+        if (lexer.startsWith(start, end, "int")) {
+            elementType = IRIntType.get();
+            sizeStart = start + 3;
+        } else if (lexer.startsWith(start, end, "float")) {
+            elementType = IRFloatType.get();
+            sizeStart = start + 5;
+        } else {
+            throw new IRException(String.format("Invalid type '%s'", lexer.token(token)), lineNumber);
         }
-        if (m.group(3) == null)
+        if (sizeStart == end)
             return elementType;
-        int size = Integer.parseInt(m.group(3));
+        if (lexer.charAt(sizeStart) != '[' || lexer.charAt(end - 1) != ']' || !lexer.isDigits(sizeStart + 1, end - 1))
+            throw new IRException(String.format("Invalid type '%s'", lexer.token(token)), lineNumber);
+        int size = lexer.parseInt(sizeStart + 1, end - 1);
         if (size <= 0)
             throw new IRException(String.format("Invalid array size '%d'", size), lineNumber);
         return IRArrayType.get(elementType, size);
     }
 
-    private IRFunction parseFunction(List<IRLine> irLines)
+    private IRFunction parseFunction(IRLexer lexer, List<IRLine> irLines)
             throws IRException {
         // variable name -> IRVariableOperand
         Map<String, IRVariableOperand> variableMap = new HashMap<>();
@@ -190,26 +325,26 @@ public class IRReader {
 
         // Start parsing signature
         IRLine signatureLine = it.next();
-        String[] signatureTokens = signatureLine.line.replaceAll("[\\s(),:]+", " ").split(" ");
-        if (signatureTokens.length < 2 || signatureTokens.length % 2 != 0)
+        int signatureTokens = lexer.tokenize(signatureLine.start, signatureLine.end, IRLexer.SIGNATURE);
+        if (signatureTokens < 2 || signatureTokens % 2 != 0)
             throw new IRException("Invalid function signature", signatureLine.lineNumber);
 
         // Get return type
-        IRType retType = parseType(signatureTokens[0], signatureLine.lineNumber);
+        IRType retType = parseType(lexer, 0, signatureLine.lineNumber);
         if (retType instanceof IRArrayType)
-            throw new IRException(String.format("Invalid type '%s'", signatureTokens[0]), signatureLine.lineNumber);
+            throw new IRException(String.format("Invalid type '%s'", lexer.token(0)), signatureLine.lineNumber);
 
         // Get function name
-        String functionName = signatureTokens[1];
+        String functionName = lexer.token(1);
 
         // Get parameters
         List<IRVariableOperand> params = new ArrayList<>();
-        for (int i = 2; i < signatureTokens.length; i += 2) {
-            IRType paramType = parseType(signatureTokens[i], signatureLine.lineNumber);
+        for (int i = 2; i < signatureTokens; i += 2) {
+            IRType paramType = parseType(lexer, i, signatureLine.lineNumber);
             if (paramType == null)
-                throw new IRException(String.format("Invalid type '%s'", signatureTokens[i]), signatureLine.lineNumber);
-            String paramName = signatureTokens[i + 1];
-            if (!paramName.matches("^[A-Za-z_][A-Za-z0-9_]*$"))
+                throw new IRException(String.format("Invalid type '%s'", lexer.token(i)), signatureLine.lineNumber);
+            String paramName = lexer.token(i + 1);
+            if (!isIdentifier(paramName))
                 throw new IRException(String.format("Invalid parameter name '%s'", paramName), signatureLine.lineNumber);
             if (variableMap.containsKey(paramName))
                 throw new IRException(
@@ -223,16 +358,16 @@ public class IRReader {
         // Parse variable lists
         IRLine intListLine = it.next();
         IRLine floatListLine = it.next();
-        parseVariableList(intListLine, IRIntType.get(), variableMap);
-        parseVariableList(floatListLine, IRFloatType.get(), variableMap);
+        parseVariableList(lexer, intListLine, IRIntType.get(), variableMap);
+        parseVariableList(lexer, floatListLine, IRFloatType.get(), variableMap);
 
         // Parse instructions
         List<IRInstruction> instructions = new ArrayList<>();
         while (it.hasNext()) {
             IRLine irLine = it.next();
-            if (irLine.line.startsWith("#")) // Ignore #end_function
+            if (lexer.charAt(irLine.start) == '#') // Ignore #end_function
                 break;
-            instructions.add(parseInstruction(irLine, variableMap));
+            instructions.add(parseInstruction(lexer, irLine, variableMap));
         }
 
         // Check Labels
@@ -269,31 +404,31 @@ public class IRReader {
         return new IRFunction(functionName, retType, params, new ArrayList<>(variableMap.values()), instructions);
     }
 
-    private Pattern arrayPattern = Pattern.compile("^(.+)\\[(\\d+)\\]$");
-
-    private Pattern varNamePattern = Pattern.compile("^[A-Za-z_][A-Za-z0-9_]*$");
-
-    private void parseVariableList(IRLine varListLine, IRType elementType,
+    private void parseVariableList(IRLexer lexer, IRLine varListLine, IRType elementType,
                                    Map<String, IRVariableOperand> variableMap) throws IRException {
-        String varListStr = varListLine.line;
-        varListStr = varListStr.substring(varListStr.indexOf(':') + 1).trim();
-        if (varListStr.isEmpty())
+        // The list follows the first ':', or is the whole line without one
+        int colon = lexer.indexOf(':', varListLine.start, varListLine.end);
+        int start = colon < 0 ? varListLine.start : colon + 1;
+        int end = lexer.trimEnd(start, varListLine.end);
+        start = lexer.trimStart(start, end);
+        if (start == end)
             return;
-        String[] varNames = varListStr.split("[\\s,]+");
-        for (String varName : varNames) {
+        int varCount = lexer.tokenize(start, end, IRLexer.INSTRUCTION);
+        for (int i = 0; i < varCount; i++) {
             IRVariableOperand irVar;
-            Matcher m = arrayPattern.matcher(varName);
-            if (m.matches()) { // Array
-                int size = Integer.parseInt(m.group(2));
+            int bracket = findArraySize(lexer, lexer.tokenStart(i), lexer.tokenEnd(i));
+            if (bracket >= 0) { // Array
+                int size = lexer.parseInt(bracket + 1, lexer.tokenEnd(i) - 1);
                 if (size <= 0)
                     throw new IRException(String.format("Invalid array size '%d'", size), varListLine.lineNumber);
                 IRType arrayType = IRArrayType.get(elementType, size);
-                String arrayName = m.group(1);
-                if (!varNamePattern.matcher(arrayName).matches())
+                String arrayName = lexer.intern(lexer.tokenStart(i), bracket);
+                if (!isIdentifier(arrayName))
                     throw new IRException(String.format("Invalid variable name '%s'", arrayName), varListLine.lineNumber);
                 irVar = new IRVariableOperand(arrayType, arrayName, null);
             } else {
-                if (!varNamePattern.matcher(varName).matches())
+                String varName = lexer.token(i);
+                if (!isIdentifier(varName))
                     throw new IRException(String.format("Invalid variable name '%s'", varName), varListLine.lineNumber);
                 irVar = new IRVariableOperand(elementType, varName, null);
             }
@@ -305,17 +440,68 @@ public class IRReader {
         }
     }
 
-    private IRInstruction parseInstruction(IRLine irLine,
+    /**
+     * Offset of the '[' when [start, end) is a non-empty name followed by [digits], or -1
+     */
+    private static int findArraySize(IRLexer lexer, int start, int end) {
+        if (end - start < 4 || lexer.charAt(end - 1) != ']')
+            return -1;
+        int bracket = end - 2;
+        while (bracket > start && isDigit(lexer.charAt(bracket)))
+            bracket--;
+        if (bracket == start || bracket == end - 2 || lexer.charAt(bracket) != '[')
+            return -1;
+        return bracket;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Whether s matches [A-Za-z_][A-Za-z0-9_]*
+     */
+    private static boolean isIdentifier(String s) {
+        if (s.isEmpty())
+            return false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            boolean letter = (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || c == '_';
+            if (!letter && (i == 0 || !isDigit(c)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Looks up the first token as an OpCode name, ignoring case, or returns null
+     */
+    private static IRInstruction.OpCode parseOpCode(IRLexer lexer) {
+        int start = lexer.tokenStart(0);
+        int length = lexer.tokenEnd(0) - start;
+        for (IRInstruction.OpCode opCode : OPCODES) {
+            String name = opCode.name();
+            if (name.length() != length)
+                continue;
+            int i = 0;
+            while (i < length && Character.toUpperCase(lexer.charAt(start + i)) == name.charAt(i))
+                i++;
+            if (i == length)
+                return opCode;
+        }
+        return null;
+    }
+
+    private IRInstruction parseInstruction(IRLexer lexer, IRLine irLine,
                                            Map<String, IRVariableOperand> variableMap) throws IRException {
-        String line = irLine.line;
         int lineNumber = irLine.lineNumber;
 
         IRInstruction instruction = new IRInstruction();
         instruction.irLineNumber = lineNumber;
 
         // Treat label as a pseudo instruction
-        if (line.endsWith(":")) {
-            String labelStr = line.substring(0, line.length() - 1);
+        if (lexer.charAt(irLine.end - 1) == ':') {
+            String labelStr = lexer.intern(irLine.start, irLine.end - 1);
             IRLabelOperand labelOperand = new IRLabelOperand(labelStr, instruction);
             instruction.opCode = IRInstruction.OpCode.LABEL;
             instruction.operands = new IROperand[]{labelOperand};
@@ -323,21 +509,18 @@ public class IRReader {
         }
 
         // Parse opcode
-        String[] tokens = line.split("[,\\s]+");
-        IRInstruction.OpCode opCode;
-        try {
-            opCode = IRInstruction.OpCode.valueOf(tokens[0].toUpperCase());
-        } catch (IllegalArgumentException e) {
-            throw new IRException(String.format("Invalid OpCode '%s'", tokens[0]), lineNumber);
-        }
+        int tokenCount = lexer.tokenize(irLine.start, irLine.end, IRLexer.INSTRUCTION);
+        IRInstruction.OpCode opCode = parseOpCode(lexer);
+        if (opCode == null)
+            throw new IRException(String.format("Invalid OpCode '%s'", lexer.token(0)), lineNumber);
         instruction.opCode = opCode;
 
         // Parse operands
         List<IROperand> operands = new ArrayList<>();
         switch (opCode) {
             case ASSIGN: {
-                if (tokens.length > 3) {
-                    getConstantOrVariableOperands(instruction, operands, tokens, 1, 3, variableMap, lineNumber);
+                if (tokenCount > 3) {
+                    getConstantOrVariableOperands(instruction, operands, lexer, 1, 3, variableMap, lineNumber);
                     IRType t0 = getDataType(operands.get(0));
                     IRType t1 = getDataType(operands.get(1));
                     IRType t2 = getDataType(operands.get(2));
@@ -346,7 +529,7 @@ public class IRReader {
                             && ((IRArrayType) t0).getElementType() == t2))
                         throw new IRException("Invalid operand", instruction.irLineNumber);
                 } else {
-                    getConstantOrVariableOperands(instruction, operands, tokens, 1, 2, variableMap, lineNumber);
+                    getConstantOrVariableOperands(instruction, operands, lexer, 1, 2, variableMap, lineNumber);
                     IRType t0 = getDataType(operands.get(0));
                     IRType t1 = getDataType(operands.get(1));
                     if (t0 instanceof IRArrayType || t0 != t1)
@@ -360,7 +543,7 @@ public class IRReader {
             case DIV:
             case AND:
             case OR: {
-                getConstantOrVariableOperands(instruction, operands, tokens, 1, 3, variableMap, lineNumber);
+                getConstantOrVariableOperands(instruction, operands, lexer, 1, 3, variableMap, lineNumber);
                 IRType t0 = getDataType(operands.get(0));
                 IRType t1 = getDataType(operands.get(1));
                 IRType t2 = getDataType(operands.get(2));
@@ -370,7 +553,7 @@ public class IRReader {
                 break;
             }
             case GOTO: {
-                operands.add(new IRLabelOperand(tokens[1], instruction));
+                operands.add(new IRLabelOperand(lexer.token(1), instruction));
                 break;
             }
             case BREQ:
@@ -379,8 +562,8 @@ public class IRReader {
             case BRGT:
             case BRLEQ:
             case BRGEQ: {
-                operands.add(new IRLabelOperand(tokens[1], instruction));
-                getConstantOrVariableOperands(instruction, operands, tokens, 2, 3, variableMap, lineNumber);
+                operands.add(new IRLabelOperand(lexer.token(1), instruction));
+                getConstantOrVariableOperands(instruction, operands, lexer, 2, 3, variableMap, lineNumber);
                 IRType t1 = getDataType(operands.get(1));
                 IRType t2 = getDataType(operands.get(2));
                 if (t1 instanceof IRArrayType || t1 != t2)
@@ -388,28 +571,28 @@ public class IRReader {
                 break;
             }
             case RETURN: {
-                getConstantOrVariableOperands(instruction, operands, tokens, 1, 1, variableMap, lineNumber);
+                getConstantOrVariableOperands(instruction, operands, lexer, 1, 1, variableMap, lineNumber);
                 IRType t0 = getDataType(operands.get(0));
                 if (t0 instanceof IRArrayType)
                     throw new IRException("Invalid operand", instruction.irLineNumber);
                 break;
             }
             case CALL: {
-                operands.add(new IRFunctionOperand(tokens[1], instruction));
-                getConstantOrVariableOperands(instruction, operands, tokens, 2, tokens.length - 1, variableMap, lineNumber);
+                operands.add(new IRFunctionOperand(lexer.token(1), instruction));
+                getConstantOrVariableOperands(instruction, operands, lexer, 2, tokenCount - 1, variableMap, lineNumber);
                 break;
             }
             case CALLR: {
-                getConstantOrVariableOperands(instruction, operands, tokens, 1, 1, variableMap, lineNumber);
-                operands.add(new IRFunctionOperand(tokens[2], instruction));
-                getConstantOrVariableOperands(instruction, operands, tokens, 3, tokens.length - 1, variableMap, lineNumber);
+                getConstantOrVariableOperands(instruction, operands, lexer, 1, 1, variableMap, lineNumber);
+                operands.add(new IRFunctionOperand(lexer.token(2), instruction));
+                getConstantOrVariableOperands(instruction, operands, lexer, 3, tokenCount - 1, variableMap, lineNumber);
                 IRType t0 = getDataType(operands.get(0));
                 if (!(operands.get(0) instanceof IRVariableOperand) || t0 instanceof IRArrayType)
                     throw new IRException("Invalid operand", instruction.irLineNumber);
                 break;
             }
             case ARRAY_STORE: {
-                getConstantOrVariableOperands(instruction, operands, tokens, 1, 3, variableMap, lineNumber);
+                getConstantOrVariableOperands(instruction, operands, lexer, 1, 3, variableMap, lineNumber);
                 IRType t0 = getDataType(operands.get(0));
                 IRType t1 = getDataType(operands.get(1));
                 IRType t2 = getDataType(operands.get(2));
@@ -420,7 +603,7 @@ public class IRReader {
                 break;
             }
             case ARRAY_LOAD: {
-                getConstantOrVariableOperands(instruction, operands, tokens, 1, 3, variableMap, lineNumber);
+                getConstantOrVariableOperands(instruction, operands, lexer, 1, 3, variableMap, lineNumber);
                 IRType t0 = getDataType(operands.get(0));
                 IRType t1 = getDataType(operands.get(1));
                 IRType t2 = getDataType(operands.get(2));
@@ -440,27 +623,41 @@ public class IRReader {
 
     private void getConstantOrVariableOperands(IRInstruction instruction,
                                                List<IROperand> operands,
-                                               String[] tokens, int startIdx, int endIdx,
+                                               IRLexer lexer, int startIdx, int endIdx,
                                                Map<String, IRVariableOperand> variableMap,
                                                int lineNumber) throws IRException {
         for (int i = startIdx; i <= endIdx; i++) {
-            String token = tokens[i];
+            String token = lexer.token(i);
             if (isConstant(token)) {
                 if (token.indexOf('.') >= 0)
                     operands.add(new IRConstantOperand(IRFloatType.get(), token, instruction));
                 else
                     operands.add(new IRConstantOperand(IRIntType.get(), token, instruction));
             } else {
-                if (!variableMap.containsKey(token))
-                    throw new IRException(String.format("Variable '%s' used without definition", token), lineNumber);
                 IRVariableOperand variable = variableMap.get(token);
+                if (variable == null)
+                    throw new IRException(String.format("Variable '%s' used without definition", token), lineNumber);
                 operands.add(new IRVariableOperand(variable.type, variable.getName(), instruction));
             }
         }
     }
 
-    private boolean isConstant(String s) {
-        return s.matches("^-?\\d+(\\.\\d*)?$");
+    /**
+     * Whether s matches -?[0-9]+(\.[0-9]*)?
+     */
+    private static boolean isConstant(String s) {
+        int i = s.startsWith("-") ? 1 : 0;
+        int digitsStart = i;
+        while (i < s.length() && isDigit(s.charAt(i)))
+            i++;
+        if (i == digitsStart)
+            return false;
+        if (i < s.length() && s.charAt(i) == '.') {
+            i++;
+            while (i < s.length() && isDigit(s.charAt(i)))
+                i++;
+        }
+        return i == s.length();
     }
 
     private IRType getDataType(IROperand x) {
@@ -0,0 +1,339 @@
+package ir;
+
+import ir.datatype.IRArrayType;
+import ir.datatype.IRIntType;
+import ir.datatype.IRType;
+import ir.operand.IROperand;
+import ir.operand.IRVariableOperand;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.text.DecimalFormatSymbols;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Writes a program as the same bytes IRPrinter.printProgram prints to a PrintStream in the default
+ * charset, but renders it into reusable byte buffers and hands them to the channel in large writes.
+ *
+ * Text is copied into the buffer byte by byte while it is ASCII and the default charset encodes
+ * ASCII as single bytes; anything else goes through the charset like PrintStream does. The parallel
+ * mode renders consecutive runs of functions on a fork-join pool and writes each round of buffers
+ * with one gathering write.
+ */
+public class IRTextWriter {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // Roughly how many instructions each task of the parallel mode renders
+    private static final int CHUNK_INSTRUCTIONS = 1 << 14;
+
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    private static final boolean ASCII_BYTES = isAsciiBytes(CHARSET);
+
+    // Digits of array sizes are localized like String.format("%d") in IRArrayType.toString
+    private static final char ZERO_DIGIT =
+            DecimalFormatSymbols.getInstance(Locale.getDefault(Locale.Category.FORMAT)).getZeroDigit();
+
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private static final String[] OPCODE_NAMES = new String[IRInstruction.OpCode.values().length];
+
+    static {
+        for (IRInstruction.OpCode opCode : IRInstruction.OpCode.values())
+            OPCODE_NAMES[opCode.ordinal()] = opCode.toString();
+    }
+
+    private static final ThreadLocal<TextBuffer> threadBuffers = ThreadLocal.withInitial(TextBuffer::new);
+
+    private final WritableByteChannel channel;
+
+    public IRTextWriter(OutputStream out) {
+        this(Channels.newChannel(out));
+    }
+
+    public IRTextWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    public void writeProgram(IRProgram program) throws IOException {
+        TextBuffer buffer = threadBuffers.get();
+        buffer.reset();
+        for (IRFunction function : program.functions) {
+            buffer.appendFunction(function);
+            if (buffer.size >= BUFFER_SIZE) {
+                write(new ByteBuffer[]{buffer.toByteBuffer()});
+                buffer.reset();
+            }
+        }
+        write(new ByteBuffer[]{buffer.toByteBuffer()});
+        buffer.reset();
+    }
+
+    /**
+     * Writes the program with its functions rendered on the pool. Each round renders one run of
+     * functions per thread into that thread's buffer and then writes the buffers in order, so only
+     * a few runs are held in memory at once.
+     */
+    public void writeProgram(IRProgram program, ForkJoinPool pool) throws IOException {
+        List<IRFunction> functions = program.functions;
+        // Start of each run of functions, and the end of the last run
+        List<Integer> runs = new ArrayList<>();
+        int instructions = CHUNK_INSTRUCTIONS;
+        for (int i = 0; i < functions.size(); i++) {
+            if (instructions >= CHUNK_INSTRUCTIONS) {
+                runs.add(i);
+                instructions = 0;
+            }
+            instructions += functions.get(i).instructions.size() + functions.get(i).variables.size();
+        }
+        runs.add(functions.size());
+
+        TextBuffer[] buffers = new TextBuffer[Math.max(1, pool.getParallelism())];
+        for (int k = 0; k < buffers.length; k++)
+            buffers[k] = new TextBuffer();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        try {
+            for (int run = 0; run + 1 < runs.size(); run += buffers.length) {
+                int count = Math.min(buffers.length, runs.size() - 1 - run);
+                tasks.clear();
+                for (int k = 0; k < count; k++) {
+                    TextBuffer buffer = buffers[k];
+                    int from = runs.get(run + k);
+                    int to = runs.get(run + k + 1);
+                    tasks.add(pool.submit(() -> {
+                        buffer.reset();
+                        for (int i = from; i < to; i++)
+                            buffer.appendFunction(functions.get(i));
+                    }));
+                }
+                ByteBuffer[] rendered = new ByteBuffer[count];
+                for (int k = 0; k < count; k++) {
+                    tasks.get(k).join();
+                    rendered[k] = buffers[k].toByteBuffer();
+                }
+                write(rendered);
+            }
+        } finally {
+            for (ForkJoinTask<?> task : tasks)
+                task.cancel(false);
+        }
+    }
+
+    /**
+     * The text of one function as printProgram prints it, including the empty line that follows it
+     */
+    public static byte[] toByteArray(IRFunction function) {
+        TextBuffer buffer = threadBuffers.get();
+        buffer.reset();
+        buffer.appendFunction(function);
+        byte[] bytes = Arrays.copyOf(buffer.bytes, buffer.size);
+        buffer.reset();
+        return bytes;
+    }
+
+    private void write(ByteBuffer[] buffers) throws IOException {
+        if (channel instanceof GatheringByteChannel) {
+            long remaining = 0;
+            for (ByteBuffer buffer : buffers)
+                remaining += buffer.remaining();
+            GatheringByteChannel gathering = (GatheringByteChannel) channel;
+            while (remaining > 0)
+                remaining -= gathering.write(buffers);
+        } else {
+            for (ByteBuffer buffer : buffers) {
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+            }
+        }
+    }
+
+    private static boolean isAsciiBytes(Charset charset) {
+        char[] ascii = new char[0x80];
+        for (int c = 0; c < ascii.length; c++)
+            ascii[c] = (char) c;
+        byte[] bytes = new String(ascii).getBytes(charset);
+        if (bytes.length != ascii.length)
+            return false;
+        for (int c = 0; c < ascii.length; c++) {
+            if (bytes[c] != c)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Growable byte buffer that renders functions in the layout of IRPrinter
+     */
+    private static class TextBuffer {
+
+        byte[] bytes = new byte[BUFFER_SIZE];
+        int size = 0;
+
+        private final Set<String> paramNames = new HashSet<>();
+
+        void reset() {
+            size = 0;
+            // Large programs can grow a buffer well past its usual size
+            if (bytes.length > 4 * BUFFER_SIZE)
+                bytes = new byte[BUFFER_SIZE];
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(bytes, 0, size);
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+        }
+
+        private void append(char c) {
+            if (c < 0x80 && ASCII_BYTES) {
+                ensureCapacity(1);
+                bytes[size++] = (byte) c;
+            } else {
+                append(String.valueOf(c));
+            }
+        }
+
+        private void append(String s) {
+            int length = s.length();
+            ensureCapacity(length);
+            if (ASCII_BYTES) {
+                int start = size;
+                int i = 0;
+                while (i < length && s.charAt(i) < 0x80)
+                    bytes[size++] = (byte) s.charAt(i++);
+                if (i == length)
+                    return;
+                size = start;
+            }
+            byte[] encoded = s.getBytes(CHARSET);
+            ensureCapacity(encoded.length);
+            System.arraycopy(encoded, 0, bytes, size, encoded.length);
+            size += encoded.length;
+        }
+
+        private void appendLine() {
+            append(LINE_SEPARATOR);
+        }
+
+        private void appendArraySize(int n) {
+            if (n < 0) {
+                // Not produced by the reader, so leave the rare case to the formatter
+                append(String.format("%d", n));
+                return;
+            }
+            int digits = 1;
+            for (int m = n; m >= 10; m /= 10)
+                digits++;
+            char[] text = new char[digits];
+            for (int k = digits - 1; k >= 0; k--) {
+                text[k] = (char) (ZERO_DIGIT + n % 10);
+                n /= 10;
+            }
+            append(new String(text));
+        }
+
+        private void appendType(IRType type) {
+            if (type instanceof IRArrayType) {
+                IRArrayType arrayType = (IRArrayType) type;
+                append(arrayType.getElementType().toString());
+                append('[');
+                appendArraySize(arrayType.getSize());
+                append(']');
+            } else {
+                append(type.toString());
+            }
+        }
+
+        void appendFunction(IRFunction function) {
+            append("#start_function");
+            appendLine();
+
+            // Signature
+            if (function.returnType == null)
+                append("void");
+            else
+                appendType(function.returnType);
+            append(' ');
+            append(function.name);
+            append('(');
+            boolean first = true;
+            for (IRVariableOperand param : function.parameters) {
+                if (first)
+                    first = false;
+                else
+                    append(", ");
+                appendType(param.type);
+                append(' ');
+                append(param.getName());
+            }
+            append("):");
+            appendLine();
+
+            // Variable lists
+            paramNames.clear();
+            for (IRVariableOperand param : function.parameters)
+                paramNames.add(param.getName());
+            append("int-list: ");
+            appendVariables(function, true);
+            appendLine();
+            append("float-list: ");
+            appendVariables(function, false);
+            appendLine();
+
+            // Instructions
+            for (IRInstruction instruction : function.instructions) {
+                if (instruction.opCode == IRInstruction.OpCode.LABEL) {
+                    append(instruction.operands[0].toString());
+                    append(':');
+                } else {
+                    append("    ");
+                    append(OPCODE_NAMES[instruction.opCode.ordinal()]);
+                    for (IROperand operand : instruction.operands) {
+                        append(", ");
+                        append(operand.toString());
+                    }
+                }
+                appendLine();
+            }
+
+            append("#end_function");
+            appendLine();
+            appendLine();
+        }
+
+        private void appendVariables(IRFunction function, boolean intList) {
+            boolean first = true;
+            for (IRVariableOperand variable : function.variables) {
+                if (paramNames.contains(variable.getName()))
+                    continue;
+                IRType type = variable.type;
+                if (type instanceof IRArrayType)
+                    type = ((IRArrayType) type).getElementType();
+                if ((type == IRIntType.get()) != intList)
+                    continue;
+                if (first)
+                    first = false;
+                else
+                    append(", ");
+                append(variable.getName());
+                if (variable.type instanceof IRArrayType) {
+                    append('[');
+                    appendArraySize(((IRArrayType) variable.type).getSize());
+                    append(']');
+                }
+            }
+        }
+    }
+
+}
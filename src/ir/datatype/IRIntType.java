@@ -2,14 +2,11 @@ package ir.datatype;
 
 public class IRIntType extends IRType {
 
-    private static IRIntType instance;
+    private static final IRIntType instance = new IRIntType();
 
     private IRIntType() {}
 
     public static IRIntType get() {
-        if (instance == null) {
-            instance = new IRIntType();
-        }
         return instance;
     }
 
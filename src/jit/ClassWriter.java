@@ -0,0 +1,195 @@
+package jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Minimal writer for a class file holding only static methods.
+ *
+ * Classes are emitted with major version 49 so the JVM verifies them by type inference and no
+ * StackMapTable frames have to be computed.
+ */
+class ClassWriter {
+
+    private static final int CLASS_VERSION = 49;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_STATIC = 0x0008;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndices = new HashMap<>();
+    private int poolCount = 1;
+
+    private final ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+    private final DataOutputStream methods = new DataOutputStream(methodBytes);
+    private int methodCount = 0;
+
+    private final String className;
+
+    public ClassWriter(String className) {
+        this.className = className;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public int utf8(String value) {
+        return constant("U" + value, () -> {
+            pool.writeByte(CONSTANT_UTF8);
+            pool.writeUTF(value);
+        }, 1);
+    }
+
+    public int classRef(String internalName) {
+        int name = utf8(internalName);
+        return constant("C" + internalName, () -> {
+            pool.writeByte(CONSTANT_CLASS);
+            pool.writeShort(name);
+        }, 1);
+    }
+
+    public int intConstant(int value) {
+        return constant("I" + value, () -> {
+            pool.writeByte(CONSTANT_INTEGER);
+            pool.writeInt(value);
+        }, 1);
+    }
+
+    public int floatConstant(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        return constant("F" + bits, () -> {
+            pool.writeByte(CONSTANT_FLOAT);
+            pool.writeInt(bits);
+        }, 1);
+    }
+
+    public int methodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+    }
+
+    public int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_FIELDREF, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int nameAndType = constant("N" + name + ":" + descriptor, () -> {
+            pool.writeByte(CONSTANT_NAME_AND_TYPE);
+            pool.writeShort(nameIndex);
+            pool.writeShort(descriptorIndex);
+        }, 1);
+        return constant("M" + tag + owner + "." + name + ":" + descriptor, () -> {
+            pool.writeByte(tag);
+            pool.writeShort(ownerIndex);
+            pool.writeShort(nameAndType);
+        }, 1);
+    }
+
+    private interface PoolEntry {
+        void write() throws IOException;
+    }
+
+    private int constant(String key, PoolEntry entry, int slots) {
+        Integer index = poolIndices.get(key);
+        if (index != null)
+            return index;
+        try {
+            entry.write();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        index = poolCount;
+        poolCount += slots;
+        if (poolCount > 0xffff)
+            throw new IllegalStateException("Constant pool overflow");
+        poolIndices.put(key, index);
+        return index;
+    }
+
+    /**
+     * Adds a public static method whose body is the finished code of the given builder
+     */
+    public void addMethod(String name, String descriptor, CodeBuilder code, int maxStack, int maxLocals) {
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int codeIndex = utf8("Code");
+        int lineTableIndex = utf8("LineNumberTable");
+        byte[] bytes = code.toByteArray();
+        int[] lineTable = code.getLineTable();
+        try {
+            methods.writeShort(ACC_PUBLIC | ACC_STATIC);
+            methods.writeShort(nameIndex);
+            methods.writeShort(descriptorIndex);
+            methods.writeShort(1);
+
+            int lineTableLength = 2 + lineTable.length * 2;
+            methods.writeShort(codeIndex);
+            methods.writeInt(2 + 2 + 4 + bytes.length + 2 + 2 + 6 + lineTableLength);
+            methods.writeShort(maxStack);
+            methods.writeShort(maxLocals);
+            methods.writeInt(bytes.length);
+            methods.write(bytes);
+            methods.writeShort(0); // Exception table
+            methods.writeShort(1);
+            methods.writeShort(lineTableIndex);
+            methods.writeInt(lineTableLength);
+            methods.writeShort(lineTable.length / 2);
+            for (int entry : lineTable)
+                methods.writeShort(entry);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        methodCount++;
+    }
+
+    public byte[] toByteArray(String sourceFile) {
+        int thisIndex = classRef(className);
+        int superIndex = classRef("java/lang/Object");
+        int sourceFileAttr = utf8("SourceFile");
+        int sourceFileIndex = utf8(sourceFile);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(CLASS_VERSION);
+            out.writeShort(poolCount);
+            pool.flush();
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(0); // Interfaces
+            out.writeShort(0); // Fields
+            out.writeShort(methodCount);
+            methods.flush();
+            methodBytes.writeTo(out);
+            out.writeShort(1);
+            out.writeShort(sourceFileAttr);
+            out.writeInt(2);
+            out.writeShort(sourceFileIndex);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
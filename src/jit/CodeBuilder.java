@@ -0,0 +1,263 @@
+package jit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Byte buffer for the body of one JVM method, with forward-referencing branch labels and a
+ * line number table.
+ *
+ * Branches are emitted with 16-bit offsets unless the builder is in wide mode, where every branch
+ * becomes a goto_w (conditional branches jump over it with the inverted condition). Callers retry
+ * in wide mode when {@link #needsWideBranches()} reports that the method grew too large.
+ */
+class CodeBuilder {
+
+    static final int ICONST_0 = 0x03;
+    static final int LCONST_1 = 0x0a;
+    static final int FCONST_0 = 0x0b;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC = 0x12;
+    static final int LDC_W = 0x13;
+    static final int ILOAD = 0x15;
+    static final int FLOAD = 0x17;
+    static final int ALOAD = 0x19;
+    static final int IALOAD = 0x2e;
+    static final int LALOAD = 0x2f;
+    static final int FALOAD = 0x30;
+    static final int ISTORE = 0x36;
+    static final int FSTORE = 0x38;
+    static final int ASTORE = 0x3a;
+    static final int IASTORE = 0x4f;
+    static final int LASTORE = 0x50;
+    static final int FASTORE = 0x51;
+    static final int POP = 0x57;
+    static final int DUP2 = 0x5c;
+    static final int IADD = 0x60;
+    static final int LADD = 0x61;
+    static final int FADD = 0x62;
+    static final int ISUB = 0x64;
+    static final int FSUB = 0x66;
+    static final int IMUL = 0x68;
+    static final int FMUL = 0x6a;
+    static final int IDIV = 0x6c;
+    static final int FDIV = 0x6e;
+    static final int IAND = 0x7e;
+    static final int IOR = 0x80;
+    static final int I2L = 0x85;
+    static final int FCMPL = 0x95;
+    static final int FCMPG = 0x96;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int IF_ICMPEQ = 0x9f;
+    static final int IF_ICMPNE = 0xa0;
+    static final int IF_ICMPLT = 0xa1;
+    static final int IF_ICMPGE = 0xa2;
+    static final int IF_ICMPGT = 0xa3;
+    static final int IF_ICMPLE = 0xa4;
+    static final int GOTO = 0xa7;
+    static final int IRETURN = 0xac;
+    static final int FRETURN = 0xae;
+    static final int RETURN = 0xb1;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKESTATIC = 0xb8;
+    static final int NEWARRAY = 0xbc;
+    static final int ATHROW = 0xbf;
+    static final int WIDE = 0xc4;
+    static final int GOTO_W = 0xc8;
+
+    static final int T_FLOAT = 6;
+    static final int T_INT = 10;
+
+    // Largest method body whose branches all fit in 16-bit offsets
+    private static final int MAX_NARROW_SIZE = 0x7fff;
+    private static final int MAX_CODE_SIZE = 0xffff;
+
+    static class Label {
+        private int position = -1;
+        private final List<int[]> fixups = new ArrayList<>();
+    }
+
+    private final boolean wide;
+    private byte[] code = new byte[256];
+    private int size = 0;
+    private final List<Label> labels = new ArrayList<>();
+    private int[] lineTable = new int[32];
+    private int lineTableSize = 0;
+
+    CodeBuilder(boolean wide) {
+        this.wide = wide;
+    }
+
+    int position() {
+        return size;
+    }
+
+    boolean needsWideBranches() {
+        return !wide && size > MAX_NARROW_SIZE;
+    }
+
+    boolean isTooLarge() {
+        return size > MAX_CODE_SIZE;
+    }
+
+    void op(int opcode) {
+        u1(opcode);
+    }
+
+    void u1(int value) {
+        if (size == code.length)
+            code = Arrays.copyOf(code, code.length * 2);
+        code[size++] = (byte) value;
+    }
+
+    void u2(int value) {
+        u1(value >> 8);
+        u1(value);
+    }
+
+    void u4(int value) {
+        u2(value >> 16);
+        u2(value);
+    }
+
+    /**
+     * Marks the code emitted from here on as belonging to the given source line
+     */
+    void lineNumber(int line) {
+        if (lineTableSize + 2 > lineTable.length)
+            lineTable = Arrays.copyOf(lineTable, lineTable.length * 2);
+        lineTable[lineTableSize++] = size;
+        lineTable[lineTableSize++] = line;
+    }
+
+    int[] getLineTable() {
+        return Arrays.copyOf(lineTable, lineTableSize);
+    }
+
+    Label newLabel() {
+        Label label = new Label();
+        labels.add(label);
+        return label;
+    }
+
+    void mark(Label label) {
+        label.position = size;
+    }
+
+    /**
+     * Emits a goto or an if* instruction jumping to the label
+     */
+    void jump(int opcode, Label label) {
+        if (!wide) {
+            label.fixups.add(new int[]{size, size + 1, 2});
+            op(opcode);
+            u2(0);
+            return;
+        }
+        if (opcode != GOTO) {
+            // Skip the following goto_w (3 + 5 bytes) when the condition does not hold
+            op(((opcode - IFEQ) ^ 1) + IFEQ);
+            u2(8);
+        }
+        label.fixups.add(new int[]{size, size + 1, 4});
+        op(GOTO_W);
+        u4(0);
+    }
+
+    void loadInt(int local) {
+        load(ILOAD, 0x1a, local);
+    }
+
+    void loadFloat(int local) {
+        load(FLOAD, 0x22, local);
+    }
+
+    void loadReference(int local) {
+        load(ALOAD, 0x2a, local);
+    }
+
+    void storeInt(int local) {
+        load(ISTORE, 0x3b, local);
+    }
+
+    void storeFloat(int local) {
+        load(FSTORE, 0x43, local);
+    }
+
+    void storeReference(int local) {
+        load(ASTORE, 0x4b, local);
+    }
+
+    private void load(int opcode, int shortOpcode, int local) {
+        if (local <= 3) {
+            op(shortOpcode + local);
+        } else if (local <= 0xff) {
+            op(opcode);
+            u1(local);
+        } else {
+            op(WIDE);
+            op(opcode);
+            u2(local);
+        }
+    }
+
+    void pushInt(ClassWriter cw, int value) {
+        if (value >= -1 && value <= 5) {
+            op(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            op(BIPUSH);
+            u1(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            op(SIPUSH);
+            u2(value);
+        } else {
+            ldc(cw.intConstant(value));
+        }
+    }
+
+    void pushFloat(ClassWriter cw, float value) {
+        // fconst_0 would lose the sign of -0.0
+        if (Float.floatToRawIntBits(value) == 0 || value == 1.0f || value == 2.0f)
+            op(FCONST_0 + (int) value);
+        else
+            ldc(cw.floatConstant(value));
+    }
+
+    private void ldc(int index) {
+        if (index <= 0xff) {
+            op(LDC);
+            u1(index);
+        } else {
+            op(LDC_W);
+            u2(index);
+        }
+    }
+
+    byte[] toByteArray() {
+        for (Label label : labels) {
+            for (int[] fixup : label.fixups) {
+                int offset = label.position - fixup[0];
+                int at = fixup[1];
+                if (fixup[2] == 2) {
+                    code[at] = (byte) (offset >> 8);
+                    code[at + 1] = (byte) offset;
+                } else {
+                    code[at] = (byte) (offset >> 24);
+                    code[at + 1] = (byte) (offset >> 16);
+                    code[at + 2] = (byte) (offset >> 8);
+                    code[at + 3] = (byte) offset;
+                }
+            }
+        }
+        return Arrays.copyOf(code, size);
+    }
+
+}
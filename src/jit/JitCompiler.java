@@ -0,0 +1,520 @@
+package jit;
+
+import ir.IRException;
+import ir.IRFunction;
+import ir.IRInstruction;
+import ir.IRProgram;
+import ir.datatype.IRArrayType;
+import ir.datatype.IRFloatType;
+import ir.datatype.IRIntType;
+import ir.datatype.IRType;
+import ir.operand.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Translates an IRProgram into a JVM class with one static method per IR function, so that HotSpot
+ * can compile IR programs to native code.
+ *
+ * Int and float variables become JVM locals, arrays become int[]/float[] locals, branches become
+ * JVM branches and calls become invokestatic. Every method takes the per-run JitContext as its
+ * first argument, which carries the intrinsic I/O state and the optional instruction counters.
+ * Counters are updated once per basic block with the number of instructions of each opcode in it.
+ */
+public class JitCompiler {
+
+    private static final AtomicInteger classCounter = new AtomicInteger();
+
+    private static final String CONTEXT = "jit/JitContext";
+    private static final String CONTEXT_DESC = "L" + CONTEXT + ";";
+    private static final String RUNTIME = "jit/JitRuntime";
+    private static final String ERROR_DESC = "()Ljit/JitRuntime$RuntimeError;";
+
+    private final boolean countInstructions;
+
+    private ClassWriter cw;
+    private Map<String, Integer> functionIndices;
+    private String[] methodNames;
+    private String[] methodDescriptors;
+
+    public JitCompiler(boolean countInstructions) {
+        this.countInstructions = countInstructions;
+    }
+
+    /**
+     * Compiles the program, or returns null when a function is too large for the 64 KB code limit
+     * of a JVM method. IRInterpreter runs such programs on the bytecode engine instead.
+     */
+    public JitProgram compile(IRProgram program) throws IRException {
+        String className = "jit/generated/IRProgram" + classCounter.incrementAndGet();
+        cw = new ClassWriter(className);
+
+        int count = program.functions.size();
+        functionIndices = new HashMap<>();
+        methodNames = new String[count];
+        methodDescriptors = new String[count];
+        Map<String, IRFunction> methodFunctions = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            IRFunction function = program.functions.get(i);
+            functionIndices.put(function.name, i);
+            methodNames[i] = isValidMethodName(function.name) ? function.name : "f$" + i;
+            methodDescriptors[i] = getDescriptor(function);
+            methodFunctions.put(methodNames[i], function);
+        }
+
+        Integer mainIndex = functionIndices.get("main");
+        if (mainIndex == null)
+            throw new IRException("Undefined reference to function 'main'");
+
+        for (int i = 0; i < count; i++) {
+            IRFunction function = program.functions.get(i);
+            FunctionCompiler compiler = new FunctionCompiler(function, false);
+            if (compiler.code.needsWideBranches())
+                compiler = new FunctionCompiler(function, true);
+            if (compiler.code.isTooLarge())
+                return null;
+            cw.addMethod(methodNames[i], methodDescriptors[i], compiler.code, compiler.maxStack, compiler.maxLocals);
+        }
+
+        byte[] classBytes = cw.toByteArray(className.substring(className.lastIndexOf('/') + 1) + ".ir");
+        Class<?> cls = new GeneratedClassLoader(JitCompiler.class.getClassLoader())
+                .define(className.replace('/', '.'), classBytes);
+        return new JitProgram(cls, methodNames[mainIndex], methodFunctions, countInstructions);
+    }
+
+    private static class GeneratedClassLoader extends ClassLoader {
+        GeneratedClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    private static boolean isValidMethodName(String name) {
+        if (name.isEmpty())
+            return false;
+        for (int i = 0; i < name.length(); i++)
+            if (".;[/<>".indexOf(name.charAt(i)) >= 0)
+                return false;
+        return true;
+    }
+
+    private static String getDescriptor(IRType type) {
+        if (type == null)
+            return "V";
+        if (type instanceof IRArrayType)
+            return "[" + getDescriptor(((IRArrayType) type).getElementType());
+        return type == IRIntType.get() ? "I" : "F";
+    }
+
+    private static String getDescriptor(IRFunction function) {
+        StringBuilder sb = new StringBuilder("(").append(CONTEXT_DESC);
+        for (IRVariableOperand param : function.parameters)
+            sb.append(getDescriptor(param.type));
+        return sb.append(')').append(getDescriptor(function.returnType)).toString();
+    }
+
+    private static IRType getDataType(IROperand operand) {
+        if (operand instanceof IRVariableOperand)
+            return ((IRVariableOperand) operand).type;
+        if (operand instanceof IRConstantOperand)
+            return ((IRConstantOperand) operand).type;
+        return null;
+    }
+
+    private static boolean isFloatType(IRType type) {
+        if (type instanceof IRArrayType)
+            type = ((IRArrayType) type).getElementType();
+        return type == IRFloatType.get();
+    }
+
+    /**
+     * Compiles one function. Line numbers in the emitted line table are 1-based instruction indices
+     * into the IR function, which JitProgram maps back to IR source lines.
+     */
+    private class FunctionCompiler {
+        private final IRFunction function;
+        private final CodeBuilder code;
+        private final Map<String, Integer> locals = new HashMap<>();
+        private final Map<String, CodeBuilder.Label> labels = new HashMap<>();
+        private int maxStack = 8;
+        private int maxLocals;
+        // Index of the instruction being compiled
+        private int currentIndex;
+
+        FunctionCompiler(IRFunction function, boolean wide) throws IRException {
+            this.function = function;
+            this.code = new CodeBuilder(wide);
+
+            // Local 0 holds the context, parameters follow in order
+            int next = 1;
+            for (IRVariableOperand param : function.parameters)
+                locals.put(param.getName(), next++);
+            for (IRVariableOperand variable : function.variables)
+                if (!locals.containsKey(variable.getName()))
+                    locals.put(variable.getName(), next++);
+            maxLocals = next;
+
+            compile();
+        }
+
+        private void compile() throws IRException {
+            // Locals start out zeroed, as in the interpreter
+            Set<String> paramNames = new HashSet<>();
+            for (IRVariableOperand param : function.parameters)
+                paramNames.add(param.getName());
+            for (IRVariableOperand variable : function.variables) {
+                if (paramNames.contains(variable.getName()))
+                    continue;
+                int local = locals.get(variable.getName());
+                if (variable.type instanceof IRArrayType) {
+                    code.pushInt(cw, ((IRArrayType) variable.type).getSize());
+                    code.op(CodeBuilder.NEWARRAY);
+                    code.u1(isFloatType(variable.type) ? CodeBuilder.T_FLOAT : CodeBuilder.T_INT);
+                    code.storeReference(local);
+                } else if (variable.type == IRIntType.get()) {
+                    code.op(CodeBuilder.ICONST_0);
+                    code.storeInt(local);
+                } else {
+                    code.op(CodeBuilder.FCONST_0);
+                    code.storeFloat(local);
+                }
+            }
+
+            Map<Integer, int[]> blockCounts = countInstructions ? countBlocks() : Collections.emptyMap();
+            List<IRInstruction> instructions = function.instructions;
+            for (int i = 0; i < instructions.size(); i++) {
+                IRInstruction instruction = instructions.get(i);
+                if (instruction.opCode == IRInstruction.OpCode.LABEL) {
+                    code.mark(getLabel(instruction.operands[0]));
+                    continue;
+                }
+                currentIndex = i;
+                code.lineNumber(i + 1);
+                int[] counts = blockCounts.get(i);
+                if (counts != null)
+                    emitCounts(counts);
+                compileInstruction(instruction);
+            }
+
+            // Running off the end of the function
+            if (function.returnType == null) {
+                code.op(CodeBuilder.RETURN);
+            } else {
+                code.loadReference(0);
+                code.op(CodeBuilder.ICONST_0 + 1);
+                code.op(CodeBuilder.PUTFIELD);
+                code.u2(cw.fieldRef(CONTEXT, "fellOff", "Z"));
+                if (function.returnType == IRIntType.get()) {
+                    code.op(CodeBuilder.ICONST_0);
+                    code.op(CodeBuilder.IRETURN);
+                } else {
+                    code.op(CodeBuilder.FCONST_0);
+                    code.op(CodeBuilder.FRETURN);
+                }
+            }
+        }
+
+        /**
+         * Per-opcode instruction counts of each basic block, keyed by the index of its first instruction
+         */
+        private Map<Integer, int[]> countBlocks() {
+            Map<Integer, int[]> blockCounts = new HashMap<>();
+            int[] current = null;
+            for (int i = 0; i < function.instructions.size(); i++) {
+                IRInstruction instruction = function.instructions.get(i);
+                switch (instruction.opCode) {
+                    case LABEL:
+                        current = null;
+                        continue;
+                    default:
+                        if (current == null) {
+                            current = new int[IRInstruction.OpCode.values().length];
+                            blockCounts.put(i, current);
+                        }
+                        current[instruction.opCode.ordinal()]++;
+                }
+                switch (instruction.opCode) {
+                    case GOTO:
+                    case BREQ:
+                    case BRNEQ:
+                    case BRLT:
+                    case BRGT:
+                    case BRLEQ:
+                    case BRGEQ:
+                    case RETURN:
+                        current = null;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return blockCounts;
+        }
+
+        private void emitCounts(int[] counts) {
+            int fieldRef = cw.fieldRef(CONTEXT, "counts", "[J");
+            for (int op = 0; op < counts.length; op++) {
+                if (counts[op] == 0)
+                    continue;
+                code.loadReference(0);
+                code.op(CodeBuilder.GETFIELD);
+                code.u2(fieldRef);
+                code.pushInt(cw, op);
+                code.op(CodeBuilder.DUP2);
+                code.op(CodeBuilder.LALOAD);
+                if (counts[op] == 1) {
+                    code.op(CodeBuilder.LCONST_1);
+                } else {
+                    code.pushInt(cw, counts[op]);
+                    code.op(CodeBuilder.I2L);
+                }
+                code.op(CodeBuilder.LADD);
+                code.op(CodeBuilder.LASTORE);
+            }
+        }
+
+        private CodeBuilder.Label getLabel(IROperand operand) {
+            return labels.computeIfAbsent(((IRLabelOperand) operand).getName(), k -> code.newLabel());
+        }
+
+        private void loadValue(IROperand operand) {
+            IRType type = getDataType(operand);
+            if (operand instanceof IRVariableOperand) {
+                int local = locals.get(((IRVariableOperand) operand).getName());
+                if (type instanceof IRArrayType)
+                    code.loadReference(local);
+                else if (type == IRIntType.get())
+                    code.loadInt(local);
+                else
+                    code.loadFloat(local);
+            } else {
+                String value = ((IRConstantOperand) operand).getValueString();
+                if (type == IRIntType.get())
+                    code.pushInt(cw, Integer.parseInt(value));
+                else
+                    code.pushFloat(cw, Float.parseFloat(value));
+            }
+        }
+
+        private void store(IROperand operand) {
+            int local = locals.get(((IRVariableOperand) operand).getName());
+            if (isFloatType(getDataType(operand)))
+                code.storeFloat(local);
+            else
+                code.storeInt(local);
+        }
+
+        private void compileInstruction(IRInstruction instruction) throws IRException {
+            IROperand[] operands = instruction.operands;
+            switch (instruction.opCode) {
+                case ASSIGN: {
+                    if (operands.length > 2) {
+                        loadValue(operands[0]);
+                        loadValue(operands[1]);
+                        loadValue(operands[2]);
+                        code.op(CodeBuilder.INVOKESTATIC);
+                        code.u2(cw.methodRef(RUNTIME, "fill",
+                                isFloatType(getDataType(operands[0])) ? "([FIF)V" : "([III)V"));
+                    } else {
+                        loadValue(operands[1]);
+                        store(operands[0]);
+                    }
+                    break;
+                }
+                case ADD:
+                case SUB:
+                case MULT:
+                case DIV:
+                case AND:
+                case OR: {
+                    boolean isFloat = isFloatType(getDataType(operands[0]));
+                    loadValue(operands[1]);
+                    loadValue(operands[2]);
+                    code.op(arithmeticOpcode(instruction, isFloat));
+                    store(operands[0]);
+                    break;
+                }
+                case GOTO:
+                    code.jump(CodeBuilder.GOTO, getLabel(operands[0]));
+                    break;
+                case BREQ:
+                case BRNEQ:
+                case BRLT:
+                case BRGT:
+                case BRLEQ:
+                case BRGEQ: {
+                    loadValue(operands[1]);
+                    loadValue(operands[2]);
+                    if (isFloatType(getDataType(operands[1]))) {
+                        // fcmpg for < and <= so that comparisons with NaN are false, as in Java
+                        boolean less = instruction.opCode == IRInstruction.OpCode.BRLT
+                                || instruction.opCode == IRInstruction.OpCode.BRLEQ;
+                        code.op(less ? CodeBuilder.FCMPG : CodeBuilder.FCMPL);
+                        code.jump(branchOpcode(instruction.opCode, CodeBuilder.IFEQ), getLabel(operands[0]));
+                    } else {
+                        code.jump(branchOpcode(instruction.opCode, CodeBuilder.IF_ICMPEQ), getLabel(operands[0]));
+                    }
+                    break;
+                }
+                case RETURN:
+                    loadValue(operands[0]);
+                    code.op(isFloatType(getDataType(operands[0])) ? CodeBuilder.FRETURN : CodeBuilder.IRETURN);
+                    break;
+                case CALL:
+                    compileCall(instruction, null, ((IRFunctionOperand) operands[0]).getName(), 1);
+                    break;
+                case CALLR:
+                    compileCall(instruction, operands[0], ((IRFunctionOperand) operands[1]).getName(), 2);
+                    break;
+                case ARRAY_STORE: {
+                    loadValue(operands[1]);
+                    loadValue(operands[2]);
+                    loadValue(operands[0]);
+                    code.op(isFloatType(getDataType(operands[1])) ? CodeBuilder.FASTORE : CodeBuilder.IASTORE);
+                    break;
+                }
+                case ARRAY_LOAD: {
+                    loadValue(operands[1]);
+                    loadValue(operands[2]);
+                    code.op(isFloatType(getDataType(operands[1])) ? CodeBuilder.FALOAD : CodeBuilder.IALOAD);
+                    store(operands[0]);
+                    break;
+                }
+                default:
+                    throw new IRException("Invalid OpCode", instruction.irLineNumber);
+            }
+        }
+
+        private void compileCall(IRInstruction instruction, IROperand dest, String name, int argIdx)
+                throws IRException {
+            Integer index = functionIndices.get(name);
+            if (index == null) {
+                compileIntrinsicCall(instruction, dest, name, argIdx);
+                return;
+            }
+
+            maxStack = Math.max(maxStack, 2 + instruction.operands.length);
+            code.loadReference(0);
+            for (int i = argIdx; i < instruction.operands.length; i++)
+                loadValue(instruction.operands[i]);
+            code.op(CodeBuilder.INVOKESTATIC);
+            code.u2(cw.methodRef(cw.getClassName(), methodNames[index], methodDescriptors[index]));
+
+            // A callee that runs off its end is an error when this function has a return value
+            // (mirroring the interpreter), otherwise the destination keeps its old value
+            boolean calleeReturnsValue = !methodDescriptors[index].endsWith(")V");
+            int lastLine = function.instructions.size();
+            if (!calleeReturnsValue) {
+                if (function.returnType != null)
+                    throwMissingReturn(lastLine);
+                return;
+            }
+            CodeBuilder.Label returned = code.newLabel();
+            CodeBuilder.Label done = code.newLabel();
+            int fieldRef = cw.fieldRef(CONTEXT, "fellOff", "Z");
+            code.loadReference(0);
+            code.op(CodeBuilder.GETFIELD);
+            code.u2(fieldRef);
+            code.jump(CodeBuilder.IFEQ, returned);
+            if (function.returnType != null) {
+                throwMissingReturn(lastLine);
+            } else {
+                code.op(CodeBuilder.POP);
+                code.loadReference(0);
+                code.op(CodeBuilder.ICONST_0);
+                code.op(CodeBuilder.PUTFIELD);
+                code.u2(fieldRef);
+                code.jump(CodeBuilder.GOTO, done);
+            }
+            code.mark(returned);
+            code.lineNumber(currentIndex + 1);
+            store(dest);
+            code.mark(done);
+        }
+
+        private void throwMissingReturn(int line) {
+            code.lineNumber(line);
+            code.op(CodeBuilder.INVOKESTATIC);
+            code.u2(cw.methodRef(RUNTIME, "missingReturn", ERROR_DESC));
+            code.op(CodeBuilder.ATHROW);
+        }
+
+        private void compileIntrinsicCall(IRInstruction instruction, IROperand dest, String name, int argIdx)
+                throws IRException {
+            String descriptor;
+            switch (name) {
+                case "geti":
+                case "getc":
+                    descriptor = "(" + CONTEXT_DESC + ")I";
+                    break;
+                case "getf":
+                    descriptor = "(" + CONTEXT_DESC + ")F";
+                    break;
+                case "puti":
+                case "putc":
+                    descriptor = "(" + CONTEXT_DESC + "I)V";
+                    break;
+                case "putf":
+                    descriptor = "(" + CONTEXT_DESC + "F)V";
+                    break;
+                default:
+                    throw new IRException(String.format("Undefined reference to function '%s'", name),
+                            instruction.irLineNumber);
+            }
+            code.loadReference(0);
+            for (int i = argIdx; i < instruction.operands.length; i++)
+                loadValue(instruction.operands[i]);
+            code.op(CodeBuilder.INVOKESTATIC);
+            code.u2(cw.methodRef(RUNTIME, name, descriptor));
+            if (dest != null)
+                store(dest);
+        }
+    }
+
+    private static int arithmeticOpcode(IRInstruction instruction, boolean isFloat) throws IRException {
+        switch (instruction.opCode) {
+            case ADD:
+                return isFloat ? CodeBuilder.FADD : CodeBuilder.IADD;
+            case SUB:
+                return isFloat ? CodeBuilder.FSUB : CodeBuilder.ISUB;
+            case MULT:
+                return isFloat ? CodeBuilder.FMUL : CodeBuilder.IMUL;
+            case DIV:
+                return isFloat ? CodeBuilder.FDIV : CodeBuilder.IDIV;
+            case AND:
+                if (!isFloat)
+                    return CodeBuilder.IAND;
+                break;
+            case OR:
+                if (!isFloat)
+                    return CodeBuilder.IOR;
+                break;
+        }
+        throw new IRException("Invalid operand", instruction.irLineNumber);
+    }
+
+    /**
+     * Branch opcode for the IR comparison, relative to ifeq (after fcmp) or if_icmpeq
+     */
+    private static int branchOpcode(IRInstruction.OpCode opCode, int base) {
+        switch (opCode) {
+            case BREQ:
+                return base;
+            case BRNEQ:
+                return base + 1;
+            case BRLT:
+                return base + 2;
+            case BRGEQ:
+                return base + 3;
+            case BRGT:
+                return base + 4;
+            default:
+                return base + 5;
+        }
+    }
+
+}
@@ -0,0 +1,18 @@
+package jit;
+
+import runtime.IntrinsicIO;
+
+/**
+ * Per-run state passed as the first argument to every compiled function
+ */
+public final class JitContext {
+
+    // Executed instructions per IR opcode ordinal, null when counting is disabled
+    public long[] counts;
+
+    // Set by a function with a return value that ran off its end instead of returning
+    public boolean fellOff;
+
+    public IntrinsicIO io;
+
+}
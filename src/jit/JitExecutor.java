@@ -0,0 +1,113 @@
+package jit;
+
+import ir.IRException;
+import ir.IRFunction;
+import ir.IRInstruction;
+import runtime.IntrinsicIO;
+
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Runs the main function of a JitProgram and reports runtime errors with the same messages and IR
+ * stack traces as the interpreter, recovered from the JVM stack trace of the failure.
+ */
+public class JitExecutor {
+
+    // Compiled IR functions recurse on the JVM stack, so give them a deep one
+    private static final long STACK_SIZE = 1L << 30;
+
+    private final JitProgram program;
+
+    private JitContext ctx;
+
+    private PrintStream err = System.err;
+
+    public JitExecutor(JitProgram program) {
+        this.program = program;
+    }
+
+    /**
+     * Stream runtime errors are reported to
+     */
+    public void setErrorStream(PrintStream err) {
+        this.err = err;
+    }
+
+    /**
+     * Number of executed instructions per IR opcode, indexed by IRInstruction.OpCode ordinal, or
+     * null if the program was compiled without counters
+     */
+    public long[] getInstructionCounts() {
+        if (ctx == null || ctx.counts == null)
+            return null;
+        return ctx.counts.clone();
+    }
+
+    public void run(IntrinsicIO io) throws IRException {
+        ctx = new JitContext();
+        if (program.countsInstructions)
+            ctx.counts = new long[IRInstruction.OpCode.values().length];
+        ctx.io = io;
+
+        Method main;
+        try {
+            main = program.programClass.getMethod(program.mainMethodName, JitContext.class);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+
+        Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                main.invoke(null, ctx);
+            } catch (InvocationTargetException e) {
+                failure[0] = e.getCause();
+            } catch (IllegalAccessException e) {
+                failure[0] = e;
+            }
+        }, "jit-main", STACK_SIZE);
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } finally {
+            io.close();
+        }
+
+        Throwable t = failure[0];
+        if (t == null)
+            return;
+        if (t instanceof JitRuntime.RuntimeError)
+            throwRuntimeException(t.getMessage(), t);
+        if (t instanceof ArrayIndexOutOfBoundsException)
+            throwRuntimeException("Out-of-bounds array access", t);
+        if (t instanceof RuntimeException)
+            throw (RuntimeException) t;
+        if (t instanceof Error)
+            throw (Error) t;
+        throw new IllegalStateException(t);
+    }
+
+    private void throwRuntimeException(String message, Throwable t) throws IRException {
+        // Keep program output ahead of the error
+        ctx.io.flush();
+        err.println("IR interpreter runtime exception: " + message);
+        err.println("Stack trace:");
+        String className = program.programClass.getName();
+        for (StackTraceElement element : t.getStackTrace()) {
+            if (!element.getClassName().equals(className))
+                continue;
+            IRFunction function = program.methodFunctions.get(element.getMethodName());
+            int index = element.getLineNumber() - 1;
+            if (function == null || index < 0 || index >= function.instructions.size())
+                continue;
+            err.println("\t" + function.name + ":" + function.instructions.get(index).irLineNumber);
+        }
+        throw new IRException();
+    }
+
+}
@@ -0,0 +1,29 @@
+package jit;
+
+import ir.IRFunction;
+
+import java.util.Map;
+
+/**
+ * A program compiled to a JVM class by JitCompiler
+ */
+public class JitProgram {
+
+    public final Class<?> programClass;
+
+    public final String mainMethodName;
+
+    // Generated method name -> source function
+    public final Map<String, IRFunction> methodFunctions;
+
+    public final boolean countsInstructions;
+
+    public JitProgram(Class<?> programClass, String mainMethodName, Map<String, IRFunction> methodFunctions,
+                      boolean countsInstructions) {
+        this.programClass = programClass;
+        this.mainMethodName = mainMethodName;
+        this.methodFunctions = methodFunctions;
+        this.countsInstructions = countsInstructions;
+    }
+
+}
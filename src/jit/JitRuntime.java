@@ -0,0 +1,64 @@
+package jit;
+
+import java.util.Arrays;
+
+/**
+ * Helpers called from compiled code: intrinsic functions and runtime checks
+ */
+public final class JitRuntime {
+
+    public static class RuntimeError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public RuntimeError(String message) {
+            super(message);
+        }
+    }
+
+    private JitRuntime() {}
+
+    public static int geti(JitContext ctx) {
+        return ctx.io.readInt();
+    }
+
+    public static float getf(JitContext ctx) {
+        return ctx.io.readFloat();
+    }
+
+    public static int getc(JitContext ctx) {
+        return ctx.io.readChar();
+    }
+
+    public static void puti(JitContext ctx, int i) {
+        ctx.io.writeInt(i);
+    }
+
+    public static void putf(JitContext ctx, float f) {
+        ctx.io.writeFloat(f);
+    }
+
+    public static void putc(JitContext ctx, int c) {
+        ctx.io.writeChar((char) c);
+    }
+
+    public static void fill(int[] arr, int count, int value) {
+        if (count < 0 || count > arr.length)
+            throw outOfBounds();
+        Arrays.fill(arr, 0, count, value);
+    }
+
+    public static void fill(float[] arr, int count, float value) {
+        if (count < 0 || count > arr.length)
+            throw outOfBounds();
+        Arrays.fill(arr, 0, count, value);
+    }
+
+    public static RuntimeError outOfBounds() {
+        return new RuntimeError("Out-of-bounds array access");
+    }
+
+    public static RuntimeError missingReturn() {
+        return new RuntimeError("Missing return for a function with return value");
+    }
+
+}
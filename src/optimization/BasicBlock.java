@@ -1,7 +1,7 @@
 package optimization;
 
 import ir.IRInstruction;
-import java.util.HashSet;
+import java.util.BitSet;
 import java.util.ArrayList;
 
 public class BasicBlock {
@@ -10,17 +10,14 @@ public class BasicBlock {
     public final ArrayList<BasicBlock> predecessors = new ArrayList<>();
     public final ArrayList<BasicBlock> successors = new ArrayList<>();
 
-    public HashSet<Integer> in;
-    public HashSet<Integer> out;
-    public HashSet<Integer> gen;
-    public HashSet<Integer> kill;
+    // Reaching definitions, as the definition numbers of ReachingDefinitions. Null until it runs, and
+    // for blocks it cannot reach.
+    public BitSet in;
+    public BitSet out;
+    public BitSet gen;
+    public BitSet kill;
 
     public BasicBlock(int name, ArrayList<IRInstruction> instructions) {
-        this.in = new HashSet<>();
-        this.out = new HashSet<>();
-        this.gen = new HashSet<>();
-        this.kill = new HashSet<>();
-
         this.name = name;
         this.instructions = instructions;
     }
@@ -0,0 +1,46 @@
+package optimization;
+
+import ir.IRFunction;
+import ir.IRInstruction;
+import ir.IRProgram;
+import ir.operand.IRFunctionOperand;
+
+import java.util.*;
+
+/**
+ * Which functions of a program call which. Intrinsic functions are left out, since they have no
+ * code of their own. The control flow graphs are per function, so this is where the optimizer
+ * looks for anything that crosses a call.
+ */
+public class CallGraph {
+    // Function name -> names of the functions it calls, in order of first call
+    private final Map<String, Set<String>> callees = new HashMap<>();
+    // Function name -> names of the functions that call it, in program order
+    private final Map<String, Set<String>> callers = new HashMap<>();
+
+    public CallGraph(IRProgram program) {
+        for (IRFunction function: program.functions) {
+            callees.put(function.name, new LinkedHashSet<>());
+            callers.put(function.name, new LinkedHashSet<>());
+        }
+        for (IRFunction function: program.functions) {
+            for (IRInstruction instruction: function.instructions) {
+                if (instruction.opCode != IRInstruction.OpCode.CALL && instruction.opCode != IRInstruction.OpCode.CALLR)
+                    continue;
+                int pos = instruction.opCode == IRInstruction.OpCode.CALL ? 0 : 1;
+                String name = ((IRFunctionOperand) instruction.operands[pos]).getName();
+                if (!callers.containsKey(name)) continue;
+                callees.get(function.name).add(name);
+                callers.get(name).add(function.name);
+            }
+        }
+    }
+
+    public Set<String> getCallees(String function) {
+        return Collections.unmodifiableSet(callees.getOrDefault(function, Collections.emptySet()));
+    }
+
+    public Set<String> getCallers(String function) {
+        return Collections.unmodifiableSet(callers.getOrDefault(function, Collections.emptySet()));
+    }
+}
@@ -1,37 +1,174 @@
 package optimization;
 
+import ir.IRFunction;
 import ir.IRInstruction;
+import ir.operand.IRLabelOperand;
+import ir.operand.IROperand;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
 
 public class ControlFlowGraph {
-    public final BasicBlock entry;
+    // Changes only when a preheader is inserted in front of a loop headed by the entry
+    public BasicBlock entry;
+    // Instruction -> block that holds it
+    private final Map<IRInstruction, BasicBlock> blockMap;
 
-    public ControlFlowGraph(BasicBlock entry) {
+    // Analyses of the current graph, computed on first use
+    private DominatorTree dominators;
+    private DominatorTree postDominators;
+    private LoopNest loopNest;
+
+    public ControlFlowGraph(BasicBlock entry, Map<IRInstruction, BasicBlock> blockMap) {
         this.entry = entry;
+        this.blockMap = blockMap;
+    }
+
+    /**
+     * Block that holds the instruction, whether or not it is reachable
+     */
+    public BasicBlock getBlock(IRInstruction instruction) {
+        return blockMap.get(instruction);
     }
 
-    private BasicBlock find(BasicBlock curr, IRInstruction instruction, Set<BasicBlock> visited) {
-        if (curr == null) return null;
-        visited.add(curr);
+    /**
+     * Blocks reachable from the entry in reverse postorder, in which every block comes before its
+     * successors except along back edges
+     */
+    public List<BasicBlock> getReversePostorder() {
+        List<BasicBlock> postorder = new ArrayList<>();
+        if (entry == null) return postorder;
 
-        for (IRInstruction inst: curr.instructions) {
-            if (inst == instruction) return curr;
+        // Iterative, since a large function can nest blocks deeper than the call stack allows
+        Set<BasicBlock> visited = new HashSet<>();
+        Deque<BasicBlock> stack = new ArrayDeque<>();
+        Deque<Iterator<BasicBlock>> successors = new ArrayDeque<>();
+        visited.add(entry);
+        stack.push(entry);
+        successors.push(entry.successors.iterator());
+        while (!stack.isEmpty()) {
+            Iterator<BasicBlock> next = successors.peek();
+            if (next.hasNext()) {
+                BasicBlock block = next.next();
+                if (visited.add(block)) {
+                    stack.push(block);
+                    successors.push(block.successors.iterator());
+                }
+            } else {
+                postorder.add(stack.pop());
+                successors.pop();
+            }
         }
+        Collections.reverse(postorder);
+        return postorder;
+    }
+
+    public DominatorTree getDominatorTree() {
+        if (dominators == null) dominators = new DominatorTree(this, DataflowAnalysis.Direction.FORWARD);
+        return dominators;
+    }
+
+    public DominatorTree getPostDominatorTree() {
+        if (postDominators == null) postDominators = new DominatorTree(this, DataflowAnalysis.Direction.BACKWARD);
+        return postDominators;
+    }
+
+    public LoopNest getLoopNest() {
+        if (loopNest == null) loopNest = new LoopNest(getDominatorTree());
+        return loopNest;
+    }
+
+    /**
+     * Gives the loop a preheader, a block that all entries into the loop pass through and that
+     * falls through to the header, so code can be hoisted out of the loop into it. The block of the
+     * only entry is reused when the header is its only successor. Otherwise a new label is placed
+     * in front of the header in the function and the graph, and the entries branching to the header
+     * are pointed at it. Should a block of the loop fall through to the header, a goto is added
+     * after it to skip the preheader. The dominator trees and the loop nest are computed again
+     * afterwards, so the loop itself is out of date.
+     */
+    public BasicBlock insertPreheader(IRFunction function, LoopNest.Loop loop) {
+        BasicBlock header = loop.header;
+        List<BasicBlock> entries = loop.getEntries();
+        if (entries.size() == 1 && header != entry && entries.get(0).successors.size() == 1)
+            return entries.get(0);
 
-        BasicBlock found;
-        for (BasicBlock block: curr.successors) {
-            if (!visited.contains(block)) {
-                found = this.find(block, instruction, visited);
-                if (found != null) return found;
+        // A header is the target of its back edges, so it starts with a label
+        IRInstruction headerLabel = header.instructions.get(0);
+        String headerName = ((IRLabelOperand) headerLabel.operands[0]).getName();
+        Set<String> labels = new HashSet<>();
+        for (IRInstruction instruction: function.instructions) {
+            if (instruction.opCode == IRInstruction.OpCode.LABEL)
+                labels.add(((IRLabelOperand) instruction.operands[0]).getName());
+        }
+        String name = headerName + "_preheader";
+        for (int i = 1; labels.contains(name); i++) name = headerName + "_preheader" + i;
+
+        int position = function.instructions.indexOf(headerLabel);
+        BasicBlock previous = position > 0 ? blockMap.get(function.instructions.get(position - 1)) : null;
+        if (previous != null && loop.contains(previous) && fallsThrough(previous)) {
+            IRInstruction jump = newInstruction(IRInstruction.OpCode.GOTO, headerName, headerLabel.irLineNumber);
+            function.instructions.add(position++, jump);
+            if (!jumps(previous.instructions.get(previous.instructions.size() - 1))) {
+                previous.instructions.add(jump);
+                blockMap.put(jump, previous);
+            } else {
+                // A branch ends its block, so the goto gets one of its own
+                BasicBlock skip = newBlock(jump);
+                previous.successors.set(previous.successors.lastIndexOf(header), skip);
+                skip.predecessors.add(previous);
+                header.predecessors.set(header.predecessors.indexOf(previous), skip);
+                skip.successors.add(header);
+            }
+        }
+
+        IRInstruction label = newInstruction(IRInstruction.OpCode.LABEL, name, headerLabel.irLineNumber);
+        BasicBlock preheader = newBlock(label);
+        function.instructions.add(position, label);
+        for (BasicBlock block: entries) {
+            IRInstruction last = block.instructions.get(block.instructions.size() - 1);
+            if (jumps(last) && last.operands[0].toString().equals(headerName))
+                last.operands[0] = new IRLabelOperand(name, last);
+            for (int i = 0; i < block.successors.size(); i++) {
+                if (block.successors.get(i) != header) continue;
+                block.successors.set(i, preheader);
+                preheader.predecessors.add(block);
             }
+            header.predecessors.removeIf(predecessor -> predecessor == block);
         }
+        preheader.successors.add(header);
+        header.predecessors.add(preheader);
+        if (header == entry) entry = preheader;
+
+        dominators = null;
+        postDominators = null;
+        loopNest = null;
+        return preheader;
+    }
+
+    private static boolean fallsThrough(BasicBlock block) {
+        IRInstruction.OpCode last = block.instructions.get(block.instructions.size() - 1).opCode;
+        return last != IRInstruction.OpCode.GOTO && last != IRInstruction.OpCode.RETURN;
+    }
+
+    /**
+     * Whether the instruction is a goto or a conditional branch
+     */
+    private static boolean jumps(IRInstruction instruction) {
+        return instruction.opCode != IRInstruction.OpCode.LABEL && instruction.operands.length > 0
+                && instruction.operands[0] instanceof IRLabelOperand;
+    }
 
-        return null;
+    private static IRInstruction newInstruction(IRInstruction.OpCode opCode, String label, int irLineNumber) {
+        IRInstruction instruction = new IRInstruction(opCode, null, irLineNumber);
+        instruction.operands = new IROperand[] { new IRLabelOperand(label, instruction) };
+        return instruction;
     }
 
-    public BasicBlock find(BasicBlock curr, IRInstruction instruction) {
-        return this.find(curr, instruction, new HashSet<>());
+    private BasicBlock newBlock(IRInstruction instruction) {
+        int name = 0;
+        for (BasicBlock block: blockMap.values()) name = Math.max(name, block.name + 1);
+        BasicBlock block = new BasicBlock(name, new ArrayList<>(List.of(instruction)));
+        blockMap.put(instruction, block);
+        return block;
     }
 }
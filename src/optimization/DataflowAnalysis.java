@@ -0,0 +1,89 @@
+package optimization;
+
+import java.util.*;
+
+/**
+ * Iterative solver for a dataflow analysis over the blocks of one control flow graph.
+ *
+ * Blocks wait on a worklist ordered by reverse postorder (postorder for a backward analysis), so
+ * values flow through a loop-free graph in a single pass. A block goes back on the worklist only
+ * when a block it depends on computed a different value, and the analysis ends when the worklist
+ * is empty. Blocks that cannot be reached from the entry are not analyzed and have no values.
+ */
+public class DataflowAnalysis<T> {
+
+    public enum Direction { FORWARD, BACKWARD }
+
+    private final ControlFlowGraph graph;
+    private final Direction direction;
+    private final Lattice<T> lattice;
+    private final TransferFunction<T> transfer;
+
+    // Block -> value flowing into it and value leaving it, in the direction of the analysis
+    private final Map<BasicBlock, T> input = new HashMap<>();
+    private final Map<BasicBlock, T> output = new HashMap<>();
+
+    public DataflowAnalysis(ControlFlowGraph graph, Direction direction, Lattice<T> lattice, TransferFunction<T> transfer) {
+        this.graph = graph;
+        this.direction = direction;
+        this.lattice = lattice;
+        this.transfer = transfer;
+    }
+
+    public void solve() {
+        List<BasicBlock> order = new ArrayList<>(graph.getReversePostorder());
+        if (direction == Direction.BACKWARD) Collections.reverse(order);
+        Map<BasicBlock, Integer> position = new HashMap<>();
+        for (int i = 0; i < order.size(); i++) position.put(order.get(i), i);
+
+        input.clear();
+        output.clear();
+        BitSet worklist = new BitSet();
+        worklist.set(0, order.size());
+        for (int i = worklist.nextSetBit(0); i >= 0; i = worklist.nextSetBit(0)) {
+            worklist.clear(i);
+            BasicBlock block = order.get(i);
+
+            T value = isBoundary(block) ? lattice.boundary() : lattice.initial();
+            for (BasicBlock from: sources(block)) {
+                T fromValue = output.get(from);
+                if (fromValue != null) lattice.meet(value, fromValue);
+            }
+            input.put(block, value);
+
+            T result = transfer.apply(block, value);
+            if (!result.equals(output.put(block, result))) {
+                for (BasicBlock to: targets(block)) {
+                    Integer next = position.get(to);
+                    if (next != null) worklist.set(next);
+                }
+            }
+        }
+    }
+
+    private boolean isBoundary(BasicBlock block) {
+        return direction == Direction.FORWARD ? block == graph.entry : block.successors.isEmpty();
+    }
+
+    private List<BasicBlock> sources(BasicBlock block) {
+        return direction == Direction.FORWARD ? block.predecessors : block.successors;
+    }
+
+    private List<BasicBlock> targets(BasicBlock block) {
+        return direction == Direction.FORWARD ? block.successors : block.predecessors;
+    }
+
+    /**
+     * Value at the start of the block, or null if the block is unreachable
+     */
+    public T getIn(BasicBlock block) {
+        return direction == Direction.FORWARD ? input.get(block) : output.get(block);
+    }
+
+    /**
+     * Value at the end of the block, or null if the block is unreachable
+     */
+    public T getOut(BasicBlock block) {
+        return direction == Direction.FORWARD ? output.get(block) : input.get(block);
+    }
+}
@@ -3,6 +3,7 @@ package optimization;
 import ir.IRInstruction;
 import ir.operand.IROperand;
 
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -20,6 +21,15 @@ public class Debug {
         System.out.println();
     }
 
+    private static void printDefinitions(String title, BitSet definitions, String prefix) {
+        System.out.println(prefix + title + ":");
+        // Blocks have no sets before reaching definitions have been computed
+        if (definitions == null) return;
+        for (int definition: definitions.stream().toArray()) {
+            System.out.println(prefix + "\t" + definition + "\t");
+        }
+    }
+
     private static void printBasicBlock(BasicBlock block, String prefix) {
         if (block == null) return;
 
@@ -33,25 +43,10 @@ public class Debug {
             printInstruction(instruction, prefix + "\t");
         }
 
-        System.out.println(prefix + "In:");
-        for (int in: block.in) {
-            System.out.println(prefix + "\t" + in + "\t");
-        }
-
-        System.out.println(prefix + "Out:");
-        for (int out: block.out) {
-            System.out.println(prefix + "\t" + out + "\t");
-        }
-
-        System.out.println(prefix + "Gen:");
-        for (int gen: block.gen) {
-            System.out.println(prefix + "\t" + gen + "\t");
-        }
-
-        System.out.println(prefix + "Kill:");
-        for (int kill: block.kill) {
-            System.out.println(prefix + "\t" + kill + "\t");
-        }
+        printDefinitions("In", block.in, prefix);
+        printDefinitions("Out", block.out, prefix);
+        printDefinitions("Gen", block.gen, prefix);
+        printDefinitions("Kill", block.kill, prefix);
         for (BasicBlock predecessor: block.predecessors) {
             System.out.println(prefix + "Predecessor: " + predecessor.name);
         }
@@ -89,4 +84,19 @@ public class Debug {
         blockSet = new HashSet<>();
         printBasicBlock(graph.entry, "");
     }
+
+    private static void printLoop(LoopNest.Loop loop, String prefix) {
+        System.out.println(prefix + "Loop:");
+        prefix += "\t";
+        System.out.println(prefix + "Header: " + loop.header.name);
+        System.out.println(prefix + "Depth: " + loop.depth);
+        System.out.print(prefix + "Blocks:");
+        for (BasicBlock block: loop.blocks) System.out.print(" " + block.name);
+        System.out.println();
+        for (LoopNest.Loop child: loop.children) printLoop(child, prefix);
+    }
+
+    public static void printLoopNest(ControlFlowGraph graph) {
+        for (LoopNest.Loop loop: graph.getLoopNest().getOutermostLoops()) printLoop(loop, "");
+    }
 }
@@ -0,0 +1,142 @@
+package optimization;
+
+import ir.IRInstruction;
+import ir.operand.IROperand;
+import ir.operand.IRVariableOperand;
+
+import java.util.*;
+
+/**
+ * Use-def and def-use chains of one function: for every instruction, the definitions that may
+ * reach the variables it reads, and for every definition, the instructions that may read it.
+ *
+ * Variables are interned to ids once per function, so a use is matched with its definitions by
+ * intersecting the reaching definitions with the definitions of that variable rather than by
+ * comparing names. Every variable operand that is not the target of a definition is a use,
+ * including the value and the array of an array_store. Only blocks reachable from the entry have
+ * chains.
+ *
+ * A use reached by a definition earlier in its own block links to that definition. The others are
+ * kept as sets of definition numbers, shared by all uses of a variable in a block, since the
+ * definitions reaching a block can number in the thousands for every one of its uses.
+ */
+public class DefUseChains {
+    private final List<IRInstruction> definitions;
+    // Definition -> its number
+    private final Map<IRInstruction, Integer> defNumbers = new HashMap<>();
+    private final Map<String, Integer> variableIds = new HashMap<>();
+    // Use -> definitions in its own block that reach it
+    private final Map<IRInstruction, List<IRInstruction>> localDefs = new HashMap<>();
+    // Use -> numbers of the definitions that reach it from the start of its block
+    private final Map<IRInstruction, BitSet> blockDefs = new HashMap<>();
+    // Definition -> uses, built on first request
+    private Map<IRInstruction, List<IRInstruction>> defUses;
+
+    public DefUseChains(ControlFlowGraph graph, ReachingDefinitions reachingDefinitions,
+                        Set<IRInstruction.OpCode> defCodes) {
+        definitions = reachingDefinitions.getDefinitions();
+        // Variable id -> its definitions
+        List<BitSet> variableDefs = new ArrayList<>();
+        for (int d = 0; d < definitions.size(); d++) {
+            defNumbers.put(definitions.get(d), d);
+            int variable = intern(definitions.get(d).operands[0].toString());
+            if (variable == variableDefs.size()) variableDefs.add(new BitSet());
+            variableDefs.get(variable).set(d);
+        }
+
+        for (BasicBlock block: graph.getReversePostorder()) {
+            // Variable id -> latest definition in this block so far
+            Map<Integer, IRInstruction> latestDefs = new HashMap<>();
+            // Variable id -> definitions reaching the start of the block
+            Map<Integer, BitSet> reachingDefs = new HashMap<>();
+            for (IRInstruction instruction: block.instructions) {
+                boolean isDef = defCodes.contains(instruction.opCode);
+                List<Integer> used = new ArrayList<>();
+                for (int i = isDef ? 1 : 0; i < instruction.operands.length; i++) {
+                    IROperand operand = instruction.operands[i];
+                    if (!(operand instanceof IRVariableOperand)) continue;
+                    // Variables without definitions, like parameters, have nothing to chain to
+                    Integer variable = variableIds.get(operand.toString());
+                    if (variable == null || used.contains(variable)) continue;
+                    used.add(variable);
+
+                    IRInstruction latestDef = latestDefs.get(variable);
+                    if (latestDef != null) {
+                        localDefs.computeIfAbsent(instruction, k -> new ArrayList<>()).add(latestDef);
+                        continue;
+                    }
+                    BitSet reaching = reachingDefs.computeIfAbsent(variable, v -> {
+                        BitSet defs = (BitSet) block.in.clone();
+                        defs.and(variableDefs.get(v));
+                        return defs;
+                    });
+                    if (reaching.isEmpty()) continue;
+                    BitSet current = blockDefs.get(instruction);
+                    if (current == null) {
+                        blockDefs.put(instruction, reaching);
+                    } else {
+                        // Copy before merging, since the sets are shared
+                        BitSet merged = (BitSet) current.clone();
+                        merged.or(reaching);
+                        blockDefs.put(instruction, merged);
+                    }
+                }
+                if (isDef) latestDefs.put(variableIds.get(instruction.operands[0].toString()), instruction);
+            }
+        }
+    }
+
+    private int intern(String variable) {
+        Integer id = variableIds.get(variable);
+        if (id == null) {
+            id = variableIds.size();
+            variableIds.put(variable, id);
+        }
+        return id;
+    }
+
+    /**
+     * Definitions that may reach the variables the instruction reads
+     */
+    public List<IRInstruction> getDefinitions(IRInstruction use) {
+        List<IRInstruction> defs = new ArrayList<>();
+        BitSet numbers = getDefinitionNumbers(use);
+        for (int d = numbers.nextSetBit(0); d >= 0; d = numbers.nextSetBit(d + 1))
+            defs.add(definitions.get(d));
+        return defs;
+    }
+
+    /**
+     * Numbers of the definitions that may reach the variables the instruction reads, as a new set
+     */
+    public BitSet getDefinitionNumbers(IRInstruction use) {
+        BitSet reaching = blockDefs.get(use);
+        BitSet numbers = reaching == null ? new BitSet() : (BitSet) reaching.clone();
+        for (IRInstruction def: localDefs.getOrDefault(use, Collections.emptyList()))
+            numbers.set(defNumbers.get(def));
+        return numbers;
+    }
+
+    /**
+     * Definition number -> instruction, numbered like ReachingDefinitions
+     */
+    public IRInstruction getDefinition(int number) {
+        return definitions.get(number);
+    }
+
+    /**
+     * Instructions that may read the value the definition writes
+     */
+    public List<IRInstruction> getUses(IRInstruction def) {
+        if (defUses == null) {
+            defUses = new HashMap<>();
+            Set<IRInstruction> uses = new HashSet<>(localDefs.keySet());
+            uses.addAll(blockDefs.keySet());
+            for (IRInstruction use: uses) {
+                for (IRInstruction useDef: getDefinitions(use))
+                    defUses.computeIfAbsent(useDef, k -> new ArrayList<>()).add(use);
+            }
+        }
+        return defUses.getOrDefault(def, Collections.emptyList());
+    }
+}
@@ -0,0 +1,215 @@
+package optimization;
+
+import java.util.*;
+
+/**
+ * Dominator tree of one control flow graph, built with the iterative algorithm of Cooper, Harvey
+ * and Kennedy over the reverse postorder.
+ *
+ * A forward tree is rooted at the entry: a block dominates another when every path from the entry
+ * to that block passes through it. A backward tree holds the post-dominators instead, over the
+ * reversed graph. A function can return from several blocks, so the backward tree hangs every
+ * returning block under a virtual exit that is not part of the result. Blocks that cannot be
+ * reached from the entry, and for post-dominators blocks that cannot reach a return, are not in
+ * the tree.
+ */
+public class DominatorTree {
+    private final DataflowAnalysis.Direction direction;
+
+    // Blocks in reverse postorder of the direction; the backward order starts with the virtual exit
+    private final List<BasicBlock> blocks = new ArrayList<>();
+    private final Map<BasicBlock, Integer> index = new HashMap<>();
+    // Position -> positions of its predecessors in the direction of the tree
+    private final List<int[]> sources = new ArrayList<>();
+    // Position -> position of its immediate dominator, the root pointing at itself
+    private final int[] idom;
+    private final List<List<BasicBlock>> children = new ArrayList<>();
+    // Position -> preorder and postorder number in the tree, to answer dominates in constant time
+    private final int[] preorder;
+    private final int[] postorder;
+    private List<BitSet> frontiers;
+
+    public DominatorTree(ControlFlowGraph graph, DataflowAnalysis.Direction direction) {
+        this.direction = direction;
+        List<BasicBlock> reachable = graph.getReversePostorder();
+        if (direction == DataflowAnalysis.Direction.FORWARD) {
+            blocks.addAll(reachable);
+        } else {
+            blocks.add(null);
+            blocks.addAll(getReverseGraphOrder(reachable));
+        }
+        for (int i = 0; i < blocks.size(); i++) index.put(blocks.get(i), i);
+
+        for (BasicBlock block: blocks) {
+            List<BasicBlock> from = block == null ? Collections.emptyList()
+                    : direction == DataflowAnalysis.Direction.FORWARD ? block.predecessors : block.successors;
+            int[] positions = from.stream().filter(index::containsKey).mapToInt(index::get).toArray();
+            if (block != null && direction == DataflowAnalysis.Direction.BACKWARD && block.successors.isEmpty())
+                positions = new int[] { 0 };
+            sources.add(positions);
+        }
+
+        idom = new int[blocks.size()];
+        Arrays.fill(idom, -1);
+        if (!blocks.isEmpty()) idom[0] = 0;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int b = 1; b < blocks.size(); b++) {
+                int newIdom = -1;
+                for (int p: sources.get(b)) {
+                    if (idom[p] < 0) continue;
+                    newIdom = newIdom < 0 ? p : intersect(p, newIdom);
+                }
+                if (idom[b] != newIdom) {
+                    idom[b] = newIdom;
+                    changed = true;
+                }
+            }
+        }
+
+        for (int b = 0; b < blocks.size(); b++) children.add(new ArrayList<>());
+        for (int b = 1; b < blocks.size(); b++) children.get(idom[b]).add(blocks.get(b));
+        preorder = new int[blocks.size()];
+        postorder = new int[blocks.size()];
+        numberTree();
+    }
+
+    /**
+     * Blocks of the reachable part of the graph that can reach a return, in reverse postorder of
+     * the reversed graph, found by walking predecessors back from every returning block
+     */
+    private static List<BasicBlock> getReverseGraphOrder(List<BasicBlock> reachable) {
+        Set<BasicBlock> inGraph = new HashSet<>(reachable);
+        List<BasicBlock> order = new ArrayList<>();
+        Set<BasicBlock> visited = new HashSet<>();
+        Deque<BasicBlock> stack = new ArrayDeque<>();
+        Deque<Iterator<BasicBlock>> predecessors = new ArrayDeque<>();
+        for (BasicBlock exit: reachable) {
+            if (!exit.successors.isEmpty() || !visited.add(exit)) continue;
+            stack.push(exit);
+            predecessors.push(exit.predecessors.iterator());
+            while (!stack.isEmpty()) {
+                Iterator<BasicBlock> next = predecessors.peek();
+                if (next.hasNext()) {
+                    BasicBlock block = next.next();
+                    if (inGraph.contains(block) && visited.add(block)) {
+                        stack.push(block);
+                        predecessors.push(block.predecessors.iterator());
+                    }
+                } else {
+                    order.add(stack.pop());
+                    predecessors.pop();
+                }
+            }
+        }
+        Collections.reverse(order);
+        return order;
+    }
+
+    private int intersect(int a, int b) {
+        while (a != b) {
+            while (a > b) a = idom[a];
+            while (b > a) b = idom[b];
+        }
+        return a;
+    }
+
+    private void numberTree() {
+        if (blocks.isEmpty()) return;
+        int counter = 0;
+        Deque<Integer> stack = new ArrayDeque<>();
+        Deque<Iterator<BasicBlock>> next = new ArrayDeque<>();
+        preorder[0] = counter++;
+        stack.push(0);
+        next.push(children.get(0).iterator());
+        while (!stack.isEmpty()) {
+            if (next.peek().hasNext()) {
+                int child = index.get(next.peek().next());
+                preorder[child] = counter++;
+                stack.push(child);
+                next.push(children.get(child).iterator());
+            } else {
+                postorder[stack.pop()] = counter++;
+                next.pop();
+            }
+        }
+    }
+
+    public DataflowAnalysis.Direction getDirection() {
+        return direction;
+    }
+
+    /**
+     * Whether the block is part of the tree
+     */
+    public boolean contains(BasicBlock block) {
+        return block != null && index.containsKey(block);
+    }
+
+    /**
+     * Blocks of the tree in reverse postorder of its direction, so every block comes after its
+     * immediate dominator
+     */
+    public List<BasicBlock> getBlocks() {
+        return direction == DataflowAnalysis.Direction.FORWARD ? blocks : blocks.subList(1, blocks.size());
+    }
+
+    /**
+     * Immediate dominator of the block, or null for the root, for returning blocks of a
+     * post-dominator tree and for blocks outside the tree
+     */
+    public BasicBlock getImmediateDominator(BasicBlock block) {
+        if (!contains(block)) return null;
+        int b = index.get(block);
+        return b == 0 ? null : blocks.get(idom[b]);
+    }
+
+    /**
+     * Blocks the block immediately dominates, in reverse postorder
+     */
+    public List<BasicBlock> getChildren(BasicBlock block) {
+        return contains(block) ? children.get(index.get(block)) : Collections.emptyList();
+    }
+
+    /**
+     * Whether a dominates b; every block in the tree dominates itself
+     */
+    public boolean dominates(BasicBlock a, BasicBlock b) {
+        if (!contains(a) || !contains(b)) return false;
+        int x = index.get(a), y = index.get(b);
+        return preorder[x] <= preorder[y] && postorder[y] <= postorder[x];
+    }
+
+    public boolean strictlyDominates(BasicBlock a, BasicBlock b) {
+        return a != b && dominates(a, b);
+    }
+
+    /**
+     * Dominance frontier of the block in reverse postorder: the blocks where its dominance ends,
+     * which it does not strictly dominate but does dominate a predecessor of. For a post-dominator
+     * tree these are the branches that decide whether the block runs.
+     */
+    public List<BasicBlock> getDominanceFrontier(BasicBlock block) {
+        if (!contains(block)) return Collections.emptyList();
+        if (frontiers == null) frontiers = computeFrontiers();
+        List<BasicBlock> frontier = new ArrayList<>();
+        BitSet positions = frontiers.get(index.get(block));
+        for (int b = positions.nextSetBit(0); b >= 0; b = positions.nextSetBit(b + 1)) frontier.add(blocks.get(b));
+        return frontier;
+    }
+
+    private List<BitSet> computeFrontiers() {
+        List<BitSet> result = new ArrayList<>();
+        for (int b = 0; b < blocks.size(); b++) result.add(new BitSet());
+        // The walk up from each predecessor stops at the immediate dominator, or past the root when
+        // a back edge leads to the root itself
+        for (int b = 0; b < blocks.size(); b++) {
+            int stop = b == 0 ? -1 : idom[b];
+            for (int p: sources.get(b)) {
+                for (int runner = p; runner != stop; runner = runner == 0 ? -1 : idom[runner]) result.get(runner).set(b);
+            }
+        }
+        return result;
+    }
+}
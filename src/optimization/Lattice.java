@@ -0,0 +1,47 @@
+package optimization;
+
+import java.util.BitSet;
+
+/**
+ * Values of a dataflow analysis and how they combine where control flow merges
+ */
+public interface Lattice<T> {
+    /**
+     * Value of a block before anything has flowed into it. Returns a new value on every call, since
+     * meet modifies its target.
+     */
+    T initial();
+
+    /**
+     * Value flowing into the entry block of a forward analysis or the exit blocks of a backward
+     * one. Returns a new value on every call.
+     */
+    T boundary();
+
+    /**
+     * Combines value into target
+     */
+    void meet(T target, T value);
+
+    /**
+     * Sets where a value may come from any path, such as reaching definitions and live variables
+     */
+    static Lattice<BitSet> union() {
+        return new Lattice<>() {
+            @Override
+            public BitSet initial() {
+                return new BitSet();
+            }
+
+            @Override
+            public BitSet boundary() {
+                return new BitSet();
+            }
+
+            @Override
+            public void meet(BitSet target, BitSet value) {
+                target.or(value);
+            }
+        };
+    }
+}
@@ -0,0 +1,75 @@
+package optimization;
+
+import ir.IRInstruction;
+import ir.operand.IROperand;
+import ir.operand.IRVariableOperand;
+
+import java.util.*;
+
+/**
+ * Live variables of one function: which variables may still be read at the start and the end of
+ * each block before they are defined again. Variables are numbered in order of first appearance.
+ * Every variable operand that is not the target of a definition counts as read, including the
+ * array of an array_store.
+ */
+public class LiveVariables {
+    private final Map<String, Integer> variableNumbers = new HashMap<>();
+    private final List<String> variables = new ArrayList<>();
+    private final DataflowAnalysis<BitSet> analysis;
+
+    public LiveVariables(ControlFlowGraph graph, Set<IRInstruction.OpCode> defCodes) {
+        // Block -> variables it reads before defining them, and variables it defines
+        Map<BasicBlock, BitSet> uses = new HashMap<>();
+        Map<BasicBlock, BitSet> defs = new HashMap<>();
+        for (BasicBlock block: graph.getReversePostorder()) {
+            BitSet blockUses = new BitSet();
+            BitSet blockDefs = new BitSet();
+            for (IRInstruction instruction: block.instructions) {
+                boolean isDef = defCodes.contains(instruction.opCode);
+                for (int i = isDef ? 1 : 0; i < instruction.operands.length; i++) {
+                    IROperand operand = instruction.operands[i];
+                    if (!(operand instanceof IRVariableOperand)) continue;
+                    int variable = getNumber(operand.toString());
+                    if (!blockDefs.get(variable)) blockUses.set(variable);
+                }
+                if (isDef) blockDefs.set(getNumber(instruction.operands[0].toString()));
+            }
+            uses.put(block, blockUses);
+            defs.put(block, blockDefs);
+        }
+
+        analysis = new DataflowAnalysis<>(graph, DataflowAnalysis.Direction.BACKWARD,
+                Lattice.union(), (block, out) -> {
+                    BitSet in = (BitSet) out.clone();
+                    in.andNot(defs.get(block));
+                    in.or(uses.get(block));
+                    return in;
+                });
+        analysis.solve();
+    }
+
+    private int getNumber(String variable) {
+        Integer number = variableNumbers.get(variable);
+        if (number == null) {
+            number = variables.size();
+            variableNumbers.put(variable, number);
+            variables.add(variable);
+        }
+        return number;
+    }
+
+    /**
+     * Variable number -> variable name
+     */
+    public List<String> getVariables() {
+        return variables;
+    }
+
+    public BitSet getLiveIn(BasicBlock block) {
+        return analysis.getIn(block);
+    }
+
+    public BitSet getLiveOut(BasicBlock block) {
+        return analysis.getOut(block);
+    }
+}
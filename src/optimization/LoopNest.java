@@ -0,0 +1,152 @@
+package optimization;
+
+import java.util.*;
+
+/**
+ * Natural loops of one control flow graph and how they nest.
+ *
+ * An edge from a block to one of its dominators is a back edge, and its natural loop is the target,
+ * the header, together with every block that reaches the source without passing through the header.
+ * Back edges to the same header make up a single loop. Two loops are then either disjoint or one is
+ * nested in the other. Retreating edges to a block that does not dominate them belong to
+ * irreducible control flow and start no loop.
+ */
+public class LoopNest {
+
+    public static class Loop {
+        public final BasicBlock header;
+        // Blocks of the loop including the header, in reverse postorder
+        public final List<BasicBlock> blocks = new ArrayList<>();
+        // Sources of the back edges to the header
+        public final List<BasicBlock> latches = new ArrayList<>();
+        // Innermost loop this one is nested in, or null for an outermost loop
+        public Loop parent;
+        public final List<Loop> children = new ArrayList<>();
+        // 1 for an outermost loop
+        public int depth;
+
+        private final Set<BasicBlock> members = new HashSet<>();
+
+        Loop(BasicBlock header) {
+            this.header = header;
+        }
+
+        public boolean contains(BasicBlock block) {
+            return members.contains(block);
+        }
+
+        /**
+         * Blocks outside the loop that a block of the loop branches or falls through to
+         */
+        public List<BasicBlock> getExits() {
+            Set<BasicBlock> exits = new LinkedHashSet<>();
+            for (BasicBlock block: blocks) {
+                for (BasicBlock successor: block.successors) {
+                    if (!contains(successor)) exits.add(successor);
+                }
+            }
+            return new ArrayList<>(exits);
+        }
+
+        /**
+         * Predecessors of the header from outside the loop
+         */
+        public List<BasicBlock> getEntries() {
+            Set<BasicBlock> entries = new LinkedHashSet<>();
+            for (BasicBlock predecessor: header.predecessors) {
+                if (!contains(predecessor)) entries.add(predecessor);
+            }
+            return new ArrayList<>(entries);
+        }
+    }
+
+    // Loops in reverse postorder of their headers, so every loop comes after the loops it is nested in
+    private final List<Loop> loops = new ArrayList<>();
+    private final List<Loop> outermost = new ArrayList<>();
+    // Block -> innermost loop holding it
+    private final Map<BasicBlock, Loop> innermost = new HashMap<>();
+
+    public LoopNest(DominatorTree dominators) {
+        List<BasicBlock> order = dominators.getBlocks();
+        Map<BasicBlock, Integer> position = new HashMap<>();
+        for (int i = 0; i < order.size(); i++) position.put(order.get(i), i);
+
+        Map<BasicBlock, Loop> headerLoops = new LinkedHashMap<>();
+        for (BasicBlock block: order) {
+            for (BasicBlock successor: block.successors) {
+                if (!dominators.dominates(successor, block)) continue;
+                Loop loop = headerLoops.computeIfAbsent(successor, Loop::new);
+                if (!loop.latches.contains(block)) loop.latches.add(block);
+            }
+        }
+
+        for (BasicBlock header: order) {
+            Loop loop = headerLoops.get(header);
+            if (loop == null) continue;
+            loops.add(loop);
+            loop.members.add(header);
+            Deque<BasicBlock> worklist = new ArrayDeque<>();
+            for (BasicBlock latch: loop.latches) {
+                if (loop.members.add(latch)) worklist.push(latch);
+            }
+            while (!worklist.isEmpty()) {
+                for (BasicBlock predecessor: worklist.pop().predecessors) {
+                    if (position.containsKey(predecessor) && loop.members.add(predecessor)) worklist.push(predecessor);
+                }
+            }
+            loop.blocks.addAll(loop.members);
+            loop.blocks.sort(Comparator.comparing(position::get));
+        }
+
+        // A loop nested in another is strictly smaller, so going from the largest loop down, the
+        // innermost loop seen so far at a header is the parent of the loop it heads
+        List<Loop> bySize = new ArrayList<>(loops);
+        bySize.sort(Comparator.comparing((Loop loop) -> loop.blocks.size()).reversed());
+        for (Loop loop: bySize) {
+            loop.parent = innermost.get(loop.header);
+            loop.depth = loop.parent == null ? 1 : loop.parent.depth + 1;
+            for (BasicBlock block: loop.blocks) innermost.put(block, loop);
+        }
+        for (Loop loop: loops) {
+            if (loop.parent == null) outermost.add(loop);
+            else loop.parent.children.add(loop);
+        }
+    }
+
+    /**
+     * Every loop, outer loops before the loops nested in them
+     */
+    public List<Loop> getLoops() {
+        return loops;
+    }
+
+    public List<Loop> getOutermostLoops() {
+        return outermost;
+    }
+
+    /**
+     * Loops with no loop nested in them, where most of the time of a program is usually spent
+     */
+    public List<Loop> getInnermostLoops() {
+        List<Loop> result = new ArrayList<>();
+        for (Loop loop: loops) {
+            if (loop.children.isEmpty()) result.add(loop);
+        }
+        return result;
+    }
+
+    /**
+     * Innermost loop holding the block, or null if it is in no loop
+     */
+    public Loop getLoop(BasicBlock block) {
+        return innermost.get(block);
+    }
+
+    /**
+     * Number of loops the block is nested in
+     */
+    public int getDepth(BasicBlock block) {
+        Loop loop = innermost.get(block);
+        return loop == null ? 0 : loop.depth;
+    }
+}
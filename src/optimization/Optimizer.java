@@ -1,28 +1,32 @@
 package optimization;
 
 import ir.*;
-import ir.operand.IRFunctionOperand;
+import ir.datatype.IRArrayType;
 import ir.operand.IRLabelOperand;
-import ir.operand.IROperand;
+import ir.operand.IRVariableOperand;
 
-import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
 
 public class Optimizer {
     private static final Set<IRInstruction.OpCode> branchCodes = new HashSet<>();
-    private static final Set<String> intrinsicFunctions = new HashSet<>();
-    private static int num = 0;
     private static final Set<IRInstruction.OpCode> defCodes = new HashSet<>();
     private static final Set<IRInstruction.OpCode> criticalCodes = new HashSet<>();
 
-    private final IRProgram program;
+    // Functions read but not yet printed per thread when streaming
+    private static final int STREAM_WINDOW_PER_JOB = 4;
 
-    public Optimizer(String filename) throws FileNotFoundException, IRException {
-        IRReader irReader = new IRReader();
-        this.program = irReader.parseIRFile(filename);
+    private final IRProgram program;
 
+    static {
         branchCodes.add(IRInstruction.OpCode.BREQ);
         branchCodes.add(IRInstruction.OpCode.BRGEQ);
         branchCodes.add(IRInstruction.OpCode.BRGT);
@@ -30,13 +34,6 @@ public class Optimizer {
         branchCodes.add(IRInstruction.OpCode.BRLEQ);
         branchCodes.add(IRInstruction.OpCode.BRNEQ);
 
-        intrinsicFunctions.add("geti");
-        intrinsicFunctions.add("puti");
-        intrinsicFunctions.add("getc");
-        intrinsicFunctions.add("putc");
-        intrinsicFunctions.add("getf");
-        intrinsicFunctions.add("putf");
-
         defCodes.add(IRInstruction.OpCode.ASSIGN);
         defCodes.add(IRInstruction.OpCode.ADD);
         defCodes.add(IRInstruction.OpCode.SUB);
@@ -56,296 +53,282 @@ public class Optimizer {
         criticalCodes.add(IRInstruction.OpCode.LABEL);
     }
 
-    private Set<IRInstruction> getLeaders(Map<IRFunction, Map<String, IRInstruction>> labelMap) {
-        boolean branchSuccessor = false;
-        boolean funcSuccessor = false;
-        Set<IRInstruction> leaders = new HashSet<>();
-        for (IRFunction function: this.program.functions) {
-            labelMap.put(function, new HashMap<>());
-            for (int i = 0; i < function.instructions.size(); i++) {
-                IRInstruction instruction = function.instructions.get(i);
-                if (instruction.opCode == IRInstruction.OpCode.LABEL) {
-                    leaders.add(instruction);
-                    labelMap.get(function).put(((IRLabelOperand) instruction.operands[0]).getName(), instruction);
-                }
-                else if (i == 0) leaders.add(instruction);
-                else if (branchSuccessor || funcSuccessor) leaders.add(instruction);
-
-                if (branchSuccessor) branchSuccessor = false;
-                if (funcSuccessor) funcSuccessor = false;
-                if (branchCodes.contains(instruction.opCode)) branchSuccessor = true;
-                if (instruction.opCode == IRInstruction.OpCode.CALL || instruction.opCode == IRInstruction.OpCode.CALLR) {
-                    int pos = instruction.opCode == IRInstruction.OpCode.CALL ? 0 : 1;
-                    if (!intrinsicFunctions.contains(((IRFunctionOperand) instruction.operands[pos]).getName())) funcSuccessor = true;
-                }
-            }
-        }
+    public Optimizer(String filename) throws IOException, IRException {
+        IRReader irReader = new IRReader();
+        this.program = irReader.readIRFile(filename);
+    }
 
-        return leaders;
+    Optimizer(IRProgram program) {
+        this.program = program;
     }
 
-    private ControlFlowGraph buildControlFlowGraph(Map<IRInstruction, BasicBlock> blockMap) {
-        Map<IRFunction, Map<String, IRInstruction>> labelMap = new HashMap<>();
-        Map<String, BasicBlock> functionBlockMap = new HashMap<>();
-        Map<String, BasicBlock> returnBlockMap = new HashMap<>();
-        ArrayList<IRInstruction> returnCache = new ArrayList<>();
-        Set<IRInstruction> leaders = this.getLeaders(labelMap);
-        Map<IRInstruction, BasicBlock> leaderBlockMap = new HashMap<>();
-        for (IRInstruction leader: leaders) {
-            ArrayList<IRInstruction> instructions = new ArrayList<>();
-            instructions.add(leader);
-            leaderBlockMap.put(leader, new BasicBlock(num++, instructions));
+    /**
+     * Builds the control flow graph of a single function. Variables are local to their function, so
+     * calls are ordinary instructions here rather than edges into the callee. Blocks start at the
+     * first instruction, at labels and after branches, gotos and returns.
+     */
+    static ControlFlowGraph buildFunctionGraph(IRFunction function, Map<IRInstruction, BasicBlock> blockMap) {
+        List<BasicBlock> blocks = new ArrayList<>();
+        Map<String, BasicBlock> labelBlockMap = new HashMap<>();
+        boolean startsBlock = true;
+        for (IRInstruction instruction: function.instructions) {
+            if (startsBlock || instruction.opCode == IRInstruction.OpCode.LABEL) {
+                blocks.add(new BasicBlock(blocks.size(), new ArrayList<>()));
+                if (instruction.opCode == IRInstruction.OpCode.LABEL)
+                    labelBlockMap.put(((IRLabelOperand) instruction.operands[0]).getName(), blocks.get(blocks.size() - 1));
+            }
+            BasicBlock curr = blocks.get(blocks.size() - 1);
+            curr.instructions.add(instruction);
+            blockMap.put(instruction, curr);
+            startsBlock = instruction.opCode == IRInstruction.OpCode.GOTO || instruction.opCode == IRInstruction.OpCode.RETURN
+                    || branchCodes.contains(instruction.opCode);
         }
 
-        BasicBlock curr = null;
-        BasicBlock entry = null;
-        for (IRFunction function: this.program.functions) {
-            for (int i = 0; i < function.instructions.size(); i++) {
-                IRInstruction instruction = function.instructions.get(i);
-                if (i == 0 && function.name.equals("main")) entry = leaderBlockMap.get(instruction);
-                boolean isLeader = false;
-                if (leaders.contains(instruction)) {
-                    BasicBlock block = leaderBlockMap.get(instruction);
-                    isLeader = true;
-                    if (curr != null) {
-                        curr.successors.add(block);
-                        block.predecessors.add(curr);
-                    }
-                    curr = block;
-                    blockMap.put(instruction, curr);
-                    if (i == 0) functionBlockMap.put(function.name, curr);
-                }
-                if (instruction.opCode == IRInstruction.OpCode.GOTO) {
-                    if (!isLeader) curr.instructions.add(instruction);
-                    String label = ((IRLabelOperand) instruction.operands[0]).getName();
-                    BasicBlock block = leaderBlockMap.get(labelMap.get(function).get(label));
-                    curr.successors.add(block);
-                    block.predecessors.add(curr);
-                    blockMap.put(instruction, curr);
-                    curr = null;
-                } else if (branchCodes.contains(instruction.opCode)) {
-                    if (!isLeader) curr.instructions.add(instruction);
-                    String label = ((IRLabelOperand) instruction.operands[0]).getName();
-                    BasicBlock block = leaderBlockMap.get(labelMap.get(function).get(label));
-                    curr.successors.add(block);
-                    block.predecessors.add(curr);
-                    block = leaderBlockMap.get(function.instructions.get(i + 1));
-                    curr.successors.add(block);
-                    block.predecessors.add(curr);
-                    blockMap.put(instruction, curr);
-                    curr = null;
-                } else if (instruction.opCode == IRInstruction.OpCode.CALL || instruction.opCode == IRInstruction.OpCode.CALLR) {
-                    if (!isLeader) curr.instructions.add(instruction);
-                    int pos = instruction.opCode == IRInstruction.OpCode.CALL ? 0 : 1;
-                    String name = ((IRFunctionOperand) instruction.operands[pos]).getName();
-                    if (!intrinsicFunctions.contains(name)) {
-                        BasicBlock block = functionBlockMap.get(name);
-                        curr.successors.add(block);
-                        block.predecessors.add(curr);
-                        if (returnBlockMap.containsKey(name)) {
-                            block = leaderBlockMap.get(function.instructions.get(i + 1));
-                            returnBlockMap.get(name).successors.add(block);
-                            block.predecessors.add(returnBlockMap.get(name));
-                        }
-                        else returnCache.add(function.instructions.get(i + 1));
-                        blockMap.put(instruction, curr);
-                        curr = null;
-                    }
-                } else if (instruction.opCode == IRInstruction.OpCode.RETURN || i == function.instructions.size() - 1) {
-                    if (!isLeader) curr.instructions.add(instruction);
-                    returnBlockMap.put(function.name, curr);
-                    while (!returnCache.isEmpty()) {
-                        BasicBlock block = leaderBlockMap.get(returnCache.remove(0));
-                        curr.successors.add(block);
-                        block.predecessors.add(curr);
-                    }
-                    blockMap.put(instruction, curr);
-                    curr = null;
-                } else if (!isLeader) {
-                    curr.instructions.add(instruction);
-                    blockMap.put(instruction, curr);
-                }
+        // Successors in the same order as the whole-program graph: branch target, then fall-through
+        for (int b = 0; b < blocks.size(); b++) {
+            BasicBlock block = blocks.get(b);
+            IRInstruction last = block.instructions.get(block.instructions.size() - 1);
+            List<BasicBlock> successors = new ArrayList<>();
+            if (last.opCode == IRInstruction.OpCode.GOTO || branchCodes.contains(last.opCode))
+                successors.add(labelBlockMap.get(((IRLabelOperand) last.operands[0]).getName()));
+            if (last.opCode != IRInstruction.OpCode.GOTO && last.opCode != IRInstruction.OpCode.RETURN && b + 1 < blocks.size())
+                successors.add(blocks.get(b + 1));
+            for (BasicBlock successor: successors) {
+                block.successors.add(successor);
+                successor.predecessors.add(block);
             }
         }
 
-        return new ControlFlowGraph(entry);
+        return new ControlFlowGraph(blocks.isEmpty() ? null : blocks.get(0), blockMap);
     }
 
-    private Map<Integer, IRInstruction> generateReachDefinitions(ControlFlowGraph cfg)
-    {
-        Map<String, ArrayList<Integer>> definitions = new HashMap<>();
-        Set<Integer> reachedBlocks = new HashSet<>();
-        Map<Integer, IRInstruction> lineToInst = new HashMap<>();
-        Map<Integer, HashSet<Integer>> outSet = new HashMap<>();
-        Map<Integer, HashSet<Integer>> tempOutSet = new HashMap<>();
-        BasicBlock head = cfg.entry;
-        reachDefinitionsHelper(head, reachedBlocks, definitions, outSet, lineToInst);
-        reachedBlocks.clear();
-
-        while(!outSet.equals(tempOutSet))
-        {
-            tempOutSet = outSet;
-            reachDefinitionsHelper2(head, tempOutSet, reachedBlocks);
-        }
-
-        return lineToInst;
-
+    /**
+     * Computes the reaching definitions of every block of the graph and returns the instruction of
+     * each definition number
+     */
+    static List<IRInstruction> generateReachDefinitions(ControlFlowGraph cfg) {
+        return new ReachingDefinitions(cfg, defCodes).getDefinitions();
     }
 
-    private void reachDefinitionsHelper2 (BasicBlock head, Map<Integer, HashSet<Integer>> outSet, Set<Integer> reachedBlocks)
-    {
-        reachedBlocks.add(head.name);
-        head.predecessors.forEach((pred) -> head.in.addAll(pred.out));
-        head.out = new HashSet<>(head.gen);
-        HashSet<Integer> added = new HashSet<>(head.in);
-        added.removeAll(head.kill);
-        head.out.addAll(added);
-        if (outSet.containsKey(head.name)) {
-            outSet.replace(head.name, head.out);
-        } else {
-            outSet.put(head.name, head.out);
-        }
+    /**
+     * Computes the variables live at the start and the end of every block of the graph
+     */
+    static LiveVariables generateLiveVariables(ControlFlowGraph cfg) {
+        return new LiveVariables(cfg, defCodes);
+    }
 
-        for (int x = 0; x < head.successors.size(); x++) {
-            if (!reachedBlocks.contains(head.successors.get(x).name)) {
-                reachDefinitionsHelper2(head.successors.get(x), outSet, reachedBlocks);
-            }
-        }
+    public void optimize() {
+        optimize(ForkJoinPool.commonPool());
     }
 
-    private void reachDefinitionsHelper
-            (BasicBlock head,
-             Set<Integer> reachedBlocks,
-             Map<String, ArrayList<Integer>> definitions,
-             Map<Integer, HashSet<Integer>> outSet,
-             Map<Integer, IRInstruction> lineToInst)
-    {
-        IROperand operand;
-        ArrayList<Integer> defs;
-        reachedBlocks.add(head.name);
-        IRInstruction curInst;
-        for (int i = 0; i < head.instructions.size(); i++)
-        {
-            curInst = head.instructions.get(i);
-            if (defCodes.contains(curInst.opCode)) {
-                lineToInst.put(curInst.irLineNumber, curInst);
-                head.out.add(curInst.irLineNumber);
-                head.gen.add(curInst.irLineNumber);
-                operand = curInst.operands[0];
-                if (!definitions.containsKey(operand.toString())) {
-                    definitions.put(operand.toString(), new ArrayList<Integer>());
-                }
-                definitions.get(operand.toString()).add(curInst.irLineNumber);
-            }
-        }
-        outSet.put(head.name, head.out);
-        for (int x = 0; x < head.successors.size(); x++) {
-            if (!reachedBlocks.contains(head.successors.get(x).name)) {
-                reachDefinitionsHelper(head.successors.get(x), reachedBlocks, definitions, outSet, lineToInst);
+    /**
+     * Optimizes every function on its own control flow graph, one task per function on the pool.
+     * The call graph stands in for the calls, which are ordinary instructions in those graphs.
+     */
+    public void optimize(ForkJoinPool pool) {
+        CallGraph callGraph = new CallGraph(this.program);
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        try {
+            for (IRFunction function: this.program.functions) {
+                boolean called = !callGraph.getCallers(function.name).isEmpty();
+                tasks.add(pool.submit(() -> optimizeFunction(function, called)));
             }
+            for (ForkJoinTask<?> task: tasks) task.join();
+        } finally {
+            for (ForkJoinTask<?> task: tasks) task.cancel(false);
         }
+    }
 
-        for (int i = 0; i < head.instructions.size(); i++) {
-            if (defCodes.contains(head.instructions.get(i).opCode)) {
-                defs = definitions.get(head.instructions.get(i).operands[0].toString());
-                head.kill.addAll(defs);
-            }
-        }
-        if (!head.gen.isEmpty()) {
-            head.kill.removeAll(head.gen);
-        }
+    /**
+     * Optimizes a single function on its own control flow graph, without looking at any other
+     * function. Not knowing its callers, it keeps every definition of an array parameter.
+     */
+    public static void optimizeFunction(IRFunction function) {
+        optimizeFunction(function, true);
     }
 
-    private void optimize() {
+    private static void optimizeFunction(IRFunction function, boolean called) {
+        if (function.instructions.isEmpty()) return;
         Map<IRInstruction, BasicBlock> blockMap = new HashMap<>();
-        ControlFlowGraph graph = this.buildControlFlowGraph(blockMap);
-        Map<Integer, IRInstruction> linetoInst = this.generateReachDefinitions(graph);
+        ControlFlowGraph graph = buildFunctionGraph(function, blockMap);
+        DefUseChains chains = new DefUseChains(graph, new ReachingDefinitions(graph, defCodes), defCodes);
 //        Debug.printControlFlowGraph(graph);
 
+        sweep(function, markCritical(function, chains, called));
+    }
+
+    /**
+     * Marks the critical instructions and, following the use-def chains, every definition they
+     * depend on. Arrays are passed by reference, so when the function has callers, a
+     * definition of an array parameter is seen by the caller and is critical as well.
+     */
+    private static Set<IRInstruction> markCritical(IRFunction function, DefUseChains chains, boolean called) {
+        Set<String> arrayParams = new HashSet<>();
+        if (called) {
+            for (IRVariableOperand param: function.parameters) {
+                if (param.type instanceof IRArrayType) arrayParams.add(param.getName());
+            }
+        }
+
         Set<IRInstruction> critical = new HashSet<>();
         ArrayList<IRInstruction> worklist = new ArrayList<>();
-        for (IRFunction function: this.program.functions) {
-            for (IRInstruction instruction: function.instructions) {
-                if (criticalCodes.contains(instruction.opCode)) {
-                    critical.add(instruction);
-                    worklist.add(instruction);
-//                    Debug.printInstruction(instruction, "");
-                }
+        for (IRInstruction instruction: function.instructions) {
+            if (criticalCodes.contains(instruction.opCode)
+                    || defCodes.contains(instruction.opCode) && arrayParams.contains(instruction.operands[0].toString())) {
+                critical.add(instruction);
+                worklist.add(instruction);
+//                Debug.printInstruction(instruction, "");
             }
         }
 
+        // Definitions already followed, so shared chains are only walked for what they add
+        BitSet markedDefs = new BitSet();
         while (!worklist.isEmpty()) {
-            IRInstruction instruction = worklist.remove(0);
-            if (instruction.opCode == IRInstruction.OpCode.LABEL) continue;
-            BasicBlock block = graph.find(graph.entry, instruction);
-//            Debug.printInstruction(instruction, "");
-
-            Map<String, IRInstruction> latestDefs = new HashMap<>();
-            for (int i = 0; i < block.instructions.size(); i++) {
-                IRInstruction def = block.instructions.get(i);
-                if (def == instruction) break;
-                if (!defCodes.contains(def.opCode)) continue;
-
-                for (int j = 0; j < instruction.operands.length; j++) {
-                    if (j == 0 && instruction.opCode != IRInstruction.OpCode.RETURN) continue;
-
-                    IROperand operand = instruction.operands[j];
-                    if (operand.toString().equals(def.operands[0].toString())) {
-                        latestDefs.put(operand.toString(), def);
-                    }
-                }
+            IRInstruction instruction = worklist.remove(worklist.size() - 1);
+            BitSet defs = chains.getDefinitionNumbers(instruction);
+            defs.andNot(markedDefs);
+            markedDefs.or(defs);
+            for (int d = defs.nextSetBit(0); d >= 0; d = defs.nextSetBit(d + 1)) {
+                IRInstruction def = chains.getDefinition(d);
+                if (critical.add(def)) worklist.add(def);
             }
+        }
 
-            if (!latestDefs.isEmpty()) {
-//                System.out.println("Local defs:");
-                for (String op: latestDefs.keySet()) {
-                    IRInstruction latestDef = latestDefs.get(op);
-//                    Debug.printInstruction(latestDef, "\t");
-                    if (!critical.contains(latestDef)) {
-                        critical.add(latestDef);
-                        worklist.add(latestDef);
-                    }
-                }
+        return critical;
+    }
+
+    private static void sweep(IRFunction function, Set<IRInstruction> critical) {
+        ArrayList<IRInstruction> instructions = new ArrayList<>();
+        for (IRInstruction instruction: function.instructions) {
+            if (critical.contains(instruction)) instructions.add(instruction);
+        }
+        function.instructions = instructions;
+    }
+
+    /**
+     * Parses, optimizes and prints a program one function at a time. Each function is optimized with
+     * optimizeFunction on the pool as soon as it has been read, and printed once it and every
+     * function before it are done, so the output keeps the original order. At most window functions
+     * are read but not yet printed, so memory use does not grow with the size of the program. When
+     * the file turns out to be invalid, the functions before the error have already been printed.
+     */
+    public static void optimizeStreaming(String filename, PrintStream out, ForkJoinPool pool, int window)
+            throws IOException, IRException {
+        Deque<ForkJoinTask<byte[]>> pending = new ArrayDeque<>();
+        try {
+            Consumer<IRFunction> consumer = function -> {
+                while (pending.size() >= window) writeFunction(out, pending.removeFirst());
+                pending.addLast(pool.submit(() -> {
+                    optimizeFunction(function);
+                    return IRTextWriter.toByteArray(function);
+                }));
+                while (pending.peekFirst().isDone()) writeFunction(out, pending.removeFirst());
+            };
+            if (IRBinaryReader.isBinaryIRFile(filename)) {
+                for (IRFunction function: new IRBinaryReader().readIRFile(filename).functions) consumer.accept(function);
+            } else {
+                new IRReader().parseIRFile(filename, consumer);
             }
+            while (!pending.isEmpty()) writeFunction(out, pending.removeFirst());
+        } finally {
+            for (ForkJoinTask<byte[]> task: pending) task.cancel(false);
+            out.flush();
+        }
+    }
+
+    private static void writeFunction(PrintStream out, ForkJoinTask<byte[]> task) {
+        byte[] text = task.join();
+        out.write(text, 0, text.length);
+    }
 
-//            System.out.println("Defs:");
-            for (int line: block.in) {
-                IRInstruction def = linetoInst.get(line);
-                if (latestDefs.containsKey(def.operands[0].toString())) continue;
-//                Debug.printInstruction(def, "\t");
-                for (int i = 0; i < instruction.operands.length; i++) {
-                    if (i == 0 && instruction.opCode != IRInstruction.OpCode.RETURN) continue;
-
-                    IROperand operand = instruction.operands[i];
-                    if (operand.toString().equals(def.operands[0].toString())) {
-                        if (!critical.contains(def)) {
-                            critical.add(def);
-                            worklist.add(def);
-                            break;
-                        }
-                    }
+    /**
+     * Command line options of main, parsed once so that the daemon can serve optimize requests the
+     * same way
+     */
+    public static class Options {
+        public String filename;
+        public boolean stream = false;
+        public int jobs = Runtime.getRuntime().availableProcessors();
+        // First option that is not recognized
+        public String unknownOption;
+
+        public static final String USAGE = "Usage: Optimizer [--stream] [--jobs=<n>] <file.ir>";
+
+        /**
+         * Parses the arguments. As in the original main, the first file name is optimized and any
+         * further ones are ignored.
+         */
+        public static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg: args) {
+                if (arg.equals("--stream")) options.stream = true;
+                else if (arg.startsWith("--jobs=")) options.jobs = Integer.parseInt(arg.substring("--jobs=".length()));
+                else if (arg.startsWith("--")) {
+                    if (options.unknownOption == null) options.unknownOption = arg;
                 }
+                else if (options.filename == null) options.filename = arg;
             }
+            return options;
+        }
 
-//            System.out.println();
+        /**
+         * Returns why the options cannot be run, or null if they can
+         */
+        public String validate() {
+            if (unknownOption != null) return String.format("Unknown option '%s'%n%s", unknownOption, USAGE);
+            if (filename == null || jobs < 1) return USAGE;
+            return null;
         }
 
-        for (IRFunction function: this.program.functions) {
-            ArrayList<IRInstruction> instructions = new ArrayList<>();
-            for (IRInstruction instruction: function.instructions) {
-                if (critical.contains(instruction)) instructions.add(instruction);
-            }
-            function.instructions = instructions;
+        /**
+         * Resolves the file name against a working directory
+         */
+        public void resolve(Path directory) {
+            filename = filename == null ? null : directory.resolve(filename).toString();
         }
     }
 
     public static void main(String[] args) throws Exception {
-        String filename = args[0];
-        Optimizer optimizer = new Optimizer(filename);
-        optimizer.optimize();
-//        System.out.println("\nOptimized:");
-//        for (IRInstruction instruction: optimized) Debug.printInstruction(instruction, "");
-        IRPrinter printer = new IRPrinter(new PrintStream(System.out));
-        printer.printProgram(optimizer.program);
+        Options options = Options.parse(args);
+        String problem = options.validate();
+        if (problem != null) {
+            System.err.println(problem);
+            System.exit(1);
+        }
+        execute(options, new FileOutputStream(FileDescriptor.out));
+    }
+
+    /**
+     * Optimizes the file of the options and writes the program to out, as main does
+     */
+    public static void execute(Options options, OutputStream out) throws IOException, IRException {
+        ForkJoinPool pool = new ForkJoinPool(options.jobs);
+        try {
+            if (options.stream) {
+                PrintStream printOut = out instanceof PrintStream ? (PrintStream) out : new PrintStream(out);
+                optimizeStreaming(options.filename, printOut, pool, STREAM_WINDOW_PER_JOB * options.jobs);
+                return;
+            }
+            Optimizer optimizer = new Optimizer(options.filename);
+            optimizer.optimize(pool);
+//            System.out.println("\nOptimized:");
+//            for (IRInstruction instruction: optimized) Debug.printInstruction(instruction, "");
+            optimizer.writeProgram(out);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void printProgram(PrintStream out) {
+        IRPrinter printer = new IRPrinter(out);
+        printer.printProgram(this.program);
+    }
+
+    /**
+     * Writes the same text as printProgram through an IRTextWriter, which is much faster for large
+     * programs
+     */
+    public void writeProgram(OutputStream out) throws IOException {
+        new IRTextWriter(out).writeProgram(this.program);
     }
 }
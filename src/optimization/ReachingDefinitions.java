@@ -0,0 +1,64 @@
+package optimization;
+
+import ir.IRInstruction;
+
+import java.util.*;
+
+/**
+ * Reaching definitions of one function: which definitions may reach the start and the end of each
+ * block. Definitions are numbered densely in reverse postorder of their blocks, and the in, out,
+ * gen and kill sets of each reachable block are filled with those numbers.
+ */
+public class ReachingDefinitions {
+    private final List<IRInstruction> definitions = new ArrayList<>();
+
+    public ReachingDefinitions(ControlFlowGraph graph, Set<IRInstruction.OpCode> defCodes) {
+        List<BasicBlock> blocks = graph.getReversePostorder();
+
+        // Variable name -> its definitions
+        Map<String, BitSet> variableDefs = new HashMap<>();
+        for (BasicBlock block: blocks) {
+            for (IRInstruction instruction: block.instructions) {
+                if (!defCodes.contains(instruction.opCode)) continue;
+                variableDefs.computeIfAbsent(instruction.operands[0].toString(), k -> new BitSet()).set(definitions.size());
+                definitions.add(instruction);
+            }
+        }
+
+        // A block generates the last definition of each variable it defines and kills the others
+        int def = 0;
+        for (BasicBlock block: blocks) {
+            Map<String, Integer> lastDefs = new HashMap<>();
+            for (IRInstruction instruction: block.instructions) {
+                if (defCodes.contains(instruction.opCode)) lastDefs.put(instruction.operands[0].toString(), def++);
+            }
+            block.gen = new BitSet();
+            block.kill = new BitSet();
+            for (Map.Entry<String, Integer> lastDef: lastDefs.entrySet()) {
+                block.gen.set(lastDef.getValue());
+                block.kill.or(variableDefs.get(lastDef.getKey()));
+            }
+            block.kill.andNot(block.gen);
+        }
+
+        DataflowAnalysis<BitSet> analysis = new DataflowAnalysis<>(graph, DataflowAnalysis.Direction.FORWARD,
+                Lattice.union(), (block, in) -> {
+                    BitSet out = (BitSet) in.clone();
+                    out.andNot(block.kill);
+                    out.or(block.gen);
+                    return out;
+                });
+        analysis.solve();
+        for (BasicBlock block: blocks) {
+            block.in = analysis.getIn(block);
+            block.out = analysis.getOut(block);
+        }
+    }
+
+    /**
+     * Definition number -> instruction
+     */
+    public List<IRInstruction> getDefinitions() {
+        return definitions;
+    }
+}
@@ -0,0 +1,12 @@
+package optimization;
+
+/**
+ * Effect of a basic block on a dataflow value
+ */
+public interface TransferFunction<T> {
+    /**
+     * Value on the far side of the block in the direction of the analysis, given the value flowing
+     * into it. Must not modify input.
+     */
+    T apply(BasicBlock block, T input);
+}
@@ -0,0 +1,363 @@
+package runtime;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.DecimalFormatSymbols;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+
+/**
+ * Intrinsic I/O over large byte buffers, reading the same numbers as ScannerIO.
+ *
+ * Tokens are split on ASCII whitespace and plain decimal numbers are parsed directly from the
+ * buffer; anything else (grouping separators, NaN, hex floats, non-ASCII text) is handed to a
+ * Scanner over that single token so the accepted syntax stays exactly the same. Output is collected
+ * in a char buffer and written out when it fills up and on flush.
+ *
+ * Two differences from ScannerIO remain. getc after geti/getf returns the byte following the
+ * discarded line, where ScannerIO skips past everything its Scanner has read ahead. And only ASCII
+ * whitespace splits tokens and only \n, \r and \r\n end lines, where a Scanner also splits at other
+ * Unicode whitespace and ends lines at U+2028, U+2029 and U+0085.
+ */
+public class BufferedIO implements IntrinsicIO {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // Plain decimal floats only mean the same to Scanner when the locale uses a decimal point
+    private static final boolean DECIMAL_POINT =
+            DecimalFormatSymbols.getInstance(Locale.getDefault(Locale.Category.FORMAT)).getDecimalSeparator() == '.';
+
+    // Powers of ten that are exact in a float
+    private static final float[] POWERS_OF_TEN = {1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+
+    // Input comes from either a stream or a mapped file
+    private final InputStream in;
+    private final ByteBuffer mapped;
+    private final byte[] inBuffer = new byte[BUFFER_SIZE];
+    private int inPosition = 0;
+    private int inLimit = 0;
+    private boolean endOfInput = false;
+
+    // Current token
+    private byte[] token = new byte[64];
+    private int tokenLength;
+
+    private final PrintStream out;
+    private final char[] outBuffer = new char[BUFFER_SIZE];
+    private int outSize = 0;
+
+    public BufferedIO(InputStream in, PrintStream out) {
+        this(in, null, out);
+    }
+
+    private BufferedIO(InputStream in, ByteBuffer mapped, PrintStream out) {
+        this.in = in;
+        this.mapped = mapped;
+        this.out = out;
+    }
+
+    /**
+     * Reads standard input through a memory mapping when it is redirected from a regular file, and
+     * as a stream otherwise
+     */
+    public static BufferedIO mapStandardInput(PrintStream out) {
+        try {
+            FileChannel channel = new FileInputStream(FileDescriptor.in).getChannel();
+            long position = channel.position();
+            long size = channel.size();
+            if (size > position && size - position <= Integer.MAX_VALUE)
+                return new BufferedIO(null, channel.map(FileChannel.MapMode.READ_ONLY, position, size - position), out);
+        } catch (IOException e) {
+            // Not a regular file
+        }
+        return new BufferedIO(System.in, out);
+    }
+
+    private boolean fill() {
+        if (endOfInput)
+            return false;
+        int n;
+        if (mapped != null) {
+            n = Math.min(inBuffer.length, mapped.remaining());
+            mapped.get(inBuffer, 0, n);
+        } else {
+            try {
+                do {
+                    n = in.read(inBuffer, 0, inBuffer.length);
+                } while (n == 0);
+            } catch (IOException e) {
+                n = -1;
+            }
+        }
+        if (n <= 0) {
+            endOfInput = true;
+            return false;
+        }
+        inPosition = 0;
+        inLimit = n;
+        return true;
+    }
+
+    private int peek() {
+        if (inPosition == inLimit && !fill())
+            return -1;
+        return inBuffer[inPosition] & 0xff;
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c < 0x80 && Character.isWhitespace(c);
+    }
+
+    private void readToken() {
+        int c = peek();
+        while (isWhitespace(c)) {
+            inPosition++;
+            c = peek();
+        }
+        if (c < 0)
+            throw new NoSuchElementException();
+        tokenLength = 0;
+        while (c >= 0 && !isWhitespace(c)) {
+            if (tokenLength == token.length)
+                token = Arrays.copyOf(token, token.length * 2);
+            token[tokenLength++] = (byte) c;
+            inPosition++;
+            c = peek();
+        }
+    }
+
+    /**
+     * Discards the rest of the current line like Scanner.nextLine, which fails when no input at all
+     * is left. After a token that did not parse, the Scanner would still be positioned before it, so
+     * there is always something left.
+     */
+    private void discardLine(boolean validToken) {
+        int c = peek();
+        if (c < 0) {
+            if (validToken)
+                throw new NoSuchElementException("No line found");
+            return;
+        }
+        while (c >= 0 && c != '\n' && c != '\r') {
+            inPosition++;
+            c = peek();
+        }
+        if (c >= 0)
+            inPosition++;
+        if (c == '\r' && peek() == '\n')
+            inPosition++;
+    }
+
+    private Scanner tokenScanner() {
+        return new Scanner(new String(token, 0, tokenLength, Charset.defaultCharset()));
+    }
+
+    @Override
+    public int readInt() {
+        readToken();
+        int i = 0;
+        boolean negative = token[0] == '-';
+        int start = negative || token[0] == '+' ? 1 : 0;
+        boolean valid = start < tokenLength;
+        long value = 0;
+        for (int k = start; k < tokenLength && valid; k++) {
+            int digit = token[k] - '0';
+            if (digit < 0 || digit > 9)
+                valid = false;
+            else if (value <= Integer.MAX_VALUE + 1L)
+                value = value * 10 + digit;
+        }
+
+        if (valid) {
+            if (negative)
+                value = -value;
+            valid = value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE;
+            if (valid)
+                i = (int) value;
+        } else {
+            Scanner scanner = tokenScanner();
+            valid = scanner.hasNextInt();
+            if (valid)
+                i = scanner.nextInt();
+        }
+        discardLine(valid);
+        return i;
+    }
+
+    @Override
+    public float readFloat() {
+        readToken();
+        float f = 0;
+        boolean valid = DECIMAL_POINT && isPlainDecimal();
+        if (valid) {
+            f = parsePlainDecimal();
+        } else {
+            Scanner scanner = tokenScanner();
+            valid = scanner.hasNextFloat();
+            if (valid)
+                f = scanner.nextFloat();
+        }
+        discardLine(valid);
+        return f;
+    }
+
+    /**
+     * Whether the token is [+-]digits[.digits][(e|E)[+-]digits] with at least one mantissa digit
+     */
+    private boolean isPlainDecimal() {
+        int k = token[0] == '-' || token[0] == '+' ? 1 : 0;
+        int digits = 0;
+        while (k < tokenLength && isDigit(token[k])) {
+            k++;
+            digits++;
+        }
+        if (k < tokenLength && token[k] == '.') {
+            k++;
+            while (k < tokenLength && isDigit(token[k])) {
+                k++;
+                digits++;
+            }
+        }
+        if (digits == 0)
+            return false;
+        if (k < tokenLength && (token[k] == 'e' || token[k] == 'E')) {
+            k++;
+            if (k < tokenLength && (token[k] == '-' || token[k] == '+'))
+                k++;
+            int exponentDigits = 0;
+            while (k < tokenLength && isDigit(token[k])) {
+                k++;
+                exponentDigits++;
+            }
+            if (exponentDigits == 0)
+                return false;
+        }
+        return k == tokenLength;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private float parsePlainDecimal() {
+        boolean negative = token[0] == '-';
+        int k = negative || token[0] == '+' ? 1 : 0;
+        long mantissa = 0;
+        int scale = 0;
+        boolean exact = true;
+        boolean fraction = false;
+        for (; k < tokenLength && token[k] != 'e' && token[k] != 'E'; k++) {
+            if (token[k] == '.') {
+                fraction = true;
+                continue;
+            }
+            if (mantissa >= 1L << 24) {
+                exact = false;
+                break;
+            }
+            mantissa = mantissa * 10 + (token[k] - '0');
+            if (fraction)
+                scale--;
+        }
+        if (exact && k < tokenLength) {
+            k++;
+            boolean negativeExponent = token[k] == '-';
+            if (negativeExponent || token[k] == '+')
+                k++;
+            int exponent = 0;
+            for (; k < tokenLength && exponent < 100; k++)
+                exponent = exponent * 10 + (token[k] - '0');
+            scale += negativeExponent ? -exponent : exponent;
+        }
+
+        // With both operands exact, a single float operation rounds the same way as parseFloat
+        if (exact && mantissa < 1L << 24 && scale >= -10 && scale <= 10) {
+            float value = scale >= 0 ? mantissa * POWERS_OF_TEN[scale] : mantissa / POWERS_OF_TEN[-scale];
+            return negative ? -value : value;
+        }
+        return Float.parseFloat(new String(token, 0, tokenLength, Charset.defaultCharset()));
+    }
+
+    @Override
+    public int readChar() {
+        int c = peek();
+        if (c >= 0)
+            inPosition++;
+        return c;
+    }
+
+    @Override
+    public void writeInt(int value) {
+        if (outSize + 11 > outBuffer.length)
+            flushBuffer();
+        if (value == Integer.MIN_VALUE) {
+            writeString("-2147483648");
+            return;
+        }
+        if (value < 0) {
+            outBuffer[outSize++] = '-';
+            value = -value;
+        }
+        int end = outSize + digitCount(value);
+        for (int k = end - 1; k >= outSize; k--) {
+            outBuffer[k] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        outSize = end;
+    }
+
+    private static int digitCount(int value) {
+        int count = 1;
+        while (value >= 10) {
+            value /= 10;
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public void writeFloat(float value) {
+        writeString(Float.toString(value));
+    }
+
+    private void writeString(String s) {
+        if (outSize + s.length() > outBuffer.length)
+            flushBuffer();
+        s.getChars(0, s.length(), outBuffer, outSize);
+        outSize += s.length();
+    }
+
+    @Override
+    public void writeChar(char c) {
+        if (outSize == outBuffer.length)
+            flushBuffer();
+        outBuffer[outSize++] = c;
+    }
+
+    private void flushBuffer() {
+        if (outSize == 0)
+            return;
+        out.print(String.valueOf(outBuffer, 0, outSize));
+        outSize = 0;
+    }
+
+    @Override
+    public void flush() {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+
+}
@@ -0,0 +1,35 @@
+package runtime;
+
+/**
+ * Input and output behind the intrinsic functions geti, getf, getc, puti, putf and putc.
+ *
+ * geti/getf read the next whitespace-delimited token and then discard the rest of its line; a token
+ * that is not a number reads as 0. Both fail with a NoSuchElementException when the input runs out,
+ * like java.util.Scanner. getc returns the next input byte, or -1 at the end of the input. Output is
+ * formatted like PrintStream.print.
+ */
+public interface IntrinsicIO {
+
+    int readInt();
+
+    float readFloat();
+
+    int readChar();
+
+    void writeInt(int value);
+
+    void writeFloat(float value);
+
+    void writeChar(char c);
+
+    /**
+     * Writes out any buffered output
+     */
+    void flush();
+
+    /**
+     * Flushes the output and releases the input
+     */
+    void close();
+
+}
@@ -0,0 +1,85 @@
+package runtime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.InputMismatchException;
+import java.util.Scanner;
+
+/**
+ * The original intrinsic I/O: a Scanner for geti/getf, raw reads for getc and unbuffered prints.
+ * Since the Scanner reads ahead, getc does not see input the Scanner has already buffered; after
+ * the first geti/getf on a short input, getc returns -1.
+ */
+public class ScannerIO implements IntrinsicIO {
+
+    private final InputStream in;
+    private final PrintStream out;
+    private final Scanner scanner;
+
+    public ScannerIO(InputStream in, PrintStream out) {
+        this.in = in;
+        this.out = out;
+        this.scanner = new Scanner(in);
+    }
+
+    @Override
+    public int readInt() {
+        int i;
+        try {
+            i = scanner.nextInt();
+        } catch (InputMismatchException e) {
+            i = 0;
+        }
+        scanner.nextLine();
+        return i;
+    }
+
+    @Override
+    public float readFloat() {
+        float f;
+        try {
+            f = scanner.nextFloat();
+        } catch (InputMismatchException e) {
+            f = 0;
+        }
+        scanner.nextLine();
+        return f;
+    }
+
+    @Override
+    public int readChar() {
+        try {
+            return in.read();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public void writeInt(int value) {
+        out.print(value);
+    }
+
+    @Override
+    public void writeFloat(float value) {
+        out.print(value);
+    }
+
+    @Override
+    public void writeChar(char c) {
+        out.print(c);
+    }
+
+    @Override
+    public void flush() {
+        out.flush();
+    }
+
+    @Override
+    public void close() {
+        out.flush();
+        scanner.close();
+    }
+
+}
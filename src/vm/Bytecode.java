@@ -0,0 +1,258 @@
+package vm;
+
+import ir.IRInstruction;
+
+/**
+ * Instruction set of the bytecode VM.
+ *
+ * Every instruction is an opcode followed by a fixed number of int operands (calls are the only
+ * variable-length instructions). A value operand is either a frame slot (>= 0) or the complement
+ * (~index) of an entry in the function's constant pool of the same type. Branch operands are
+ * absolute code offsets.
+ *
+ * Superinstructions execute a pair of adjacent instructions with a single dispatch. Only the opcode
+ * of the first instruction is replaced; the second instruction stays in place right after it, so its
+ * operands are read from there and jumps to it still work.
+ */
+public final class Bytecode {
+
+    // dest, src
+    public static final int IMOV = 0;
+    public static final int FMOV = 1;
+
+    // dest, y, z
+    public static final int IADD = 2;
+    public static final int ISUB = 3;
+    public static final int IMUL = 4;
+    public static final int IDIV = 5;
+    public static final int IAND = 6;
+    public static final int IOR = 7;
+    public static final int FADD = 8;
+    public static final int FSUB = 9;
+    public static final int FMUL = 10;
+    public static final int FDIV = 11;
+
+    // target
+    public static final int GOTO = 12;
+
+    // target, a, b
+    public static final int IBEQ = 13;
+    public static final int IBNE = 14;
+    public static final int IBLT = 15;
+    public static final int IBGT = 16;
+    public static final int IBLE = 17;
+    public static final int IBGE = 18;
+    public static final int FBEQ = 19;
+    public static final int FBNE = 20;
+    public static final int FBLT = 21;
+    public static final int FBGT = 22;
+    public static final int FBLE = 23;
+    public static final int FBGE = 24;
+
+    // dest, array, offset
+    public static final int IALOAD = 25;
+    public static final int FALOAD = 26;
+    // value, array, offset
+    public static final int IASTORE = 27;
+    public static final int FASTORE = 28;
+    // array, count, value
+    public static final int IAFILL = 29;
+    public static final int FAFILL = 30;
+
+    // function, argc, args...
+    public static final int CALL = 31;
+    // function, dest, argc, args...
+    public static final int CALLR = 32;
+    // value
+    public static final int IRET = 33;
+    public static final int FRET = 34;
+    // Falling off the end of a function
+    public static final int END = 35;
+
+    // dest
+    public static final int GETI = 36;
+    public static final int GETF = 37;
+    public static final int GETC = 38;
+    // value
+    public static final int PUTI = 39;
+    public static final int PUTF = 40;
+    public static final int PUTC = 41;
+
+    // Superinstructions, see FusionTable
+    public static final int IALOAD_IMOV = 42;
+    public static final int IMOV_IBLT = 43;
+    public static final int IMOV_IBGT = 44;
+    public static final int IMOV_IBGE = 45;
+    public static final int IADD_IALOAD = 46;
+    public static final int ISUB_IALOAD = 47;
+    public static final int IADD_GOTO = 48;
+    public static final int IADD_IBLT = 49;
+    public static final int ISUB_IBGT = 50;
+    public static final int IBGT_IBGE = 51;
+    public static final int IMOV_IMOV = 52;
+    public static final int FMOV_FMOV = 53;
+
+    public static final int OPCODE_COUNT = 54;
+
+    private static final int FIRST_SUPERINSTRUCTION = IALOAD_IMOV;
+
+    // First and second instruction of each superinstruction
+    private static final int[][] PAIRS = {
+            {IALOAD, IMOV},
+            {IMOV, IBLT},
+            {IMOV, IBGT},
+            {IMOV, IBGE},
+            {IADD, IALOAD},
+            {ISUB, IALOAD},
+            {IADD, GOTO},
+            {IADD, IBLT},
+            {ISUB, IBGT},
+            {IBGT, IBGE},
+            {IMOV, IMOV},
+            {FMOV, FMOV},
+    };
+
+    private static final String[] NAMES = {
+            "imov", "fmov",
+            "iadd", "isub", "imul", "idiv", "iand", "ior",
+            "fadd", "fsub", "fmul", "fdiv",
+            "goto",
+            "ibeq", "ibne", "iblt", "ibgt", "ible", "ibge",
+            "fbeq", "fbne", "fblt", "fbgt", "fble", "fbge",
+            "iaload", "faload", "iastore", "fastore", "iafill", "fafill",
+            "call", "callr", "iret", "fret", "end",
+            "geti", "getf", "getc", "puti", "putf", "putc",
+            "iaload+imov", "imov+iblt", "imov+ibgt", "imov+ibge", "iadd+iaload", "isub+iaload",
+            "iadd+goto", "iadd+iblt", "isub+ibgt", "ibgt+ibge", "imov+imov", "fmov+fmov",
+    };
+
+    // IR instruction each opcode is compiled from, null for instructions with no IR counterpart
+    private static final IRInstruction.OpCode[] SOURCE_OPCODES = new IRInstruction.OpCode[FIRST_SUPERINSTRUCTION];
+
+    static {
+        SOURCE_OPCODES[IMOV] = IRInstruction.OpCode.ASSIGN;
+        SOURCE_OPCODES[FMOV] = IRInstruction.OpCode.ASSIGN;
+        SOURCE_OPCODES[IADD] = IRInstruction.OpCode.ADD;
+        SOURCE_OPCODES[ISUB] = IRInstruction.OpCode.SUB;
+        SOURCE_OPCODES[IMUL] = IRInstruction.OpCode.MULT;
+        SOURCE_OPCODES[IDIV] = IRInstruction.OpCode.DIV;
+        SOURCE_OPCODES[IAND] = IRInstruction.OpCode.AND;
+        SOURCE_OPCODES[IOR] = IRInstruction.OpCode.OR;
+        SOURCE_OPCODES[FADD] = IRInstruction.OpCode.ADD;
+        SOURCE_OPCODES[FSUB] = IRInstruction.OpCode.SUB;
+        SOURCE_OPCODES[FMUL] = IRInstruction.OpCode.MULT;
+        SOURCE_OPCODES[FDIV] = IRInstruction.OpCode.DIV;
+        SOURCE_OPCODES[GOTO] = IRInstruction.OpCode.GOTO;
+        SOURCE_OPCODES[IBEQ] = IRInstruction.OpCode.BREQ;
+        SOURCE_OPCODES[IBNE] = IRInstruction.OpCode.BRNEQ;
+        SOURCE_OPCODES[IBLT] = IRInstruction.OpCode.BRLT;
+        SOURCE_OPCODES[IBGT] = IRInstruction.OpCode.BRGT;
+        SOURCE_OPCODES[IBLE] = IRInstruction.OpCode.BRLEQ;
+        SOURCE_OPCODES[IBGE] = IRInstruction.OpCode.BRGEQ;
+        SOURCE_OPCODES[FBEQ] = IRInstruction.OpCode.BREQ;
+        SOURCE_OPCODES[FBNE] = IRInstruction.OpCode.BRNEQ;
+        SOURCE_OPCODES[FBLT] = IRInstruction.OpCode.BRLT;
+        SOURCE_OPCODES[FBGT] = IRInstruction.OpCode.BRGT;
+        SOURCE_OPCODES[FBLE] = IRInstruction.OpCode.BRLEQ;
+        SOURCE_OPCODES[FBGE] = IRInstruction.OpCode.BRGEQ;
+        SOURCE_OPCODES[IALOAD] = IRInstruction.OpCode.ARRAY_LOAD;
+        SOURCE_OPCODES[FALOAD] = IRInstruction.OpCode.ARRAY_LOAD;
+        SOURCE_OPCODES[IASTORE] = IRInstruction.OpCode.ARRAY_STORE;
+        SOURCE_OPCODES[FASTORE] = IRInstruction.OpCode.ARRAY_STORE;
+        SOURCE_OPCODES[IAFILL] = IRInstruction.OpCode.ASSIGN;
+        SOURCE_OPCODES[FAFILL] = IRInstruction.OpCode.ASSIGN;
+        SOURCE_OPCODES[CALL] = IRInstruction.OpCode.CALL;
+        SOURCE_OPCODES[CALLR] = IRInstruction.OpCode.CALLR;
+        SOURCE_OPCODES[IRET] = IRInstruction.OpCode.RETURN;
+        SOURCE_OPCODES[FRET] = IRInstruction.OpCode.RETURN;
+        SOURCE_OPCODES[GETI] = IRInstruction.OpCode.CALLR;
+        SOURCE_OPCODES[GETF] = IRInstruction.OpCode.CALLR;
+        SOURCE_OPCODES[GETC] = IRInstruction.OpCode.CALLR;
+        SOURCE_OPCODES[PUTI] = IRInstruction.OpCode.CALL;
+        SOURCE_OPCODES[PUTF] = IRInstruction.OpCode.CALL;
+        SOURCE_OPCODES[PUTC] = IRInstruction.OpCode.CALL;
+    }
+
+    private Bytecode() {}
+
+    public static String getName(int opcode) {
+        return NAMES[opcode];
+    }
+
+    public static boolean isSuperinstruction(int opcode) {
+        return opcode >= FIRST_SUPERINSTRUCTION;
+    }
+
+    public static int getFirst(int superinstruction) {
+        return PAIRS[superinstruction - FIRST_SUPERINSTRUCTION][0];
+    }
+
+    public static int getSecond(int superinstruction) {
+        return PAIRS[superinstruction - FIRST_SUPERINSTRUCTION][1];
+    }
+
+    /**
+     * Superinstruction executing the given pair, or -1 if there is none
+     */
+    public static int getSuperinstruction(int first, int second) {
+        for (int i = 0; i < PAIRS.length; i++) {
+            if (PAIRS[i][0] == first && PAIRS[i][1] == second)
+                return FIRST_SUPERINSTRUCTION + i;
+        }
+        return -1;
+    }
+
+    public static boolean isBranch(int opcode) {
+        return opcode >= IBEQ && opcode <= FBGE;
+    }
+
+    /**
+     * IR instructions credited each time the opcode is executed. A superinstruction whose first
+     * instruction is a conditional branch only credits the branch; the VM counts the second
+     * instruction itself when the branch falls through.
+     */
+    public static IRInstruction.OpCode[] getSourceOpCodes(int opcode) {
+        if (!isSuperinstruction(opcode)) {
+            IRInstruction.OpCode source = SOURCE_OPCODES[opcode];
+            return source == null ? new IRInstruction.OpCode[0] : new IRInstruction.OpCode[]{source};
+        }
+        int first = getFirst(opcode);
+        if (isBranch(first))
+            return new IRInstruction.OpCode[]{SOURCE_OPCODES[first]};
+        return new IRInstruction.OpCode[]{SOURCE_OPCODES[first], SOURCE_OPCODES[getSecond(opcode)]};
+    }
+
+    /**
+     * Length in ints of the instruction starting at code[pc], including the opcode. For a
+     * superinstruction this is the length of its first instruction.
+     */
+    public static int length(int[] code, int pc) {
+        int opcode = code[pc];
+        if (isSuperinstruction(opcode))
+            opcode = getFirst(opcode);
+        switch (opcode) {
+            case END:
+                return 1;
+            case GOTO:
+            case IRET:
+            case FRET:
+            case GETI:
+            case GETF:
+            case GETC:
+            case PUTI:
+            case PUTF:
+            case PUTC:
+                return 2;
+            case IMOV:
+            case FMOV:
+                return 3;
+            case CALL:
+                return 3 + code[pc + 2];
+            case CALLR:
+                return 4 + code[pc + 3];
+            default:
+                return 4;
+        }
+    }
+
+}
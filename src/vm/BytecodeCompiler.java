@@ -0,0 +1,394 @@
+package vm;
+
+import ir.IRException;
+import ir.IRFunction;
+import ir.IRInstruction;
+import ir.IRProgram;
+import ir.datatype.IRArrayType;
+import ir.datatype.IRFloatType;
+import ir.datatype.IRIntType;
+import ir.datatype.IRType;
+import ir.operand.*;
+
+import java.util.*;
+
+/**
+ * Lowers every function of an IRProgram once into int-encoded bytecode for the VirtualMachine.
+ * Variables are resolved to typed frame slots, constants to constant pool indices, labels to
+ * code offsets and calls to function indices or intrinsic opcodes. Labels emit no code. Adjacent
+ * instruction pairs are then fused into superinstructions according to the FusionTable.
+ */
+public class BytecodeCompiler {
+
+    private final FusionTable fusionTable;
+
+    private Map<String, Integer> functionIndices;
+
+    private CompiledFunction[] functions;
+
+    // Per-function compilation state
+    private Map<String, Integer> slotMap;
+    private Map<Integer, Integer> intConstantMap;
+    private Map<Integer, Integer> floatConstantMap;
+    private List<Integer> intConstants;
+    private List<Float> floatConstants;
+    private int[] code;
+    private int[] lineNumbers;
+    private int size;
+
+    public BytecodeCompiler() {
+        this(FusionTable.DEFAULT);
+    }
+
+    public BytecodeCompiler(FusionTable fusionTable) {
+        this.fusionTable = fusionTable;
+    }
+
+    public CompiledProgram compile(IRProgram program) throws IRException {
+        functionIndices = new HashMap<>();
+        functions = new CompiledFunction[program.functions.size()];
+        for (int i = 0; i < functions.length; i++) {
+            IRFunction function = program.functions.get(i);
+            functionIndices.put(function.name, i);
+            functions[i] = new CompiledFunction(function);
+            layoutFrame(functions[i]);
+        }
+
+        Integer mainIndex = functionIndices.get("main");
+        if (mainIndex == null)
+            throw new IRException("Undefined reference to function 'main'");
+
+        for (CompiledFunction function : functions) {
+            compileFunction(function);
+            fusionTable.apply(function);
+        }
+
+        return new CompiledProgram(program, functions, mainIndex);
+    }
+
+    private static boolean isFloatType(IRType type) {
+        if (type instanceof IRArrayType)
+            type = ((IRArrayType) type).getElementType();
+        return type == IRFloatType.get();
+    }
+
+    private static int getKind(IRType type) {
+        if (type instanceof IRArrayType)
+            return CompiledFunction.KIND_ARRAY;
+        if (type == IRIntType.get())
+            return CompiledFunction.KIND_INT;
+        return CompiledFunction.KIND_FLOAT;
+    }
+
+    private static IRType getDataType(IROperand operand) {
+        if (operand instanceof IRVariableOperand)
+            return ((IRVariableOperand) operand).type;
+        if (operand instanceof IRConstantOperand)
+            return ((IRConstantOperand) operand).type;
+        return null;
+    }
+
+    private void layoutFrame(CompiledFunction compiled) {
+        IRFunction function = compiled.source;
+        Map<String, Integer> slots = buildSlotMap(function);
+        List<Integer> arraySizes = new ArrayList<>();
+        for (IRVariableOperand variable : function.variables) {
+            if (variable.type instanceof IRArrayType) {
+                IRArrayType arrayType = (IRArrayType) variable.type;
+                arraySizes.add(isFloatType(arrayType) ? -arrayType.getSize() : arrayType.getSize());
+            } else if (variable.type == IRIntType.get())
+                compiled.intCount++;
+            else
+                compiled.floatCount++;
+        }
+        compiled.arraySizes = arraySizes.stream().mapToInt(Integer::intValue).toArray();
+
+        compiled.paramSlots = new int[function.parameters.size()];
+        compiled.paramKinds = new int[function.parameters.size()];
+        boolean[] arrayParameters = new boolean[arraySizes.size()];
+        for (int i = 0; i < compiled.paramSlots.length; i++) {
+            IRVariableOperand param = function.parameters.get(i);
+            compiled.paramSlots[i] = slots.get(param.getName());
+            compiled.paramKinds[i] = getKind(param.type);
+            if (param.type instanceof IRArrayType)
+                arrayParameters[compiled.paramSlots[i]] = true;
+        }
+        // Array parameters take the caller's reference, so only local arrays get a fresh array
+        List<Integer> localArraySlots = new ArrayList<>();
+        for (int i = 0; i < arrayParameters.length; i++) {
+            if (!arrayParameters[i])
+                localArraySlots.add(i);
+        }
+        compiled.localArraySlots = localArraySlots.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private void compileFunction(CompiledFunction compiled) throws IRException {
+        IRFunction function = compiled.source;
+        slotMap = buildSlotMap(function);
+        intConstantMap = new HashMap<>();
+        floatConstantMap = new HashMap<>();
+        intConstants = new ArrayList<>();
+        floatConstants = new ArrayList<>();
+        code = new int[Math.max(16, function.instructions.size() * 4)];
+        lineNumbers = new int[code.length];
+        size = 0;
+
+        // Label name -> code offset, and code offsets of branch operands waiting for a label
+        Map<String, Integer> labelOffsets = new HashMap<>();
+        Map<Integer, String> pendingTargets = new HashMap<>();
+
+        for (IRInstruction instruction : function.instructions) {
+            int start = size;
+            switch (instruction.opCode) {
+                case LABEL:
+                    labelOffsets.put(((IRLabelOperand) instruction.operands[0]).getName(), size);
+                    break;
+                case ASSIGN: {
+                    boolean isFloat = isFloatType(getDataType(instruction.operands[0]));
+                    if (instruction.operands.length > 2) {
+                        emit(isFloat ? Bytecode.FAFILL : Bytecode.IAFILL);
+                        emitSlot(instruction.operands[0]);
+                        emitValue(instruction.operands[1]);
+                        emitValue(instruction.operands[2]);
+                    } else {
+                        emit(isFloat ? Bytecode.FMOV : Bytecode.IMOV);
+                        emitSlot(instruction.operands[0]);
+                        emitValue(instruction.operands[1]);
+                    }
+                    break;
+                }
+                case ADD:
+                case SUB:
+                case MULT:
+                case DIV:
+                case AND:
+                case OR: {
+                    boolean isFloat = isFloatType(getDataType(instruction.operands[0]));
+                    emit(arithmeticOpcode(instruction, isFloat));
+                    emitSlot(instruction.operands[0]);
+                    emitValue(instruction.operands[1]);
+                    emitValue(instruction.operands[2]);
+                    break;
+                }
+                case GOTO:
+                    emit(Bytecode.GOTO);
+                    pendingTargets.put(size, ((IRLabelOperand) instruction.operands[0]).getName());
+                    emit(-1);
+                    break;
+                case BREQ:
+                case BRNEQ:
+                case BRLT:
+                case BRGT:
+                case BRLEQ:
+                case BRGEQ: {
+                    boolean isFloat = isFloatType(getDataType(instruction.operands[1]));
+                    emit(branchOpcode(instruction.opCode, isFloat));
+                    pendingTargets.put(size, ((IRLabelOperand) instruction.operands[0]).getName());
+                    emit(-1);
+                    emitValue(instruction.operands[1]);
+                    emitValue(instruction.operands[2]);
+                    break;
+                }
+                case RETURN:
+                    emit(isFloatType(getDataType(instruction.operands[0])) ? Bytecode.FRET : Bytecode.IRET);
+                    emitValue(instruction.operands[0]);
+                    break;
+                case CALL:
+                    compileCall(instruction, null, (IRFunctionOperand) instruction.operands[0], 1);
+                    break;
+                case CALLR:
+                    compileCall(instruction, instruction.operands[0], (IRFunctionOperand) instruction.operands[1], 2);
+                    break;
+                case ARRAY_STORE: {
+                    boolean isFloat = isFloatType(getDataType(instruction.operands[1]));
+                    emit(isFloat ? Bytecode.FASTORE : Bytecode.IASTORE);
+                    emitValue(instruction.operands[0]);
+                    emitSlot(instruction.operands[1]);
+                    emitValue(instruction.operands[2]);
+                    break;
+                }
+                case ARRAY_LOAD: {
+                    boolean isFloat = isFloatType(getDataType(instruction.operands[1]));
+                    emit(isFloat ? Bytecode.FALOAD : Bytecode.IALOAD);
+                    emitSlot(instruction.operands[0]);
+                    emitSlot(instruction.operands[1]);
+                    emitValue(instruction.operands[2]);
+                    break;
+                }
+                default:
+                    throw new IRException("Invalid OpCode", instruction.irLineNumber);
+            }
+            if (size > start)
+                lineNumbers[start] = instruction.irLineNumber;
+        }
+        // Labels at the very end of a function point here
+        int endLine = function.instructions.isEmpty()
+                ? 0 : function.instructions.get(function.instructions.size() - 1).irLineNumber;
+        lineNumbers[ensureCapacity(1)] = endLine;
+        emit(Bytecode.END);
+
+        for (Map.Entry<Integer, String> entry : pendingTargets.entrySet())
+            code[entry.getKey()] = labelOffsets.get(entry.getValue());
+
+        compiled.code = Arrays.copyOf(code, size);
+        compiled.lineNumbers = Arrays.copyOf(lineNumbers, size);
+        compiled.intConstants = intConstants.stream().mapToInt(Integer::intValue).toArray();
+        compiled.floatConstants = new float[floatConstants.size()];
+        for (int i = 0; i < compiled.floatConstants.length; i++)
+            compiled.floatConstants[i] = floatConstants.get(i);
+    }
+
+    private Map<String, Integer> buildSlotMap(IRFunction function) {
+        Map<String, Integer> slots = new HashMap<>();
+        int ints = 0, floats = 0, arrays = 0;
+        for (IRVariableOperand variable : function.variables) {
+            if (variable.type instanceof IRArrayType)
+                slots.put(variable.getName(), arrays++);
+            else if (variable.type == IRIntType.get())
+                slots.put(variable.getName(), ints++);
+            else
+                slots.put(variable.getName(), floats++);
+        }
+        return slots;
+    }
+
+    private void compileCall(IRInstruction instruction, IROperand dest, IRFunctionOperand functionOperand,
+                             int argIdx) throws IRException {
+        String name = functionOperand.getName();
+        Integer index = functionIndices.get(name);
+        if (index == null) {
+            compileIntrinsicCall(instruction, dest, name, argIdx);
+            return;
+        }
+
+        CompiledFunction callee = functions[index];
+        emit(dest == null ? Bytecode.CALL : Bytecode.CALLR);
+        emit(index);
+        if (dest != null)
+            emitSlot(dest);
+        emit(instruction.operands.length - argIdx);
+        for (int i = argIdx; i < instruction.operands.length; i++) {
+            if (callee.paramKinds[i - argIdx] == CompiledFunction.KIND_ARRAY)
+                emitSlot(instruction.operands[i]);
+            else
+                emitValue(instruction.operands[i]);
+        }
+    }
+
+    private void compileIntrinsicCall(IRInstruction instruction, IROperand dest, String name, int argIdx)
+            throws IRException {
+        switch (name) {
+            case "geti":
+                emit(Bytecode.GETI);
+                emitSlot(dest);
+                break;
+            case "getf":
+                emit(Bytecode.GETF);
+                emitSlot(dest);
+                break;
+            case "getc":
+                emit(Bytecode.GETC);
+                emitSlot(dest);
+                break;
+            case "puti":
+                emit(Bytecode.PUTI);
+                emitValue(instruction.operands[argIdx]);
+                break;
+            case "putf":
+                emit(Bytecode.PUTF);
+                emitValue(instruction.operands[argIdx]);
+                break;
+            case "putc":
+                emit(Bytecode.PUTC);
+                emitValue(instruction.operands[argIdx]);
+                break;
+            default:
+                throw new IRException(String.format("Undefined reference to function '%s'", name),
+                        instruction.irLineNumber);
+        }
+    }
+
+    private static int arithmeticOpcode(IRInstruction instruction, boolean isFloat) throws IRException {
+        switch (instruction.opCode) {
+            case ADD:
+                return isFloat ? Bytecode.FADD : Bytecode.IADD;
+            case SUB:
+                return isFloat ? Bytecode.FSUB : Bytecode.ISUB;
+            case MULT:
+                return isFloat ? Bytecode.FMUL : Bytecode.IMUL;
+            case DIV:
+                return isFloat ? Bytecode.FDIV : Bytecode.IDIV;
+            case AND:
+                if (!isFloat)
+                    return Bytecode.IAND;
+                break;
+            case OR:
+                if (!isFloat)
+                    return Bytecode.IOR;
+                break;
+        }
+        throw new IRException("Invalid operand", instruction.irLineNumber);
+    }
+
+    private static int branchOpcode(IRInstruction.OpCode opCode, boolean isFloat) {
+        switch (opCode) {
+            case BREQ:
+                return isFloat ? Bytecode.FBEQ : Bytecode.IBEQ;
+            case BRNEQ:
+                return isFloat ? Bytecode.FBNE : Bytecode.IBNE;
+            case BRLT:
+                return isFloat ? Bytecode.FBLT : Bytecode.IBLT;
+            case BRGT:
+                return isFloat ? Bytecode.FBGT : Bytecode.IBGT;
+            case BRLEQ:
+                return isFloat ? Bytecode.FBLE : Bytecode.IBLE;
+            default:
+                return isFloat ? Bytecode.FBGE : Bytecode.IBGE;
+        }
+    }
+
+    private int ensureCapacity(int extra) {
+        if (size + extra > code.length) {
+            code = Arrays.copyOf(code, Math.max(code.length * 2, size + extra));
+            lineNumbers = Arrays.copyOf(lineNumbers, code.length);
+        }
+        return size;
+    }
+
+    private void emit(int value) {
+        ensureCapacity(1);
+        code[size++] = value;
+    }
+
+    private void emitSlot(IROperand operand) {
+        emit(slotMap.get(((IRVariableOperand) operand).getName()));
+    }
+
+    private void emitValue(IROperand operand) {
+        if (operand instanceof IRVariableOperand) {
+            emitSlot(operand);
+            return;
+        }
+        IRConstantOperand constant = (IRConstantOperand) operand;
+        if (constant.type == IRIntType.get()) {
+            int value = Integer.parseInt(constant.getValueString());
+            Integer index = intConstantMap.get(value);
+            if (index == null) {
+                index = intConstants.size();
+                intConstants.add(value);
+                intConstantMap.put(value, index);
+            }
+            emit(~index);
+        } else {
+            float value = Float.parseFloat(constant.getValueString());
+            Integer index = floatConstantMap.get(Float.floatToRawIntBits(value));
+            if (index == null) {
+                index = floatConstants.size();
+                floatConstants.add(value);
+                floatConstantMap.put(Float.floatToRawIntBits(value), index);
+            }
+            emit(~index);
+        }
+    }
+
+}
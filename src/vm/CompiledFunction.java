@@ -0,0 +1,47 @@
+package vm;
+
+import ir.IRFunction;
+
+public class CompiledFunction {
+
+    public static final int KIND_INT = 0;
+    public static final int KIND_FLOAT = 1;
+    public static final int KIND_ARRAY = 2;
+
+    public IRFunction source;
+
+    public String name;
+
+    public boolean returnsValue;
+
+    public int[] code;
+
+    // IR line number of the instruction starting at each code offset
+    public int[] lineNumbers;
+
+    public int[] intConstants;
+
+    public float[] floatConstants;
+
+    // Frame layout
+    public int intCount;
+
+    public int floatCount;
+
+    // Declared size of each array slot, negated for float arrays
+    public int[] arraySizes;
+
+    // Array slots that are not parameters, the only ones a call allocates
+    public int[] localArraySlots;
+
+    public int[] paramSlots;
+
+    public int[] paramKinds;
+
+    public CompiledFunction(IRFunction source) {
+        this.source = source;
+        this.name = source.name;
+        this.returnsValue = source.returnType != null;
+    }
+
+}
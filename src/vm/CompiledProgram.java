@@ -0,0 +1,19 @@
+package vm;
+
+import ir.IRProgram;
+
+public class CompiledProgram {
+
+    public IRProgram source;
+
+    public CompiledFunction[] functions;
+
+    public int mainIndex;
+
+    public CompiledProgram(IRProgram source, CompiledFunction[] functions, int mainIndex) {
+        this.source = source;
+        this.functions = functions;
+        this.mainIndex = mainIndex;
+    }
+
+}
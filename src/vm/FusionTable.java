@@ -0,0 +1,142 @@
+package vm;
+
+import java.util.*;
+
+/**
+ * Set of superinstructions the BytecodeCompiler forms from adjacent instruction pairs.
+ *
+ * The superinstructions the VM implements were picked from offset profiles of the sample programs
+ * (array loads copied into a temporary, loop counter updates next to a load or a back-edge, and
+ * compare-and-branch chains); the default table enables all of them. A table can also be given as
+ * a comma-separated list of pair names such as "iaload+imov,iadd+goto". To look for new candidates,
+ * run a program unfused with offset profiling and rank its pairs with {@link #rankPairs}.
+ */
+public class FusionTable {
+
+    public static final FusionTable NONE = new FusionTable(new boolean[Bytecode.OPCODE_COUNT]);
+
+    public static final FusionTable DEFAULT = parse("all");
+
+    // Indexed by superinstruction opcode
+    private final boolean[] enabled;
+
+    private FusionTable(boolean[] enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Parses "none", "all" or a comma-separated list of superinstruction names
+     */
+    public static FusionTable parse(String spec) {
+        boolean[] enabled = new boolean[Bytecode.OPCODE_COUNT];
+        if (spec.equals("none") || spec.equals("all")) {
+            for (int op = 0; op < Bytecode.OPCODE_COUNT; op++)
+                enabled[op] = spec.equals("all") && Bytecode.isSuperinstruction(op);
+            return new FusionTable(enabled);
+        }
+
+        for (String name : spec.split(",")) {
+            int op = findSuperinstruction(name.trim());
+            if (op < 0)
+                throw new IllegalArgumentException(String.format("Unknown superinstruction '%s'", name.trim()));
+            enabled[op] = true;
+        }
+        return new FusionTable(enabled);
+    }
+
+    private static int findSuperinstruction(String name) {
+        for (int op = 0; op < Bytecode.OPCODE_COUNT; op++) {
+            if (Bytecode.isSuperinstruction(op) && Bytecode.getName(op).equals(name))
+                return op;
+        }
+        return -1;
+    }
+
+    public boolean isEnabled(int superinstruction) {
+        return enabled[superinstruction];
+    }
+
+    /**
+     * Replaces the opcode of every instruction that starts an enabled pair. Pairs may overlap: the
+     * second instruction of one pair can itself start another, which only matters when it is
+     * reached by a jump.
+     */
+    public void apply(CompiledFunction function) {
+        int[] code = function.code;
+        int pc = 0;
+        while (pc < code.length) {
+            int next = pc + Bytecode.length(code, pc);
+            if (next < code.length) {
+                int op = Bytecode.getSuperinstruction(code[pc], code[next]);
+                if (op >= 0 && enabled[op])
+                    code[pc] = op;
+            }
+            pc = next;
+        }
+    }
+
+    /**
+     * Ranks the adjacent instruction pairs of an unfused program by how often execution went from
+     * the first instruction straight to the second, given the offset counts of a profiled run.
+     * Returns one line per pair, most frequent first.
+     */
+    public static List<String> rankPairs(CompiledProgram program, long[][] offsetCounts) {
+        Map<String, Long> pairCounts = new HashMap<>();
+        for (int f = 0; f < program.functions.length; f++) {
+            int[] code = program.functions[f].code;
+            long[] hits = offsetCounts[f];
+            Set<Integer> targets = getBranchTargets(code);
+            for (int pc = 0; pc < code.length; pc += Bytecode.length(code, pc)) {
+                int next = pc + Bytecode.length(code, pc);
+                if (next >= code.length)
+                    break;
+                long count;
+                if (Bytecode.isBranch(code[pc])) {
+                    // Falling through is the only way to reach a non-target after a branch
+                    if (targets.contains(next))
+                        continue;
+                    count = hits[next];
+                } else if (fallsThrough(code[pc])) {
+                    count = hits[pc];
+                } else {
+                    continue;
+                }
+                if (count > 0)
+                    pairCounts.merge(Bytecode.getName(code[pc]) + "+" + Bytecode.getName(code[next]), count, Long::sum);
+            }
+        }
+
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(pairCounts.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : entries) {
+            boolean supported = findSuperinstruction(entry.getKey()) >= 0;
+            lines.add(String.format("%12d  %s%s", entry.getValue(), entry.getKey(), supported ? "" : " (no superinstruction)"));
+        }
+        return lines;
+    }
+
+    private static boolean fallsThrough(int opcode) {
+        switch (opcode) {
+            case Bytecode.GOTO:
+            case Bytecode.CALL:
+            case Bytecode.CALLR:
+            case Bytecode.IRET:
+            case Bytecode.FRET:
+            case Bytecode.END:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private static Set<Integer> getBranchTargets(int[] code) {
+        Set<Integer> targets = new HashSet<>();
+        for (int pc = 0; pc < code.length; pc += Bytecode.length(code, pc)) {
+            if (code[pc] == Bytecode.GOTO || Bytecode.isBranch(code[pc]))
+                targets.add(code[pc + 1]);
+        }
+        return targets;
+    }
+
+}
@@ -0,0 +1,511 @@
+package vm;
+
+import ir.IRException;
+import ir.IRInstruction;
+import runtime.IntrinsicIO;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Executes a CompiledProgram in a single dispatch loop.
+ *
+ * All frames share three contiguous value stacks (ints, floats and arrays); a frame is just a base
+ * offset into each of them. Call records live in a flat int stack. Executed instructions are counted
+ * per bytecode opcode and reported per IR opcode, so counts match the tree-walking interpreter.
+ */
+public class VirtualMachine {
+
+    // Call record layout: caller function, return pc, call pc, int/float/array bases, return slot
+    private static final int RECORD_SIZE = 7;
+
+    private final CompiledProgram program;
+
+    private int[] intStack = new int[1024];
+    private float[] floatStack = new float[1024];
+    private Object[] arrayStack = new Object[256];
+    private int[] records = new int[RECORD_SIZE * 256];
+
+    private long[] opcodeCounts;
+
+    // Executions of the instruction at each code offset of each function, when profiling
+    private boolean profileOffsets = false;
+    private long[][] offsetCounts;
+
+    private IntrinsicIO io;
+
+    private PrintStream err = System.err;
+
+    public VirtualMachine(CompiledProgram program) {
+        this.program = program;
+    }
+
+    /**
+     * Number of executed instructions per IR opcode, indexed by IRInstruction.OpCode ordinal
+     */
+    public long[] getInstructionCounts() {
+        long[] counts = new long[IRInstruction.OpCode.values().length];
+        if (opcodeCounts == null)
+            return counts;
+        for (int op = 0; op < Bytecode.OPCODE_COUNT; op++) {
+            for (IRInstruction.OpCode source : Bytecode.getSourceOpCodes(op))
+                counts[source.ordinal()] += opcodeCounts[op];
+        }
+        return counts;
+    }
+
+    /**
+     * Stream runtime errors are reported to
+     */
+    public void setErrorStream(PrintStream err) {
+        this.err = err;
+    }
+
+    /**
+     * Counts executions per code offset on the next run, at some cost in speed
+     */
+    public void setProfileOffsets(boolean profileOffsets) {
+        this.profileOffsets = profileOffsets;
+    }
+
+    /**
+     * Executions of the instruction at each code offset, indexed by function index, or null if the
+     * last run was not profiled. Instructions executed as the second half of a superinstruction are
+     * not counted separately.
+     */
+    public long[][] getOffsetCounts() {
+        return offsetCounts;
+    }
+
+    public long getNonLabelInstructionCount() {
+        long total = 0;
+        for (long count : getInstructionCounts())
+            total += count;
+        return total;
+    }
+
+    public void run(IntrinsicIO io) throws IRException {
+        opcodeCounts = new long[Bytecode.OPCODE_COUNT];
+        offsetCounts = null;
+        if (profileOffsets) {
+            offsetCounts = new long[program.functions.length][];
+            for (int i = 0; i < offsetCounts.length; i++)
+                offsetCounts[i] = new long[program.functions[i].code.length];
+        }
+        this.io = io;
+        try {
+            execute();
+        } finally {
+            io.close();
+        }
+    }
+
+    private void execute() throws IRException {
+        final CompiledFunction[] functions = program.functions;
+        final long[] counts = opcodeCounts;
+        final long[][] offsetCounts = this.offsetCounts;
+
+        int depth = 0;
+        int functionIndex = program.mainIndex;
+        CompiledFunction function = functions[functionIndex];
+        int ib = 0, fb = 0, ab = 0;
+        ensureFrameCapacity(function, ib, fb, ab);
+        int[] is = intStack;
+        float[] fs = floatStack;
+        Object[] as = arrayStack;
+        allocateArrays(function, as, ab);
+
+        int[] code = function.code;
+        int[] ik = function.intConstants;
+        float[] fk = function.floatConstants;
+        long[] hits = offsetCounts == null ? null : offsetCounts[functionIndex];
+        int pc = 0;
+
+        while (true) {
+            int op = code[pc];
+            counts[op]++;
+            if (hits != null)
+                hits[pc]++;
+            switch (op) {
+                case Bytecode.IMOV:
+                    is[ib + code[pc + 1]] = ival(is, ib, ik, code[pc + 2]);
+                    pc += 3;
+                    break;
+                case Bytecode.FMOV:
+                    fs[fb + code[pc + 1]] = fval(fs, fb, fk, code[pc + 2]);
+                    pc += 3;
+                    break;
+
+                case Bytecode.IADD:
+                    is[ib + code[pc + 1]] = ival(is, ib, ik, code[pc + 2]) + ival(is, ib, ik, code[pc + 3]);
+                    pc += 4;
+                    break;
+                case Bytecode.ISUB:
+                    is[ib + code[pc + 1]] = ival(is, ib, ik, code[pc + 2]) - ival(is, ib, ik, code[pc + 3]);
+                    pc += 4;
+                    break;
+                case Bytecode.IMUL:
+                    is[ib + code[pc + 1]] = ival(is, ib, ik, code[pc + 2]) * ival(is, ib, ik, code[pc + 3]);
+                    pc += 4;
+                    break;
+                case Bytecode.IDIV:
+                    is[ib + code[pc + 1]] = ival(is, ib, ik, code[pc + 2]) / ival(is, ib, ik, code[pc + 3]);
+                    pc += 4;
+                    break;
+                case Bytecode.IAND:
+                    is[ib + code[pc + 1]] = ival(is, ib, ik, code[pc + 2]) & ival(is, ib, ik, code[pc + 3]);
+                    pc += 4;
+                    break;
+                case Bytecode.IOR:
+                    is[ib + code[pc + 1]] = ival(is, ib, ik, code[pc + 2]) | ival(is, ib, ik, code[pc + 3]);
+                    pc += 4;
+                    break;
+                case Bytecode.FADD:
+                    fs[fb + code[pc + 1]] = fval(fs, fb, fk, code[pc + 2]) + fval(fs, fb, fk, code[pc + 3]);
+                    pc += 4;
+                    break;
+                case Bytecode.FSUB:
+                    fs[fb + code[pc + 1]] = fval(fs, fb, fk, code[pc + 2]) - fval(fs, fb, fk, code[pc + 3]);
+                    pc += 4;
+                    break;
+                case Bytecode.FMUL:
+                    fs[fb + code[pc + 1]] = fval(fs, fb, fk, code[pc + 2]) * fval(fs, fb, fk, code[pc + 3]);
+                    pc += 4;
+                    break;
+                case Bytecode.FDIV:
+                    fs[fb + code[pc + 1]] = fval(fs, fb, fk, code[pc + 2]) / fval(fs, fb, fk, code[pc + 3]);
+                    pc += 4;
+                    break;
+
+                case Bytecode.GOTO:
+                    pc = code[pc + 1];
+                    break;
+
+                case Bytecode.IBEQ:
+                    pc = ival(is, ib, ik, code[pc + 2]) == ival(is, ib, ik, code[pc + 3]) ? code[pc + 1] : pc + 4;
+                    break;
+                case Bytecode.IBNE:
+                    pc = ival(is, ib, ik, code[pc + 2]) != ival(is, ib, ik, code[pc + 3]) ? code[pc + 1] : pc + 4;
+                    break;
+                case Bytecode.IBLT:
+                    pc = ival(is, ib, ik, code[pc + 2]) < ival(is, ib, ik, code[pc + 3]) ? code[pc + 1] : pc + 4;
+                    break;
+                case Bytecode.IBGT:
+                    pc = ival(is, ib, ik, code[pc + 2]) > ival(is, ib, ik, code[pc + 3]) ? code[pc + 1] : pc + 4;
+                    break;
+                case Bytecode.IBLE:
+                    pc = ival(is, ib, ik, code[pc + 2]) <= ival(is, ib, ik, code[pc + 3]) ? code[pc + 1] : pc + 4;
+                    break;
+                case Bytecode.IBGE:
+                    pc = ival(is, ib, ik, code[pc + 2]) >= ival(is, ib, ik, code[pc + 3]) ? code[pc + 1] : pc + 4;
+                    break;
+                case Bytecode.FBEQ:
+                    pc = fval(fs, fb, fk, code[pc + 2]) == fval(fs, fb, fk, code[pc + 3]) ? code[pc + 1] : pc + 4;
+                    break;
+                case Bytecode.FBNE:
+                    pc = fval(fs, fb, fk, code[pc + 2]) != fval(fs, fb, fk, code[pc + 3]) ? code[pc + 1] : pc + 4;
+                    break;
+                case Bytecode.FBLT:
+                    pc = fval(fs, fb, fk, code[pc + 2]) < fval(fs, fb, fk, code[pc + 3]) ? code[pc + 1] : pc + 4;
+                    break;
+                case Bytecode.FBGT:
+                    pc = fval(fs, fb, fk, code[pc + 2]) > fval(fs, fb, fk, code[pc + 3]) ? code[pc + 1] : pc + 4;
+                    break;
+                case Bytecode.FBLE:
+                    pc = fval(fs, fb, fk, code[pc + 2]) <= fval(fs, fb, fk, code[pc + 3]) ? code[pc + 1] : pc + 4;
+                    break;
+                case Bytecode.FBGE:
+                    pc = fval(fs, fb, fk, code[pc + 2]) >= fval(fs, fb, fk, code[pc + 3]) ? code[pc + 1] : pc + 4;
+                    break;
+
+                case Bytecode.IALOAD: {
+                    int[] arr = (int[]) as[ab + code[pc + 2]];
+                    int offset = ival(is, ib, ik, code[pc + 3]);
+                    if (offset < 0 || offset >= arr.length)
+                        throwRuntimeException("Out-of-bounds array access", function, pc, depth);
+                    is[ib + code[pc + 1]] = arr[offset];
+                    pc += 4;
+                    break;
+                }
+                case Bytecode.FALOAD: {
+                    float[] arr = (float[]) as[ab + code[pc + 2]];
+                    int offset = ival(is, ib, ik, code[pc + 3]);
+                    if (offset < 0 || offset >= arr.length)
+                        throwRuntimeException("Out-of-bounds array access", function, pc, depth);
+                    fs[fb + code[pc + 1]] = arr[offset];
+                    pc += 4;
+                    break;
+                }
+                case Bytecode.IASTORE: {
+                    int[] arr = (int[]) as[ab + code[pc + 2]];
+                    int offset = ival(is, ib, ik, code[pc + 3]);
+                    if (offset < 0 || offset >= arr.length)
+                        throwRuntimeException("Out-of-bounds array access", function, pc, depth);
+                    arr[offset] = ival(is, ib, ik, code[pc + 1]);
+                    pc += 4;
+                    break;
+                }
+                case Bytecode.FASTORE: {
+                    float[] arr = (float[]) as[ab + code[pc + 2]];
+                    int offset = ival(is, ib, ik, code[pc + 3]);
+                    if (offset < 0 || offset >= arr.length)
+                        throwRuntimeException("Out-of-bounds array access", function, pc, depth);
+                    arr[offset] = fval(fs, fb, fk, code[pc + 1]);
+                    pc += 4;
+                    break;
+                }
+                case Bytecode.IAFILL: {
+                    int[] arr = (int[]) as[ab + code[pc + 1]];
+                    int count = ival(is, ib, ik, code[pc + 2]);
+                    if (count < 0 || count > arr.length)
+                        throwRuntimeException("Out-of-bounds array access", function, pc, depth);
+                    Arrays.fill(arr, 0, count, ival(is, ib, ik, code[pc + 3]));
+                    pc += 4;
+                    break;
+                }
+                case Bytecode.FAFILL: {
+                    float[] arr = (float[]) as[ab + code[pc + 1]];
+                    int count = ival(is, ib, ik, code[pc + 2]);
+                    if (count < 0 || count > arr.length)
+                        throwRuntimeException("Out-of-bounds array access", function, pc, depth);
+                    Arrays.fill(arr, 0, count, fval(fs, fb, fk, code[pc + 3]));
+                    pc += 4;
+                    break;
+                }
+
+                case Bytecode.CALL:
+                case Bytecode.CALLR: {
+                    int calleeIndex = code[pc + 1];
+                    CompiledFunction callee = functions[calleeIndex];
+                    int retSlot = -1;
+                    int argPc = pc + 2;
+                    if (op == Bytecode.CALLR)
+                        retSlot = code[argPc++];
+                    int argc = code[argPc++];
+
+                    // New frame starts right above the current one
+                    int nib = ib + function.intCount;
+                    int nfb = fb + function.floatCount;
+                    int nab = ab + function.arraySizes.length;
+                    ensureFrameCapacity(callee, nib, nfb, nab);
+                    is = intStack;
+                    fs = floatStack;
+                    as = arrayStack;
+                    Arrays.fill(is, nib, nib + callee.intCount, 0);
+                    Arrays.fill(fs, nfb, nfb + callee.floatCount, 0);
+                    allocateArrays(callee, as, nab);
+                    for (int i = 0; i < argc; i++) {
+                        int arg = code[argPc + i];
+                        int slot = callee.paramSlots[i];
+                        switch (callee.paramKinds[i]) {
+                            case CompiledFunction.KIND_INT:
+                                is[nib + slot] = ival(is, ib, ik, arg);
+                                break;
+                            case CompiledFunction.KIND_FLOAT:
+                                fs[nfb + slot] = fval(fs, fb, fk, arg);
+                                break;
+                            default:
+                                as[nab + slot] = as[ab + arg];
+                        }
+                    }
+
+                    int record = depth * RECORD_SIZE;
+                    if (record + RECORD_SIZE > records.length)
+                        records = Arrays.copyOf(records, records.length * 2);
+                    records[record] = functionIndex;
+                    records[record + 1] = argPc + argc;
+                    records[record + 2] = pc;
+                    records[record + 3] = ib;
+                    records[record + 4] = fb;
+                    records[record + 5] = ab;
+                    records[record + 6] = retSlot;
+                    depth++;
+
+                    functionIndex = calleeIndex;
+                    function = callee;
+                    ib = nib;
+                    fb = nfb;
+                    ab = nab;
+                    code = function.code;
+                    ik = function.intConstants;
+                    fk = function.floatConstants;
+                    if (hits != null)
+                        hits = offsetCounts[functionIndex];
+                    pc = 0;
+                    break;
+                }
+                case Bytecode.IRET:
+                case Bytecode.FRET:
+                case Bytecode.END: {
+                    if (depth == 0) // Exit main
+                        return;
+                    int intVal = 0;
+                    float floatVal = 0;
+                    if (op == Bytecode.IRET)
+                        intVal = ival(is, ib, ik, code[pc + 1]);
+                    else if (op == Bytecode.FRET)
+                        floatVal = fval(fs, fb, fk, code[pc + 1]);
+                    Arrays.fill(as, ab, ab + function.arraySizes.length, null);
+
+                    depth--;
+                    int record = depth * RECORD_SIZE;
+                    functionIndex = records[record];
+                    function = functions[functionIndex];
+                    pc = records[record + 1];
+                    ib = records[record + 3];
+                    fb = records[record + 4];
+                    ab = records[record + 5];
+                    int retSlot = records[record + 6];
+                    code = function.code;
+                    ik = function.intConstants;
+                    fk = function.floatConstants;
+                    if (hits != null)
+                        hits = offsetCounts[functionIndex];
+
+                    if (op == Bytecode.IRET)
+                        is[ib + retSlot] = intVal;
+                    else if (op == Bytecode.FRET)
+                        fs[fb + retSlot] = floatVal;
+                    else if (function.returnsValue)
+                        // Same check as the tree-walking interpreter, reported against the caller
+                        throwRuntimeException("Missing return for a function with return value",
+                                function, code.length - 1, depth);
+                    break;
+                }
+
+                case Bytecode.GETI:
+                    is[ib + code[pc + 1]] = io.readInt();
+                    pc += 2;
+                    break;
+                case Bytecode.GETF:
+                    fs[fb + code[pc + 1]] = io.readFloat();
+                    pc += 2;
+                    break;
+                case Bytecode.GETC:
+                    is[ib + code[pc + 1]] = io.readChar();
+                    pc += 2;
+                    break;
+                case Bytecode.PUTI:
+                    io.writeInt(ival(is, ib, ik, code[pc + 1]));
+                    pc += 2;
+                    break;
+                case Bytecode.PUTF:
+                    io.writeFloat(fval(fs, fb, fk, code[pc + 1]));
+                    pc += 2;
+                    break;
+                case Bytecode.PUTC:
+                    io.writeChar((char) ival(is, ib, ik, code[pc + 1]));
+                    pc += 2;
+                    break;
+
+                // Superinstructions; the second instruction starts right after the first
+                case Bytecode.IALOAD_IMOV: {
+                    int[] arr = (int[]) as[ab + code[pc + 2]];
+                    int offset = ival(is, ib, ik, code[pc + 3]);
+                    if (offset < 0 || offset >= arr.length)
+                        throwRuntimeException("Out-of-bounds array access", function, pc, depth);
+                    is[ib + code[pc + 1]] = arr[offset];
+                    is[ib + code[pc + 5]] = ival(is, ib, ik, code[pc + 6]);
+                    pc += 7;
+                    break;
+                }
+                case Bytecode.IMOV_IBLT:
+                    is[ib + code[pc + 1]] = ival(is, ib, ik, code[pc + 2]);
+                    pc = ival(is, ib, ik, code[pc + 5]) < ival(is, ib, ik, code[pc + 6]) ? code[pc + 4] : pc + 7;
+                    break;
+                case Bytecode.IMOV_IBGT:
+                    is[ib + code[pc + 1]] = ival(is, ib, ik, code[pc + 2]);
+                    pc = ival(is, ib, ik, code[pc + 5]) > ival(is, ib, ik, code[pc + 6]) ? code[pc + 4] : pc + 7;
+                    break;
+                case Bytecode.IMOV_IBGE:
+                    is[ib + code[pc + 1]] = ival(is, ib, ik, code[pc + 2]);
+                    pc = ival(is, ib, ik, code[pc + 5]) >= ival(is, ib, ik, code[pc + 6]) ? code[pc + 4] : pc + 7;
+                    break;
+                case Bytecode.IADD_IALOAD:
+                case Bytecode.ISUB_IALOAD: {
+                    int y = ival(is, ib, ik, code[pc + 2]);
+                    int z = ival(is, ib, ik, code[pc + 3]);
+                    is[ib + code[pc + 1]] = op == Bytecode.IADD_IALOAD ? y + z : y - z;
+                    int[] arr = (int[]) as[ab + code[pc + 6]];
+                    int offset = ival(is, ib, ik, code[pc + 7]);
+                    if (offset < 0 || offset >= arr.length)
+                        throwRuntimeException("Out-of-bounds array access", function, pc + 4, depth);
+                    is[ib + code[pc + 5]] = arr[offset];
+                    pc += 8;
+                    break;
+                }
+                case Bytecode.IADD_GOTO:
+                    is[ib + code[pc + 1]] = ival(is, ib, ik, code[pc + 2]) + ival(is, ib, ik, code[pc + 3]);
+                    pc = code[pc + 5];
+                    break;
+                case Bytecode.IADD_IBLT:
+                    is[ib + code[pc + 1]] = ival(is, ib, ik, code[pc + 2]) + ival(is, ib, ik, code[pc + 3]);
+                    pc = ival(is, ib, ik, code[pc + 6]) < ival(is, ib, ik, code[pc + 7]) ? code[pc + 5] : pc + 8;
+                    break;
+                case Bytecode.ISUB_IBGT:
+                    is[ib + code[pc + 1]] = ival(is, ib, ik, code[pc + 2]) - ival(is, ib, ik, code[pc + 3]);
+                    pc = ival(is, ib, ik, code[pc + 6]) > ival(is, ib, ik, code[pc + 7]) ? code[pc + 5] : pc + 8;
+                    break;
+                case Bytecode.IBGT_IBGE:
+                    if (ival(is, ib, ik, code[pc + 2]) > ival(is, ib, ik, code[pc + 3])) {
+                        pc = code[pc + 1];
+                    } else {
+                        counts[Bytecode.IBGE]++;
+                        pc = ival(is, ib, ik, code[pc + 6]) >= ival(is, ib, ik, code[pc + 7]) ? code[pc + 5] : pc + 8;
+                    }
+                    break;
+                case Bytecode.IMOV_IMOV:
+                    is[ib + code[pc + 1]] = ival(is, ib, ik, code[pc + 2]);
+                    is[ib + code[pc + 4]] = ival(is, ib, ik, code[pc + 5]);
+                    pc += 6;
+                    break;
+                case Bytecode.FMOV_FMOV:
+                    fs[fb + code[pc + 1]] = fval(fs, fb, fk, code[pc + 2]);
+                    fs[fb + code[pc + 4]] = fval(fs, fb, fk, code[pc + 5]);
+                    pc += 6;
+                    break;
+
+                default:
+                    throw new IllegalStateException("Invalid bytecode " + op);
+            }
+        }
+    }
+
+    private static int ival(int[] is, int ib, int[] ik, int operand) {
+        return operand >= 0 ? is[ib + operand] : ik[~operand];
+    }
+
+    private static float fval(float[] fs, int fb, float[] fk, int operand) {
+        return operand >= 0 ? fs[fb + operand] : fk[~operand];
+    }
+
+    private void ensureFrameCapacity(CompiledFunction function, int ib, int fb, int ab) {
+        if (ib + function.intCount > intStack.length)
+            intStack = Arrays.copyOf(intStack, Math.max(intStack.length * 2, ib + function.intCount));
+        if (fb + function.floatCount > floatStack.length)
+            floatStack = Arrays.copyOf(floatStack, Math.max(floatStack.length * 2, fb + function.floatCount));
+        if (ab + function.arraySizes.length > arrayStack.length)
+            arrayStack = Arrays.copyOf(arrayStack, Math.max(arrayStack.length * 2, ab + function.arraySizes.length));
+    }
+
+    private static void allocateArrays(CompiledFunction function, Object[] as, int ab) {
+        int[] sizes = function.arraySizes;
+        for (int slot : function.localArraySlots)
+            as[ab + slot] = sizes[slot] >= 0 ? new int[sizes[slot]] : new float[-sizes[slot]];
+    }
+
+    private void throwRuntimeException(String message, CompiledFunction function, int pc, int depth)
+            throws IRException {
+        // Keep program output ahead of the error
+        io.flush();
+        err.println("IR interpreter runtime exception: " + message);
+        err.println("Stack trace:");
+        err.println("\t" + function.name + ":" + function.lineNumbers[pc]);
+        for (int d = depth - 1; d >= 0; d--) {
+            CompiledFunction caller = program.functions[records[d * RECORD_SIZE]];
+            err.println("\t" + caller.name + ":" + caller.lineNumbers[records[d * RECORD_SIZE + 2]]);
+        }
+        throw new IRException();
+    }
+
+}